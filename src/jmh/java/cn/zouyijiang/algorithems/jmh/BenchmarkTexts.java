@@ -0,0 +1,58 @@
+package cn.zouyijiang.algorithems.jmh;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * 基准测试用的输入文本
+ */
+class BenchmarkTexts {
+
+    // 和Test3_LexicalAnalysis一样,包含各种词素
+    static final String SCRIPT = "max  (0712+ max (1.1, d),Math.abs(b))+ pow(x,0xABc)+0+0b1_01*0x3Ffa+01234567+1-1.2/0.1+\"+a+\";\n" +
+            " a+\"k\"+c;\n" +
+            " \"kk\"-k /* kdfdk /* kdfdk */ +8888 +9999;\n" +
+            " \"k1\"+\"k2\\\"k3\\\"\";\n" +
+            " max(a,b)+ /*min(c,d);*/ min(c2,d2);\n" +
+            " \t  \t a+2-4; // max(a,b)+ /*min(c,d);*/ min(c2,d2);\n";
+
+    static String repeat(String text, int times) {
+        StringBuilder sb = new StringBuilder(text.length() * times);
+        for (int i = 0; i < times; i++) {
+            sb.append(text);
+        }
+        return sb.toString();
+    }
+
+    // 深度为depth的嵌套括号:(((a+1)*2+1)*2...)
+    static String deep(int depth) {
+        StringBuilder sb = new StringBuilder("a");
+        for (int i = 0; i < depth; i++) {
+            sb.insert(0, '(').append(i % 2 == 0 ? "+1)" : "*2)");
+        }
+        return sb.toString();
+    }
+
+    // width个项相加:a*1+b*2+a*3...
+    static String wide(int width) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < width; i++) {
+            if (i > 0) sb.append('+');
+            sb.append(i % 2 == 0 ? 'a' : 'b').append('*').append(i + 1);
+        }
+        return sb.toString();
+    }
+
+    // 词法分析直接打印到标准输出,测试时丢弃
+    static void muteStdout() {
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+}
@@ -0,0 +1,94 @@
+package cn.zouyijiang.algorithems.jmh;
+
+import cn.zouyijiang.algorithems.book.chapter1.CompiledExpr;
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate;
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.Expr;
+import cn.zouyijiang.algorithems.book.chapter1.ExprBytecode;
+import cn.zouyijiang.algorithems.book.chapter1.ExprRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 表达式解析和计算:
+ * shallow 简单表达式,deep 深层嵌套,wide 很多项相加,function 调用自定义函数
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EvaluateBenchmark {
+
+    @Param({"shallow", "deep", "wide", "function"})
+    private String shape;
+
+    private Evaluate evaluate;
+    private String exprText;
+    private Map<String, BigDecimal> vars;
+    private Expr expr;
+    private CompiledExpr compiled;
+    private ExprBytecode bytecode;
+
+    @Setup
+    public void setup() {
+        ExprRegistry registry = new ExprRegistry();
+        evaluate = registry.newEvaluate();
+        switch (shape) {
+            case "shallow":
+                exprText = "a*b+1";
+                break;
+            case "deep":
+                exprText = BenchmarkTexts.deep(64);
+                break;
+            case "wide":
+                exprText = BenchmarkTexts.wide(64);
+                break;
+            case "function":
+                registry.defineExpr("hypot2", evaluate.parseExpr("hypot2=x*x+y*y"));
+                exprText = "hypot2(a,b)+hypot2(b,a+1)+area(a,b)";
+                break;
+            default:
+                throw new IllegalArgumentException("未知的表达式类型:" + shape);
+        }
+        evaluate.putVar("a", new BigDecimal("3"));
+        evaluate.putVar("b", new BigDecimal("4"));
+        vars = evaluate.getVars();
+        expr = evaluate.parseExpr(exprText);
+        compiled = evaluate.compile(expr);
+        bytecode = evaluate.compileBytecode(exprText);
+    }
+
+    @Benchmark
+    public Expr parse() {
+        return evaluate.parseExpr(exprText);
+    }
+
+    @Benchmark
+    public BigDecimal calculate() {
+        return evaluate.calculate(expr, vars);
+    }
+
+    @Benchmark
+    public BigDecimal evaluateCompiled() {
+        return evaluate.evaluate(compiled);
+    }
+
+    @Benchmark
+    public BigDecimal evaluateBytecode() {
+        return evaluate.evaluate(bytecode);
+    }
+}
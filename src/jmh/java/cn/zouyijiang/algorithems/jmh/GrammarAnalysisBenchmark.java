@@ -0,0 +1,51 @@
+package cn.zouyijiang.algorithems.jmh;
+
+import cn.zouyijiang.algorithems.book.chapter1.GrammarAnalysis;
+import cn.zouyijiang.algorithems.book.chapter1.LexicalAnalysis;
+import cn.zouyijiang.algorithems.book.chapter1.Word;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 语法分析:词法分析的结果提前准备好,只计语法分析。handle()不修改传入的词素
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GrammarAnalysisBenchmark {
+
+    @Param({"1", "100"})
+    private int lines;
+
+    private List<Word> words;
+
+    @Setup
+    public void setup() {
+        BenchmarkTexts.muteStdout();
+        LexicalAnalysis lexicalAnalysis = new LexicalAnalysis();
+        lexicalAnalysis.handle(BenchmarkTexts.repeat(BenchmarkTexts.SCRIPT, lines));
+        words = lexicalAnalysis.getWords();
+    }
+
+    @Benchmark
+    public GrammarAnalysis handle() {
+        GrammarAnalysis grammarAnalysis = new GrammarAnalysis();
+        grammarAnalysis.handle(words);
+        return grammarAnalysis;
+    }
+}
@@ -0,0 +1,59 @@
+package cn.zouyijiang.algorithems.jmh;
+
+import cn.zouyijiang.algorithems.book.chapter1.LexicalAnalysis;
+import cn.zouyijiang.algorithems.book.chapter1.Word;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 词法分析:lines是输入文本重复的次数,regexMatch是否使用逐个正则匹配代替DFA。
+ * 每次调用用新的LexicalAnalysis,创建正则和DFA的耗时不计入
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LexicalAnalysisBenchmark {
+
+    @Param({"1", "100"})
+    private int lines;
+
+    @Param({"false", "true"})
+    private boolean regexMatch;
+
+    private String text;
+    private LexicalAnalysis lexicalAnalysis;
+
+    @Setup(Level.Trial)
+    public void setupTrial() {
+        BenchmarkTexts.muteStdout();
+        text = BenchmarkTexts.repeat(BenchmarkTexts.SCRIPT, lines);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupInvocation() {
+        lexicalAnalysis = new LexicalAnalysis();
+        lexicalAnalysis.setRegexMatch(regexMatch);
+    }
+
+    @Benchmark
+    public List<Word> handle() {
+        lexicalAnalysis.handle(text);
+        return lexicalAnalysis.getWords();
+    }
+}
@@ -0,0 +1,20 @@
+package cn.zouyijiang.algorithems;
+
+import cn.zouyijiang.algorithems.book.chapter1.EngineMetrics;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 表达式引擎指标。spring.jmx.enabled=true时作为MXBean暴露,运行时也可以通过JMX的enabled属性开关
+ */
+@Configuration
+public class EngineMetricsConfiguration {
+
+    @Bean
+    public EngineMetrics engineMetrics(@Value("${expr.metrics.enabled:false}") boolean enabled) {
+        EngineMetrics metrics = EngineMetrics.getInstance();
+        metrics.setEnabled(enabled);
+        return metrics;
+    }
+}
@@ -0,0 +1,28 @@
+package cn.zouyijiang.algorithems;
+
+import cn.zouyijiang.algorithems.book.chapter1.ExprRegistry;
+import cn.zouyijiang.algorithems.server.EvalServer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * 本机计算服务,expr.server.enabled=true时随应用启动。压测用EvalLoadClient
+ */
+@Configuration
+@ConditionalOnProperty(name = "expr.server.enabled", havingValue = "true")
+public class EvalServerConfiguration {
+
+    @Bean
+    public ExprRegistry exprRegistry() {
+        return new ExprRegistry();
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "close")
+    public EvalServer evalServer(ExprRegistry exprRegistry,
+                                 @Value("${expr.server.port:7070}") int port,
+                                 @Value("${expr.server.worker-threads:0}") int workerThreads) {
+        return new EvalServer(exprRegistry, port, workerThreads > 0 ? workerThreads : EvalServer.DEFAULT_WORKER_THREADS);
+    }
+}
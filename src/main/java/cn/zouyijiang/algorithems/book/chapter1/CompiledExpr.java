@@ -0,0 +1,297 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.Expr;
+import lombok.Getter;
+
+import java.lang.invoke.MethodHandle;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 编译好的表达式,不可变,可以多线程共享。
+ * 计算时传入槽位数组(frame),包括变量槽位和内联函数参数的隐藏槽位,用newFrame()创建。
+ * eval用BigDecimal精确计算,evalDouble用double计算,evalFixed用定点数计算,double和定点数的MethodHandle第一次使用时生成
+ */
+public class CompiledExpr {
+
+    @Getter
+    private final Expr expr;
+    @Getter
+    private final CompiledNode root;
+    // 所有槽位的名称,隐藏槽位形如:函数名.参数名#槽位
+    private final String[] slotNames;
+    // 变量名 -> 槽位
+    private final Map<String, Integer> varSlots;
+    // 内联的函数,任何一个重新定义都要重新编译
+    @Getter
+    private final Set<String> funcNames;
+    // 赋值前就读取的变量,计算前必须有值
+    @Getter
+    private final Set<String> inputNames;
+    // 被赋值的变量
+    @Getter
+    private final Set<String> assignNames;
+    // 优化去掉的节点数,包括解析后的折叠化简和编译时的公共子表达式
+    @Getter
+    private final int removedNodes;
+    // 节点数和读槽位的节点数,用于指标统计
+    @Getter
+    private final int nodeCount;
+    @Getter
+    private final int loadCount;
+    private final ExprCompiler compiler;
+    private final MethodHandle decimalHandle;
+    private volatile MethodHandle doubleHandle;
+    private volatile MethodHandle fixedHandle;
+    private volatile MethodHandle scaledDecimalHandle;
+
+    CompiledExpr(ExprCompiler compiler, Expr expr, CompiledNode root, List<String> slotNames, Map<String, Integer> varSlots,
+                 Set<String> funcNames, Set<String> inputNames, Set<String> assignNames, int removedNodes,
+                 MethodHandle decimalHandle) {
+        this.compiler = compiler;
+        this.expr = expr;
+        this.root = root;
+        this.slotNames = slotNames.toArray(new String[0]);
+        this.varSlots = Collections.unmodifiableMap(new LinkedHashMap<>(varSlots));
+        this.funcNames = Collections.unmodifiableSet(new LinkedHashSet<>(funcNames));
+        this.inputNames = Collections.unmodifiableSet(new LinkedHashSet<>(inputNames));
+        this.assignNames = Collections.unmodifiableSet(new LinkedHashSet<>(assignNames));
+        this.removedNodes = removedNodes;
+        this.nodeCount = count(root, false);
+        this.loadCount = count(root, true);
+        this.decimalHandle = decimalHandle;
+    }
+
+    private static int count(CompiledNode root, boolean loadOnly) {
+        int count = 0;
+        for (CompiledNode node : CompiledNode.preorder(root)) {
+            if (!loadOnly || node.getKind() == CompiledNode.Kind.LOAD) count++;
+        }
+        return count;
+    }
+
+    public int getFrameSize() {
+        return slotNames.length;
+    }
+
+    public List<String> getVarNames() {
+        return new ArrayList<>(varSlots.keySet());
+    }
+
+    public String getSlotName(int slot) {
+        return slotNames[slot];
+    }
+
+    /**
+     * @return 变量的槽位,不存在返回-1
+     */
+    public int slotOf(String varName) {
+        Integer slot = varSlots.get(varName);
+        return slot == null ? -1 : slot;
+    }
+
+    public BigDecimal[] newFrame() {
+        return new BigDecimal[slotNames.length];
+    }
+
+    /**
+     * 从变量表填充槽位
+     */
+    public BigDecimal[] newFrame(Map<String, BigDecimal> varMap) {
+        BigDecimal[] frame = newFrame();
+        for (Map.Entry<String, Integer> entry : varSlots.entrySet()) {
+            frame[entry.getValue()] = varMap.get(entry.getKey());
+        }
+        return frame;
+    }
+
+    public double[] newDoubleFrame() {
+        return new double[slotNames.length];
+    }
+
+    /**
+     * 从变量表填充槽位,输入变量不存在时报错
+     */
+    public double[] newDoubleFrame(Map<String, BigDecimal> varMap) {
+        double[] frame = newDoubleFrame();
+        for (Map.Entry<String, Integer> entry : varSlots.entrySet()) {
+            BigDecimal val = varMap.get(entry.getKey());
+            if (val != null) {
+                frame[entry.getValue()] = val.doubleValue();
+            } else if (inputNames.contains(entry.getKey())) {
+                throw new IllegalArgumentException("找不到变量:" + entry.getKey());
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * 从变量表填充定点数槽位,多余的小数位按舍入方式舍入
+     *
+     * @throws ArithmeticException 变量超出定点数范围
+     */
+    public long[] newFixedFrame(Map<String, BigDecimal> varMap) {
+        long[] frame = new long[slotNames.length];
+        int scale = compiler.getScale();
+        for (Map.Entry<String, Integer> entry : varSlots.entrySet()) {
+            BigDecimal val = varMap.get(entry.getKey());
+            if (val != null) {
+                frame[entry.getValue()] = FixedPoint.toFixed(val, scale, compiler.getRoundingMode());
+            } else if (inputNames.contains(entry.getKey())) {
+                throw new IllegalArgumentException("找不到变量:" + entry.getKey());
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * 从变量表填充BigDecimal槽位,值按scale舍入,用于定点数溢出后重新计算
+     */
+    public BigDecimal[] newScaledFrame(Map<String, BigDecimal> varMap) {
+        BigDecimal[] frame = newFrame(varMap);
+        for (int i = 0; i < frame.length; i++) {
+            if (frame[i] != null) frame[i] = frame[i].setScale(compiler.getScale(), compiler.getRoundingMode());
+        }
+        return frame;
+    }
+
+    /**
+     * 计算,赋值语句的结果写回frame对应的槽位
+     *
+     * @param frame 长度不小于getFrameSize()
+     */
+    public BigDecimal eval(BigDecimal[] frame) {
+        if (frame.length < slotNames.length) {
+            throw new IllegalArgumentException("槽位数组长度不足:" + frame.length + "<" + slotNames.length);
+        }
+        try {
+            return (BigDecimal) decimalHandle.invokeExact(frame);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 用double计算,赋值语句的结果写回frame对应的槽位。
+     * 和BigDecimal的区别:除法不按scale舍入,除以0得到Infinity/NaN而不是报错
+     *
+     * @param frame 长度不小于getFrameSize()
+     */
+    public double evalDouble(double[] frame) {
+        if (frame.length < slotNames.length) {
+            throw new IllegalArgumentException("槽位数组长度不足:" + frame.length + "<" + slotNames.length);
+        }
+        MethodHandle handle = doubleHandle;
+        if (handle == null) {
+            doubleHandle = handle = compiler.doubleHandle(root);
+        }
+        try {
+            return (double) handle.invokeExact(frame);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 用定点数计算,值是乘以10^scale的long,乘除的结果按scale舍入。赋值语句的结果写回frame对应的槽位
+     *
+     * @throws ArithmeticException 溢出或除以0,可以用evalScaled重新计算
+     */
+    public long evalFixed(long[] frame) {
+        if (frame.length < slotNames.length) {
+            throw new IllegalArgumentException("槽位数组长度不足:" + frame.length + "<" + slotNames.length);
+        }
+        MethodHandle handle = fixedHandle;
+        if (handle == null) {
+            fixedHandle = handle = compiler.fixedHandle(root);
+        }
+        try {
+            return (long) handle.invokeExact(frame);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 用BigDecimal按定点数的舍入规则计算,结果和evalFixed一致但不会溢出
+     *
+     * @param frame 用newScaledFrame创建
+     */
+    public BigDecimal evalScaled(BigDecimal[] frame) {
+        if (frame.length < slotNames.length) {
+            throw new IllegalArgumentException("槽位数组长度不足:" + frame.length + "<" + slotNames.length);
+        }
+        MethodHandle handle = scaledDecimalHandle;
+        if (handle == null) {
+            scaledDecimalHandle = handle = compiler.scaledDecimalHandle(root);
+        }
+        try {
+            return (BigDecimal) handle.invokeExact(frame);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * 逐行计算[from,to):每行从template复制槽位,把各列的值写入对应槽位后计算,结果写入out。
+     * 整个区间只分配一个frame,每行不分配对象
+     *
+     * @param template 不来自列的变量的值
+     * @param slots    每一列对应的槽位
+     */
+    public void evalRows(BigDecimal[] template, int[] slots, BigDecimal[][] columns, BigDecimal[] out, int from, int to) {
+        BigDecimal[] frame = template.clone();
+        boolean reset = !assignNames.isEmpty();
+        for (int row = from; row < to; row++) {
+            if (reset) System.arraycopy(template, 0, frame, 0, frame.length);
+            for (int i = 0; i < slots.length; i++) {
+                frame[slots[i]] = columns[i][row];
+            }
+            out[row] = eval(frame);
+        }
+    }
+
+    public void evalDoubleRows(double[] template, int[] slots, double[][] columns, double[] out, int from, int to) {
+        double[] frame = template.clone();
+        boolean reset = !assignNames.isEmpty();
+        MethodHandle handle = doubleHandle;
+        if (handle == null) {
+            doubleHandle = handle = compiler.doubleHandle(root);
+        }
+        if (frame.length < slotNames.length) {
+            throw new IllegalArgumentException("槽位数组长度不足:" + frame.length + "<" + slotNames.length);
+        }
+        try {
+            for (int row = from; row < to; row++) {
+                if (reset) System.arraycopy(template, 0, frame, 0, frame.length);
+                for (int i = 0; i < slots.length; i++) {
+                    frame[slots[i]] = columns[i][row];
+                }
+                out[row] = (double) handle.invokeExact(frame);
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CompiledExpr[" + varSlots + "]:" + root;
+    }
+}
@@ -0,0 +1,198 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import lombok.Getter;
+
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * 编译后的节点:变量已解析为槽位,表达式函数的调用已内联,Java函数保留为CALL节点
+ */
+@Getter
+public class CompiledNode {
+
+    public enum Kind {
+        CONST, // 常量
+        LOAD, // 读槽位
+        STORE, // 写槽位,返回写入的值
+        OPERATOR, // 二元操作符
+        SEQ, // 顺序执行,返回最后一个值
+        CALL, // 调用Java函数,子节点是参数
+        COND; // 条件:第一个子节点非0时计算第二个,否则计算第三个
+    }
+
+    private final Kind kind;
+    private final String token;
+    private final BigDecimal constant;
+    private final int slot;
+    private final CompiledNode[] children;
+    private final NativeFunction function;
+
+    private CompiledNode(Kind kind, String token, BigDecimal constant, int slot, CompiledNode[] children, NativeFunction function) {
+        this.kind = kind;
+        this.token = token;
+        this.constant = constant;
+        this.slot = slot;
+        this.children = children;
+        this.function = function;
+    }
+
+    private CompiledNode(Kind kind, String token, BigDecimal constant, int slot, CompiledNode[] children) {
+        this(kind, token, constant, slot, children, null);
+    }
+
+    public static CompiledNode constant(BigDecimal val) {
+        return new CompiledNode(Kind.CONST, val.toString(), val, -1, new CompiledNode[0]);
+    }
+
+    public static CompiledNode load(String name, int slot) {
+        return new CompiledNode(Kind.LOAD, name, null, slot, new CompiledNode[0]);
+    }
+
+    public static CompiledNode store(String name, int slot, CompiledNode value) {
+        return new CompiledNode(Kind.STORE, name, null, slot, new CompiledNode[]{value});
+    }
+
+    public static CompiledNode operator(String token, CompiledNode left, CompiledNode right) {
+        return new CompiledNode(Kind.OPERATOR, token, null, -1, new CompiledNode[]{left, right});
+    }
+
+    public static CompiledNode seq(CompiledNode... children) {
+        return new CompiledNode(Kind.SEQ, "()", null, -1, children);
+    }
+
+    public static CompiledNode cond(CompiledNode test, CompiledNode then, CompiledNode otherwise) {
+        return new CompiledNode(Kind.COND, "?", null, -1, new CompiledNode[]{test, then, otherwise});
+    }
+
+    public static CompiledNode call(NativeFunction function, CompiledNode... args) {
+        return new CompiledNode(Kind.CALL, function.getName(), null, -1, args, function);
+    }
+
+    /**
+     * 子节点换成children的新节点,子节点都没变时返回自己
+     */
+    CompiledNode withChildren(CompiledNode[] children) {
+        boolean same = children.length == this.children.length;
+        for (int i = 0; same && i < children.length; i++) {
+            same = children[i] == this.children[i];
+        }
+        return same ? this : new CompiledNode(kind, token, constant, slot, children, function);
+    }
+
+    /**
+     * 先序遍历
+     */
+    static Iterable<CompiledNode> preorder(CompiledNode root) {
+        return () -> new Iterator<CompiledNode>() {
+            private final Deque<CompiledNode> stack = new ArrayDeque<>(Collections.singleton(root));
+
+            @Override
+            public boolean hasNext() {
+                return !stack.isEmpty();
+            }
+
+            @Override
+            public CompiledNode next() {
+                CompiledNode node = stack.pop();
+                for (int i = node.children.length - 1; i >= 0; i--) {
+                    stack.push(node.children[i]);
+                }
+                return node;
+            }
+        };
+    }
+
+    /**
+     * 自底向上转换,和Evaluate.transform一样用显式的栈,深度不受线程栈大小限制
+     *
+     * @param children    要转换的子节点,不在其中的子节点不处理
+     * @param transformer 节点和它的子节点转换后的结果 -> 节点的结果
+     */
+    static <T> T transform(CompiledNode root, Function<CompiledNode, CompiledNode[]> children,
+                           BiFunction<CompiledNode, List<T>, T> transformer) {
+        Deque<CompiledNode> nodes = new ArrayDeque<>();
+        Deque<CompiledNode[]> childArrays = new ArrayDeque<>();
+        // 下一个要处理的子节点
+        Deque<int[]> indexes = new ArrayDeque<>();
+        List<T> results = new ArrayList<>();
+        nodes.push(root);
+        childArrays.push(children.apply(root));
+        indexes.push(new int[1]);
+        while (!nodes.isEmpty()) {
+            CompiledNode[] childArray = childArrays.peek();
+            int[] index = indexes.peek();
+            if (index[0] < childArray.length) {
+                CompiledNode child = childArray[index[0]++];
+                nodes.push(child);
+                childArrays.push(children.apply(child));
+                indexes.push(new int[1]);
+                continue;
+            }
+            childArrays.pop();
+            indexes.pop();
+            List<T> childResults = results.subList(results.size() - childArray.length, results.size());
+            T result = transformer.apply(nodes.pop(), new ArrayList<>(childResults));
+            childResults.clear();
+            results.add(result);
+        }
+        return results.get(0);
+    }
+
+    @Override
+    public String toString() {
+        // 栈里是待输出的节点和字符串,倒序入栈
+        StringBuilder sb = new StringBuilder();
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            Object item = stack.pop();
+            if (!(item instanceof CompiledNode)) {
+                sb.append(item);
+                continue;
+            }
+            CompiledNode node = (CompiledNode) item;
+            CompiledNode[] children = node.children;
+            switch (node.kind) {
+                case CONST:
+                    sb.append(node.token);
+                    break;
+                case LOAD:
+                    sb.append(node.token).append('@').append(node.slot);
+                    break;
+                case STORE:
+                    pushAll(stack, "(" + node.token + "@" + node.slot + "=", children[0], ")");
+                    break;
+                case OPERATOR:
+                    pushAll(stack, "(", children[0], node.token, children[1], ")");
+                    break;
+                case COND:
+                    pushAll(stack, "(", children[0], "?", children[1], ":", children[2], ")");
+                    break;
+                default:
+                    List<Object> items = new ArrayList<>();
+                    items.add(node.kind == Kind.CALL ? node.token + "(" : "{");
+                    for (int i = 0; i < children.length; i++) {
+                        if (i > 0) items.add(",");
+                        items.add(children[i]);
+                    }
+                    items.add(node.kind == Kind.CALL ? ")" : "}");
+                    pushAll(stack, items.toArray());
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void pushAll(Deque<Object> stack, Object... items) {
+        for (int i = items.length - 1; i >= 0; i--) {
+            stack.push(items[i]);
+        }
+    }
+}
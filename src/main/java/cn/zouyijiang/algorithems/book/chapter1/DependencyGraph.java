@@ -0,0 +1,154 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.Node;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 赋值变量之间的依赖关系:被赋值的变量 -> 公式(赋值右侧的表达式)和公式读取的变量。
+ * 加入公式时检查循环依赖,变量变化时按拓扑顺序给出需要重新计算的下游变量。
+ * 深度优先遍历都用显式的栈,依赖链的长度不受线程栈大小限制
+ */
+class DependencyGraph {
+
+    static class Formula {
+        final String target;
+        final Node value;
+        final Set<String> deps;
+
+        Formula(String target, Node value, Set<String> deps) {
+            this.target = target;
+            this.value = value;
+            this.deps = deps;
+        }
+    }
+
+    private final Map<String, Formula> formulas = new HashMap<>();
+    // 变量 -> 读取它的公式的赋值变量
+    private final Map<String, Set<String>> dependents = new HashMap<>();
+
+    Formula getFormula(String target) {
+        return formulas.get(target);
+    }
+
+    /**
+     * 加入或替换公式,产生循环依赖时报错且不修改
+     */
+    void put(String target, Node value, Set<String> deps) {
+        LinkedList<String> path = new LinkedList<>();
+        for (String dep : deps) {
+            if (findPath(dep, target, path, new HashSet<>())) {
+                path.addFirst(target);
+                throw new IllegalArgumentException("循环依赖:" + String.join("->", path));
+            }
+        }
+        remove(target);
+        formulas.put(target, new Formula(target, value, deps));
+        for (String dep : deps) {
+            dependents.computeIfAbsent(dep, it -> new LinkedHashSet<>()).add(target);
+        }
+    }
+
+    // from是否(间接)依赖to,path记录依赖路径
+    private boolean findPath(String from, String to, LinkedList<String> path, Set<String> visited) {
+        // 路径上每个变量还没检查的依赖,栈底是from自己
+        Deque<Iterator<String>> stack = new ArrayDeque<>();
+        stack.push(Collections.singleton(from).iterator());
+        while (!stack.isEmpty()) {
+            Iterator<String> deps = stack.peek();
+            if (!deps.hasNext()) {
+                stack.pop();
+                if (!stack.isEmpty()) path.removeLast();
+                continue;
+            }
+            String name = deps.next();
+            path.addLast(name);
+            if (name.equals(to)) return true;
+            Formula formula = formulas.get(name);
+            if (formula != null && visited.add(name)) {
+                stack.push(formula.deps.iterator());
+            } else {
+                path.removeLast();
+            }
+        }
+        return false;
+    }
+
+    Formula remove(String target) {
+        Formula formula = formulas.remove(target);
+        if (formula != null) {
+            for (String dep : formula.deps) {
+                Set<String> set = dependents.get(dep);
+                if (set != null) set.remove(target);
+            }
+        }
+        return formula;
+    }
+
+    void clear() {
+        formulas.clear();
+        dependents.clear();
+    }
+
+    int size() {
+        return formulas.size();
+    }
+
+    /**
+     * 这些变量变化后需要重新计算的变量,按拓扑顺序(被依赖的在前)。
+     * 变化的变量本身不重新计算,除非它在另一个变化的变量的下游
+     */
+    List<String> downstream(Set<String> names) {
+        List<String> order = new ArrayList<>();
+        Set<String> visited = new HashSet<>();
+        // 从某个变化的变量沿依赖能到达的变量
+        Set<String> reached = new HashSet<>();
+        for (String name : names) {
+            if (visited.add(name)) {
+                visit(name, visited, reached, order);
+            }
+        }
+        order.removeIf(name -> names.contains(name) && !reached.contains(name));
+        Collections.reverse(order);
+        return order;
+    }
+
+    // 深度优先,所有下游都加入后再加入自己,反转后就是拓扑顺序
+    private void visit(String name, Set<String> visited, Set<String> reached, List<String> order) {
+        // 正在访问的变量和它还没访问的下游
+        Deque<String> names = new ArrayDeque<>();
+        Deque<Iterator<String>> stack = new ArrayDeque<>();
+        names.push(name);
+        stack.push(dependentsOf(name));
+        while (!stack.isEmpty()) {
+            Iterator<String> iterator = stack.peek();
+            if (iterator.hasNext()) {
+                String dependent = iterator.next();
+                reached.add(dependent);
+                if (visited.add(dependent)) {
+                    names.push(dependent);
+                    stack.push(dependentsOf(dependent));
+                }
+            } else {
+                stack.pop();
+                order.add(names.pop());
+            }
+        }
+    }
+
+    private Iterator<String> dependentsOf(String name) {
+        Set<String> set = dependents.get(name);
+        return set == null ? Collections.emptyIterator() : set.iterator();
+    }
+}
@@ -0,0 +1,200 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 表达式引擎的指标:各阶段耗时直方图和出错次数,计算的节点数、函数调用、变量查找,词法分析的token数。
+ * 默认关闭,关闭时start()不读时钟,其余记录方法直接返回。
+ * 全局一个实例,用法:
+ * <pre>
+ * long start = metrics.start();
+ * ...
+ * metrics.record(Stage.PARSE, start);
+ * </pre>
+ */
+public class EngineMetrics implements EngineMetricsMXBean {
+
+    public enum Stage {
+        LEX, // 词法分析
+        GRAMMAR, // 语法分析
+        PARSE, // 表达式解析
+        COMPILE, // 编译
+        EVAL; // 计算
+    }
+
+    // 关闭时start()的返回值
+    public static final long DISABLED = Long.MIN_VALUE;
+
+    private static final EngineMetrics instance = new EngineMetrics();
+
+    private volatile boolean enabled = false;
+    private final Map<Stage, LatencyHistogram> latencies = new EnumMap<>(Stage.class);
+    private final Map<Stage, LongAdder> errors = new EnumMap<>(Stage.class);
+    private final LongAdder nodesEvaluated = new LongAdder();
+    private final LongAdder functionCalls = new LongAdder();
+    private final LongAdder varLookups = new LongAdder();
+    private final LongAdder tokensLexed = new LongAdder();
+
+    private EngineMetrics() {
+        for (Stage stage : Stage.values()) {
+            latencies.put(stage, new LatencyHistogram());
+            errors.put(stage, new LongAdder());
+        }
+    }
+
+    public static EngineMetrics getInstance() {
+        return instance;
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return 开始时间,关闭时返回DISABLED
+     */
+    public long start() {
+        return enabled ? System.nanoTime() : DISABLED;
+    }
+
+    public void record(Stage stage, long start) {
+        if (start == DISABLED) return;
+        latencies.get(stage).record(System.nanoTime() - start);
+    }
+
+    /**
+     * 记录一次计算的耗时和计算过程中的计数
+     */
+    public void recordEval(long start, long nodes, long calls, long lookups) {
+        if (start == DISABLED) return;
+        latencies.get(Stage.EVAL).record(System.nanoTime() - start);
+        nodesEvaluated.add(nodes);
+        functionCalls.add(calls);
+        varLookups.add(lookups);
+    }
+
+    public void recordLex(long start, int tokens) {
+        if (start == DISABLED) return;
+        latencies.get(Stage.LEX).record(System.nanoTime() - start);
+        tokensLexed.add(tokens);
+    }
+
+    public void error(Stage stage) {
+        if (enabled) errors.get(stage).increment();
+    }
+
+    public LatencyHistogram getLatency(Stage stage) {
+        return latencies.get(stage);
+    }
+
+    public long getErrorCount(Stage stage) {
+        return errors.get(stage).sum();
+    }
+
+    @Override
+    public long getParseCount() {
+        return latencies.get(Stage.PARSE).getCount();
+    }
+
+    @Override
+    public double getParseMeanMicros() {
+        return latencies.get(Stage.PARSE).getMeanNanos() / 1000;
+    }
+
+    @Override
+    public double getParseP50Micros() {
+        return latencies.get(Stage.PARSE).getPercentileNanos(50) / 1000.0;
+    }
+
+    @Override
+    public double getParseP99Micros() {
+        return latencies.get(Stage.PARSE).getPercentileNanos(99) / 1000.0;
+    }
+
+    @Override
+    public long getEvalCount() {
+        return latencies.get(Stage.EVAL).getCount();
+    }
+
+    @Override
+    public double getEvalMeanMicros() {
+        return latencies.get(Stage.EVAL).getMeanNanos() / 1000;
+    }
+
+    @Override
+    public double getEvalP50Micros() {
+        return latencies.get(Stage.EVAL).getPercentileNanos(50) / 1000.0;
+    }
+
+    @Override
+    public double getEvalP99Micros() {
+        return latencies.get(Stage.EVAL).getPercentileNanos(99) / 1000.0;
+    }
+
+    @Override
+    public long getNodesEvaluated() {
+        return nodesEvaluated.sum();
+    }
+
+    @Override
+    public long getFunctionCalls() {
+        return functionCalls.sum();
+    }
+
+    @Override
+    public long getVarLookups() {
+        return varLookups.sum();
+    }
+
+    @Override
+    public long getTokensLexed() {
+        return tokensLexed.sum();
+    }
+
+    // 按词法分析实际耗时算,不是墙上时间
+    @Override
+    public double getTokensLexedPerSecond() {
+        long nanos = latencies.get(Stage.LEX).getTotalNanos();
+        return nanos == 0 ? 0 : tokensLexed.sum() * 1e9 / nanos;
+    }
+
+    @Override
+    public Map<String, Long> getErrorCounts() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        errors.forEach((stage, count) -> map.put(stage.name(), count.sum()));
+        return map;
+    }
+
+    @Override
+    public Map<String, String> getLatencySummary() {
+        Map<String, String> map = new LinkedHashMap<>();
+        latencies.forEach((stage, histogram) -> map.put(stage.name(), histogram.toString()));
+        return map;
+    }
+
+    @Override
+    public void reset() {
+        latencies.values().forEach(LatencyHistogram::reset);
+        errors.values().forEach(LongAdder::reset);
+        nodesEvaluated.reset();
+        functionCalls.reset();
+        varLookups.reset();
+        tokensLexed.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "EngineMetrics[enabled=" + enabled + ",latency=" + getLatencySummary() + ",errors=" + getErrorCounts()
+                + ",nodes=" + getNodesEvaluated() + ",calls=" + getFunctionCalls() + ",lookups=" + getVarLookups()
+                + ",tokens=" + getTokensLexed() + "]";
+    }
+}
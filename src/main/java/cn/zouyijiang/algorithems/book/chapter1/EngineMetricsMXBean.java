@@ -0,0 +1,51 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import java.util.Map;
+
+/**
+ * 通过JMX查看的表达式引擎指标,耗时单位是微秒
+ */
+public interface EngineMetricsMXBean {
+
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    long getParseCount();
+
+    double getParseMeanMicros();
+
+    double getParseP50Micros();
+
+    double getParseP99Micros();
+
+    long getEvalCount();
+
+    double getEvalMeanMicros();
+
+    double getEvalP50Micros();
+
+    double getEvalP99Micros();
+
+    long getNodesEvaluated();
+
+    long getFunctionCalls();
+
+    long getVarLookups();
+
+    long getTokensLexed();
+
+    double getTokensLexedPerSecond();
+
+    /**
+     * 阶段 -> 出错次数
+     */
+    Map<String, Long> getErrorCounts();
+
+    /**
+     * 阶段 -> 耗时统计(次数、平均、p50、p99、最大)
+     */
+    Map<String, String> getLatencySummary();
+
+    void reset();
+}
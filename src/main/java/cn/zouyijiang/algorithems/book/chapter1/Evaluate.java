@@ -2,29 +2,33 @@ package cn.zouyijiang.algorithems.book.chapter1;
 
 import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 
 import java.math.BigDecimal;
 import java.math.RoundingMode;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Deque;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
 import java.util.function.Consumer;
 import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.function.Supplier;
 
 @Slf4j
 public class Evaluate {
@@ -44,6 +48,16 @@ public class Evaluate {
         private final String name;
     }
 
+    @Getter
+    @AllArgsConstructor
+    public enum NumberMode {
+        DECIMAL("BigDecimal精确计算"),
+        DOUBLE("double浮点计算"), // 不装箱,除法不按scale舍入,结果是Infinity或NaN时不能转成BigDecimal
+        FIXED("定点数计算"); // long乘以10^scale,乘除都按scale舍入,溢出时改用BigDecimal
+
+        private final String name;
+    }
+
     @AllArgsConstructor
     @NoArgsConstructor
     @Data
@@ -53,6 +67,14 @@ public class Evaluate {
         private int rowBegin;
         private int rowEnd;
         private List<Node> children;
+        // NUMBER节点解析时就转换好的数值
+        private BigDecimal value;
+        // VAR节点在所属表达式参数中的槽位,-1表示不是参数
+        @EqualsAndHashCode.Exclude
+        private int slot = -1;
+        // FUNCTION节点解析时绑定的Java函数,null表示表达式函数或者解析时还没有定义
+        @EqualsAndHashCode.Exclude
+        private NativeFunction nativeFunction;
 
 //        private List<String> varNames;
 //        private Node left;
@@ -69,6 +91,20 @@ public class Evaluate {
             this.rowBegin = rowBegin;
             this.rowEnd = rowEnd;
         }
+
+        public static Node number(BigDecimal value, int rowBegin, int rowEnd) {
+            Node node = new Node(NodeType.NUMBER, value.toString(), rowBegin, rowEnd);
+            node.setValue(value);
+            return node;
+        }
+
+        // NUMBER节点的数值,不是解析器生成的节点才需要转换
+        public BigDecimal getNumber() {
+            if (value == null) {
+                value = new BigDecimal(token);
+            }
+            return value;
+        }
     }
 
     @Data
@@ -76,6 +112,22 @@ public class Evaluate {
         private String exprText;
         private String name;
         private List<String> argNames;
+        // 优化时去掉的节点数
+        private int removedNodes;
+
+        /**
+         * 作为函数调用时计算的部分:abc=...形式的定义只计算赋值的右侧,调用函数不给函数名赋值
+         */
+        public Node getBody() {
+            List<Node> children = getChildren();
+            if (name != null && children != null && children.size() == 1 && children.get(0).getType() == NodeType.ASSIGN) {
+                Node assignNode = children.get(0);
+                if (name.equals(assignNode.getChildren().get(0).getToken())) {
+                    return assignNode.getChildren().get(1);
+                }
+            }
+            return this;
+        }
 
         public Expr(NodeType type, String token, String extrText) {
             super(type, token, 0, extrText.length());
@@ -88,149 +140,1167 @@ public class Evaluate {
     @AllArgsConstructor
     private static class Operator {
         private String token;
-        private int level;
+        private int level; // 越小优先级越高
         private int leftArgNum;
         private int rightArgNum;
+        private boolean rightAssoc; // 是否右结合
     }
 
-    private static final boolean[] symbols_all = new boolean[128];
-    private static final boolean[] symbols_number = new boolean[128];
-    private static final boolean[] symbols_float = new boolean[128];
-    private static final boolean[] symbols_letter = new boolean[128];
-    private static final boolean[] symbols_operator = new boolean[128];
-    private static final boolean[] symbols_bracket = new boolean[128];
-    private static final boolean[] symbols_var_start = new boolean[128];
-    private static final boolean[] symbols_var_name = new boolean[128];
-    private static final boolean[] symbols_assign = new boolean[128];
-    private static final boolean[] symbols_end = new boolean[128];
-
     private static final Map<String, Operator> token2Operator = new LinkedHashMap<>();
 
     private static final Set<String> specialTokens = new HashSet<>(Arrays.asList("+", "-"));
 
+    // 最低的优先级
+    private static final int maxOperatorLevel = 8;
+
     static {
-        for (int i = 0; i < symbols_all.length; i++) {
-            // 数字
-            symbols_number[i] = i >= '0' && i <= '9';
-            symbols_float[i] = symbols_number[i] || i == '.';
-            // 字母
-            symbols_letter[i] = (i >= 'a' && i <= 'z') || (i >= 'A' && i <= 'Z');
-            // 操作符
-            symbols_operator[i] = i == '+' || i == '-' || i == '*' || i == '/' || i == '^';
-            // 括号
-            symbols_bracket[i] = i == '(' || i == ')';
-            // 变量前缀
-            symbols_var_start[i] = symbols_letter[i] || i == '_' || i == '$';
-            // 变量名称
-            symbols_var_name[i] = symbols_number[i] || symbols_var_start[i];
-            // 赋值
-            symbols_assign[i] = i == '=';
-            symbols_end[i] = i == ';';
-            // 所有有效字符
-            symbols_all[i] = symbols_number[i] || symbols_float[i]
-                    || symbols_letter[i] || symbols_operator[i] || symbols_bracket[i]
-                    || symbols_var_start[i] || symbols_var_name[i]
-                    || symbols_assign[i] || symbols_end[i];
-
-            Arrays.asList(
-                    new Operator("+", 2, 1, 1),
-                    new Operator("-", 2, 1, 1),
-                    new Operator("*", 1, 1, 1),
-                    new Operator("/", 1, 1, 1),
-                    new Operator("^", 0, 1, 1),
-                    new Operator("=", 0, 1, 1)
-            ).forEach(it -> token2Operator.put(it.getToken(), it));
-        }
-    }
-
-    private final int scale;
-    private final RoundingMode roundingMode;
-    private final Map<String, Function<List<BigDecimal>, BigDecimal>> token2Func;
-    // 变量
-    private final Map<String, BigDecimal> varMap;
-    // 函数表达式
-    private final Map<String, Expr> exprMap;
+        Arrays.asList(
+                new Operator("+", 2, 1, 1, false),
+                new Operator("-", 2, 1, 1, false),
+                new Operator("*", 1, 1, 1, false),
+                new Operator("/", 1, 1, 1, false),
+                new Operator("^", 0, 1, 1, false),
+                // 比较的结果是1或0,逻辑运算把非0当作真
+                new Operator("<", 3, 1, 1, false),
+                new Operator("<=", 3, 1, 1, false),
+                new Operator(">", 3, 1, 1, false),
+                new Operator(">=", 3, 1, 1, false),
+                new Operator("==", 4, 1, 1, false),
+                new Operator("!=", 4, 1, 1, false),
+                new Operator("&&", 5, 1, 1, false),
+                new Operator("||", 6, 1, 1, false),
+                new Operator("?", 7, 1, 2, true), // a?b:c,右侧两个参数
+                new Operator("=", 8, 1, 1, true)
+        ).forEach(it -> token2Operator.put(it.getToken(), it));
+    }
 
-    public Evaluate(int scale, RoundingMode roundingMode) {
-        this.scale = scale;
-        this.roundingMode = roundingMode;
+    /**
+     * 短路求值的操作符:&&、||和?:,没有用到的参数不计算
+     */
+    static boolean isLazyOperator(String token) {
+        return "&&".equals(token) || "||".equals(token) || "?".equals(token);
+    }
+
+    /**
+     * double结果转成BigDecimal。Infinity和NaN没有对应的BigDecimal,抛出ArithmeticException
+     */
+    static BigDecimal toDecimal(double value) {
+        if (!Double.isFinite(value)) {
+            throw new ArithmeticException("计算结果不是有限的数:" + value);
+        }
+        return BigDecimal.valueOf(value);
+    }
+
+    // 逻辑运算和条件的真假:非0为真
+    static boolean isTrue(BigDecimal val) {
+        return val.signum() != 0;
+    }
+
+    private static final EngineMetrics metrics = EngineMetrics.getInstance();
+
+    // 函数、缓存和编译器,可以被多个Evaluate共享
+    @Getter
+    private final ExprRegistry registry;
+    @Getter
+    private final NumberMode numberMode;
+    // 变量,只属于当前实例,不要跨线程共享
+    private final Map<String, BigDecimal> varMap;
+    private int tempVarIndex = 0;
+    // 解析时复用的词法分析缓冲区
+    private final ExprTokenizer tokenizer = new ExprTokenizer();
+    // 执行字节码的虚拟机,第一次使用时创建
+    private ExprVM vm;
+    // 解析和解释执行时递归的最大深度,更深的部分用显式栈,普通线程栈大小就够用
+    private static final int RECURSION_LIMIT = 128;
+    // 解释执行和解析的显式栈,复用
+    private final CalcStack calcStack = new CalcStack();
+    private final ParseStack parseStack = new ParseStack();
+    // 响应式模式下记录赋值变量的公式,不是响应式时为null
+    private DependencyGraph dependencyGraph;
+    // 响应式计算过程中被赋值的变量,计算结束后统一重新计算它们的下游
+    private Set<String> assignedNames;
+    // 指标打开时,一次计算中的计数,计算结束后一起记录
+    private boolean counting;
+    private long nodeCount, callCount, lookupCount;
 
-        token2Func = new LinkedHashMap<>();
-        token2Func.put("+", list -> list.get(0).add(list.get(1)));
-        token2Func.put("-", list -> list.get(0).subtract(list.get(1)));
-        token2Func.put("*", list -> list.get(0).multiply(list.get(1)));
-        token2Func.put("/", list -> list.get(0).divide(list.get(1), scale, roundingMode));
-        token2Func.put("^", list -> BigDecimal.valueOf(Math.pow(list.get(0).doubleValue(), list.get(1).doubleValue())));
+    public static final int DEFAULT_CACHE_SIZE = ExprRegistry.DEFAULT_CACHE_SIZE;
+    public static final int DEFAULT_FIXED_SCALE = 6;
 
+    /**
+     * 绑定到共享的注册表,只创建变量表,不重新解析内置函数
+     */
+    public Evaluate(ExprRegistry registry, NumberMode numberMode) {
+        if (numberMode == NumberMode.FIXED) {
+            FixedPoint.factor(registry.getScale());
+        }
+        this.registry = registry;
+        this.numberMode = numberMode;
         varMap = new LinkedHashMap<>();
-        putVar("e", new BigDecimal(Math.E));
-        putVar("pi", new BigDecimal(Math.PI));
+        varMap.putAll(registry.getConstants());
+    }
 
-        exprMap = new LinkedHashMap<>();
-        exprMap.put("area", parseExpr("a*b"));
+    public Evaluate(ExprRegistry registry) {
+        this(registry, NumberMode.DECIMAL);
+    }
+
+    public Evaluate(int scale, RoundingMode roundingMode, int cacheSize, NumberMode numberMode) {
+        this(new ExprRegistry(scale, roundingMode, cacheSize), numberMode);
         log.info("计算器初始化完成...\n");
     }
 
+    public Evaluate(int scale, RoundingMode roundingMode, int cacheSize) {
+        this(scale, roundingMode, cacheSize, NumberMode.DECIMAL);
+    }
+
+    public Evaluate(int scale, RoundingMode roundingMode) {
+        this(scale, roundingMode, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * FIXED模式的scale不能超过18,使用DEFAULT_FIXED_SCALE,其他模式和默认的注册表一样是48
+     */
+    public Evaluate(NumberMode numberMode) {
+        this(numberMode == NumberMode.FIXED ? DEFAULT_FIXED_SCALE : 48, RoundingMode.HALF_UP, DEFAULT_CACHE_SIZE, numberMode);
+    }
+
     public Evaluate() {
-        this(48, RoundingMode.HALF_UP);
+        this(NumberMode.DECIMAL);
+    }
+
+    /**
+     * 带缓存的解析,相同的表达式(忽略多余空白)只解析一次
+     */
+    public Expr parseExprCached(String exprText) {
+        Expr expr = parseCached(exprText);
+        // 缓存里的表达式解析时没有定义函数,这里补上parseExpr定义函数的副作用
+        if (expr.getName() != null && registry.getExpr(expr.getName()) != expr) {
+            registry.defineExpr(expr.getName(), expr);
+        }
+        return expr;
+    }
+
+    // 带缓存的解析,不定义函数
+    private Expr parseCached(String exprText) {
+        return registry.getExprCache().get(normalizeExpr(exprText), it -> {
+            Expr expr = parseExpr(it, false);
+            return registry.isOptimize() ? optimize(expr) : expr;
+        });
+    }
+
+    /**
+     * 常量折叠和化简,返回新的表达式
+     */
+    public Expr optimize(Expr expr) {
+        Expr result = registry.getOptimizer().optimize(expr);
+        if (log.isDebugEnabled()) {
+            log.debug("优化完成,去掉节点:{},{}", result.getRemovedNodes(), exprToStr(result));
+        }
+        return result;
+    }
+
+    public boolean isLegacyParser() {
+        return registry.isLegacyParser();
+    }
+
+    public void setLegacyParser(boolean legacyParser) {
+        registry.setLegacyParser(legacyParser);
+    }
+
+    public ExprCache<Expr> getExprCache() {
+        return registry.getExprCache();
+    }
+
+    public ExprCache<CompiledExpr> getCompiledCache() {
+        return registry.getCompiledCache();
+    }
+
+    /**
+     * 编译成MethodHandle链,结果缓存。函数调用在编译时内联,函数重新定义后缓存失效
+     */
+    public CompiledExpr compile(String exprText) {
+        CompiledExpr compiled = registry.getCompiledCache().get(normalizeExpr(exprText), it -> compile(parseExprCached(it)));
+        Expr expr = compiled.getExpr();
+        if (expr.getName() != null && registry.getExpr(expr.getName()) != expr) {
+            registry.defineExpr(expr.getName(), expr);
+        }
+        return compiled;
+    }
+
+    public CompiledExpr compile(Expr expr) {
+        long start = metrics.start();
+        try {
+            CompiledExpr compiled = registry.getCompiler().compile(expr, registry.isOptimize());
+            metrics.record(EngineMetrics.Stage.COMPILE, start);
+            log.debug("编译完成:{}", compiled);
+            return compiled;
+        } catch (RuntimeException e) {
+            metrics.error(EngineMetrics.Stage.COMPILE);
+            throw e;
+        }
+    }
+
+    /**
+     * 把多个公式合并编译成共享节点的DAG,公式之间可以按名称引用,相同的子表达式每行只计算一次
+     *
+     * @param formulas 公式名 -> 公式,公式不带赋值
+     */
+    public FormulaSet compileFormulas(Map<String, String> formulas) {
+        long start = metrics.start();
+        try {
+            Map<String, Expr> exprs = new LinkedHashMap<>();
+            formulas.forEach((name, text) -> {
+                // 先检查再定义,被拒绝的公式集不修改注册表
+                Expr expr = parseCached(text);
+                if (expr.getName() != null) {
+                    throw new IllegalArgumentException("公式集不支持赋值:" + name + ":" + text);
+                }
+                exprs.put(name, expr);
+            });
+            FormulaSet formulaSet = new FormulaSet(registry, exprs);
+            metrics.record(EngineMetrics.Stage.COMPILE, start);
+            log.debug("编译完成:{}", formulaSet);
+            return formulaSet;
+        } catch (RuntimeException e) {
+            metrics.error(EngineMetrics.Stage.COMPILE);
+            throw e;
+        }
+    }
+
+    /**
+     * 用当前变量计算编译好的表达式,赋值的变量写回变量表。DOUBLE模式下按double计算,FIXED模式下按定点数计算
+     */
+    public BigDecimal evaluate(CompiledExpr compiled) {
+        if (numberMode == NumberMode.DOUBLE) {
+            return toDecimal(evaluateDouble(compiled));
+        } else if (numberMode == NumberMode.FIXED) {
+            return evaluateFixed(compiled);
+        }
+        return measureEval(() -> {
+            addFormulas(compiled.getExpr());
+            return reactive(() -> {
+                BigDecimal[] frame = compiled.newFrame(varMap);
+                BigDecimal result = compiled.eval(frame);
+                countCompiled(compiled);
+                for (String varName : compiled.getAssignNames()) {
+                    // 没有执行的条件分支里的赋值
+                    BigDecimal val = frame[compiled.slotOf(varName)];
+                    if (val != null) assignVar(varName, val);
+                }
+                return result;
+            });
+        });
+    }
+
+    /**
+     * 批量计算:同一个表达式,每个变量一列,第i行的结果写入out[i]。
+     * 没有对应列的变量取当前变量表的值;赋值语句只在行内生效,不写回变量表
+     */
+    public void evaluateBatch(CompiledExpr compiled, Map<String, BigDecimal[]> columns, BigDecimal[] out) {
+        bindBatch(compiled, columns, out.length,
+                (template, slots, columnArray) -> compiled.evalRows(template, slots, columnArray, out, 0, out.length));
+    }
+
+    /**
+     * 按double批量计算,每行不分配对象
+     */
+    public void evaluateBatchDouble(CompiledExpr compiled, Map<String, double[]> columns, double[] out) {
+        bindBatchDouble(compiled, columns, out.length,
+                (template, slots, columnArray) -> compiled.evalDoubleRows(template, slots, columnArray, out, 0, out.length));
+    }
+
+    /**
+     * 绑定好的批量计算
+     *
+     * @param <F> 槽位数组类型
+     * @param <C> 列数组类型
+     */
+    @FunctionalInterface
+    interface BatchRunner<F, C> {
+        void run(F template, int[] slots, C columns);
+    }
+
+    // 把列解析成槽位,不来自列的变量从变量表取值放到template
+    void bindBatch(CompiledExpr compiled, Map<String, BigDecimal[]> columns, int rowNum,
+                   BatchRunner<BigDecimal[], BigDecimal[][]> runner) {
+        List<String> names = batchColumnNames(compiled, columns.keySet(), rowNum, it -> columns.get(it).length);
+        int[] slots = new int[names.size()];
+        BigDecimal[][] columnArray = new BigDecimal[names.size()][];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = compiled.slotOf(names.get(i));
+            columnArray[i] = columns.get(names.get(i));
+        }
+        runner.run(compiled.newFrame(varMap), slots, columnArray);
+    }
+
+    void bindBatchDouble(CompiledExpr compiled, Map<String, double[]> columns, int rowNum,
+                         BatchRunner<double[], double[][]> runner) {
+        List<String> names = batchColumnNames(compiled, columns.keySet(), rowNum, it -> columns.get(it).length);
+        int[] slots = new int[names.size()];
+        double[][] columnArray = new double[names.size()][];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = compiled.slotOf(names.get(i));
+            columnArray[i] = columns.get(names.get(i));
+        }
+        double[] template = compiled.newDoubleFrame();
+        for (String varName : compiled.getVarNames()) {
+            BigDecimal val = varMap.get(varName);
+            if (val != null && !names.contains(varName)) template[compiled.slotOf(varName)] = val.doubleValue();
+        }
+        runner.run(template, slots, columnArray);
+    }
+
+    // 表达式用到的列,检查列的长度,以及输入变量都有值
+    private List<String> batchColumnNames(CompiledExpr compiled, Set<String> columnNames, int rowNum, Function<String, Integer> lengthOf) {
+        List<String> names = new ArrayList<>();
+        for (String name : columnNames) {
+            if (compiled.slotOf(name) < 0) continue;
+            if (lengthOf.apply(name) < rowNum) {
+                throw new IllegalArgumentException("列的行数不足:" + name + "," + lengthOf.apply(name) + "<" + rowNum);
+            }
+            names.add(name);
+        }
+        for (String name : compiled.getInputNames()) {
+            if (!columnNames.contains(name) && !varMap.containsKey(name)) {
+                throw new IllegalArgumentException("找不到变量:" + name);
+            }
+        }
+        return names;
+    }
+
+    public double evaluateDouble(String exprText) {
+        return evaluateDouble(compile(exprText));
+    }
+
+    /**
+     * 按double计算编译好的表达式,与实例的NumberMode无关。
+     * 除以0和溢出时结果是Infinity或NaN;赋值写回变量表的值不是有限的数时抛出ArithmeticException
+     */
+    public double evaluateDouble(CompiledExpr compiled) {
+        return measureEval(() -> {
+            addFormulas(compiled.getExpr());
+            return reactive(() -> {
+                double[] frame = compiled.newDoubleFrame(varMap);
+                double result = compiled.evalDouble(frame);
+                countCompiled(compiled);
+                for (String varName : compiled.getAssignNames()) {
+                    double value = frame[compiled.slotOf(varName)];
+                    if (!Double.isFinite(value)) {
+                        throw new ArithmeticException("赋值结果不是有限的数:" + varName + "=" + value);
+                    }
+                    assignVar(varName, BigDecimal.valueOf(value));
+                }
+                return result;
+            });
+        });
+    }
+
+    /**
+     * 按定点数计算编译好的表达式,与实例的NumberMode无关,scale和舍入方式取注册表的配置。
+     * 值是乘以10^scale的long,加减精确,乘除和乘方的结果按scale舍入,变量和常量读取时按scale舍入。
+     * 任何一步溢出时整个表达式用BigDecimal按同样的规则重新计算,结果不变
+     */
+    public BigDecimal evaluateFixed(CompiledExpr compiled) {
+        int scale = registry.getScale();
+        return measureEval(() -> {
+            addFormulas(compiled.getExpr());
+            return reactive(() -> {
+                long[] frame;
+                long result;
+                try {
+                    frame = compiled.newFixedFrame(varMap);
+                    result = compiled.evalFixed(frame);
+                } catch (ArithmeticException e) {
+                    log.debug("定点数溢出,改用BigDecimal计算:{},{}", compiled, e.getMessage());
+                    return evaluateScaled(compiled);
+                }
+                countCompiled(compiled);
+                for (String varName : compiled.getAssignNames()) {
+                    assignVar(varName, FixedPoint.toDecimal(frame[compiled.slotOf(varName)], scale));
+                }
+                return FixedPoint.toDecimal(result, scale);
+            });
+        });
+    }
+
+    private BigDecimal evaluateScaled(CompiledExpr compiled) {
+        BigDecimal[] frame = compiled.newScaledFrame(varMap);
+        BigDecimal result = compiled.evalScaled(frame);
+        countCompiled(compiled);
+        for (String varName : compiled.getAssignNames()) {
+            BigDecimal val = frame[compiled.slotOf(varName)];
+            if (val != null) assignVar(varName, val);
+        }
+        return result;
+    }
+
+    // 编译执行没法逐个节点计数,按编译结果的节点数和读槽位数记;函数已内联,不计函数调用
+    private void countCompiled(CompiledExpr compiled) {
+        if (counting) {
+            nodeCount += compiled.getNodeCount();
+            lookupCount += compiled.getLoadCount();
+        }
+    }
+
+    // 记录计算耗时和计数,指标关闭时直接计算。嵌套的计算算在最外层
+    private <T> T measureEval(Supplier<T> evaluation) {
+        if (counting) return evaluation.get();
+        long start = metrics.start();
+        if (start == EngineMetrics.DISABLED) return evaluation.get();
+        counting = true;
+        nodeCount = callCount = lookupCount = 0;
+        try {
+            T result = evaluation.get();
+            metrics.recordEval(start, nodeCount, callCount, lookupCount);
+            return result;
+        } catch (RuntimeException e) {
+            metrics.error(EngineMetrics.Stage.EVAL);
+            throw e;
+        } finally {
+            counting = false;
+        }
+    }
+
+    /**
+     * 规范化表达式文本作为缓存key:去掉首尾和符号两侧的空白,
+     * 只在两个名称/数字字符之间、会拼成<=等两个字符符号的字符之间保留一个空格(否则会拼成一个token)
+     */
+    public static String normalizeExpr(String exprText) {
+        StringBuilder sb = new StringBuilder(exprText.length());
+        boolean blank = false;
+        for (int i = 0; i < exprText.length(); i++) {
+            char ch = exprText.charAt(i);
+            if (Character.isWhitespace(ch)) {
+                blank = true;
+                continue;
+            }
+            if (blank && sb.length() > 0 && (isNameChar(sb.charAt(sb.length() - 1)) && isNameChar(ch)
+                    || ExprTokenizer.twoCharSymbol(sb.charAt(sb.length() - 1), ch) != null)) {
+                sb.append(' ');
+            }
+            blank = false;
+            sb.append(ch);
+        }
+        return sb.length() == exprText.length() ? exprText : sb.toString();
+    }
+
+    private static boolean isNameChar(char ch) {
+        return ExprTokenizer.isNameChar(ch);
+    }
+
+    // 表达式中调用的函数名
+    static Set<String> findFuncNames(Node headNode) {
+        Set<String> funcNames = new HashSet<>();
+        for (Node node : preorder(headNode)) {
+            if (node.getType() == NodeType.FUNCTION) {
+                funcNames.add(node.getToken());
+            }
+        }
+        return funcNames;
+    }
+
+    /**
+     * 先序遍历所有节点,用显式的栈代替递归,树的深度不受线程栈大小限制
+     */
+    static Iterable<Node> preorder(Node headNode) {
+        return () -> new Iterator<Node>() {
+            private final NodeStack stack = new NodeStack(headNode);
+
+            @Override
+            public boolean hasNext() {
+                return !stack.isEmpty();
+            }
+
+            @Override
+            public Node next() {
+                Node node = stack.pop();
+                stack.pushChildren(node.getChildren(), 0);
+                return node;
+            }
+        };
+    }
+
+    /**
+     * 遍历用的节点栈,子节点倒序入栈,出栈时按原顺序处理
+     */
+    private static final class NodeStack {
+        private Node[] nodes = new Node[16];
+        private int size;
+
+        private NodeStack(Node headNode) {
+            nodes[size++] = headNode;
+        }
+
+        private boolean isEmpty() {
+            return size == 0;
+        }
+
+        private Node pop() {
+            Node node = nodes[--size];
+            nodes[size] = null;
+            return node;
+        }
+
+        // 从from开始的子节点。正序遍历列表,从后往前填,链表也不用按下标取
+        private void pushChildren(List<Node> children, int from) {
+            if (children == null) return;
+            int num = children.size() - from;
+            if (num <= 0) return;
+            if (size + num > nodes.length) {
+                nodes = Arrays.copyOf(nodes, Math.max(nodes.length * 2, size + num));
+            }
+            int index = size + num - 1;
+            Iterator<Node> iterator = children.iterator();
+            for (int i = 0; i < from; i++) iterator.next();
+            while (iterator.hasNext()) {
+                nodes[index--] = iterator.next();
+            }
+            size += num;
+        }
+    }
+
+    /**
+     * 自底向上转换树:子节点都转换完后,按原顺序把子节点的结果交给父节点。用显式的栈代替递归
+     *
+     * @param children    需要先转换的子节点,没有时返回null
+     * @param transformer 节点和它的子节点的结果 -> 节点的结果
+     */
+    static <T> T transform(Node headNode, Function<Node, List<Node>> children, BiFunction<Node, List<T>, T> transformer) {
+        Deque<Node> nodes = new ArrayDeque<>();
+        Deque<Iterator<Node>> iterators = new ArrayDeque<>();
+        // 每个节点开始时结果栈的深度,之后的结果都是它的子节点的
+        Deque<Integer> marks = new ArrayDeque<>();
+        List<T> results = new ArrayList<>();
+        nodes.push(headNode);
+        iterators.push(iterator(children.apply(headNode)));
+        marks.push(0);
+        while (!nodes.isEmpty()) {
+            Iterator<Node> iterator = iterators.peek();
+            if (iterator.hasNext()) {
+                Node child = iterator.next();
+                nodes.push(child);
+                iterators.push(iterator(children.apply(child)));
+                marks.push(results.size());
+                continue;
+            }
+            iterators.pop();
+            List<T> childResults = results.subList(marks.pop(), results.size());
+            T result = transformer.apply(nodes.pop(), new ArrayList<>(childResults));
+            childResults.clear();
+            results.add(result);
+        }
+        return results.get(0);
+    }
+
+    private static Iterator<Node> iterator(List<Node> nodes) {
+        return nodes == null ? Collections.emptyIterator() : nodes.iterator();
     }
 
 
     public Expr parseExpr(String exprText) {
-        log.info("解析表达式开始:{}", exprText);
-        List<Node> nodes = expr2Nodes(exprText);
-        log.info("解析token完成:{}", nodesToStr(nodes));
-        // 处理括号,返回一个双向链表
+        return parseExpr(exprText, true);
+    }
+
+    /**
+     * @param define 是否把name=...形式的表达式定义成函数,为false时赋值只在计算时写入变量
+     */
+    public Expr parseExpr(String exprText, boolean define) {
+        long start = metrics.start();
+        try {
+            Expr expr = parse(exprText, define);
+            metrics.record(EngineMetrics.Stage.PARSE, start);
+            return expr;
+        } catch (RuntimeException e) {
+            metrics.error(EngineMetrics.Stage.PARSE);
+            throw e;
+        }
+    }
+
+    private Expr parse(String exprText, boolean define) {
+        log.debug("解析表达式开始:{}", exprText);
+        tokenizer.tokenize(exprText);
+        log.debug("解析token完成:{}", tokenizer);
         Expr expr = new Expr(NodeType.EXPR, "()", exprText);
-        handleBracket(expr, nodes);
+        if (registry.isLegacyParser()) {
+            parseByPasses(expr, tokenizer.toNodes());
+        } else {
+            parseByPrecedence(expr, tokenizer);
+            debugExpr("解析完成:{}", expr);
+        }
+        // 参数是函数体中读取的变量,不包括被赋值的变量
         expr.setArgNames(getArgNames(expr));
-        log.info("处理括号完成:{}", exprToStr(expr));
-        handleSerialOperator(expr);
-        log.info("处理孤立的正负号完成:{}", exprToStr(expr));
-//        handleAssign(expr);
-//        log.info("处理赋值=完成:{}", exprToStr(expr));
-        handleOperator(expr, true, new HashSet<>(Arrays.asList("^")));
-        log.info("处理操作符^完成:{}", exprToStr(expr));
-        handleOperator(expr, true, new HashSet<>(Arrays.asList("*", "/")));
-        log.info("处理操作符*、/完成:{}", exprToStr(expr));
-        handleOperator(expr, true, new HashSet<>(Arrays.asList("+", "-")));
-        log.info("处理操作符+、-完成:{}", exprToStr(expr));
-        handleOperator(expr, false, new HashSet<>(Arrays.asList("=")));
-        log.info("处理赋值=完成:{}", exprToStr(expr));
+        resolveSlots(expr, expr.getArgNames());
+        registry.resolveNatives(expr);
         if (expr.getChildren() != null && expr.getChildren().size() > 0) {
             Node firstNode = expr.getChildren().get(0);
-            if (firstNode.getType() == NodeType.ASSIGN) {
+            if (firstNode.getType() == NodeType.ASSIGN && firstNode.getChildren().get(0).getType() == NodeType.VAR) {
                 Node varNode = firstNode.getChildren().get(0);
                 expr.setName(varNode.getToken());
-                /*
-                Node valNode = firstNode.getChildren().get(1);
-                Expr valExpr = new Expr(valNode.getType(), valNode.getToken(), exprText.substring(valNode.getRowBegin(), valNode.getRowEnd()));
-                valExpr.setArgNames(expr.getArgNames());
-                valExpr.setName(varNode.getToken());
-                valExpr.setChildren();
-                */
-                exprMap.put(varNode.getToken(), expr);
+                if (define) {
+                    registry.defineExpr(varNode.getToken(), expr);
+                }
             }
         }
         return expr;
     }
 
+    // 表达式转字符串要遍历整棵树并输出变量值,只在打开debug日志时执行
+    private void debugExpr(String format, Expr expr) {
+        if (log.isDebugEnabled()) {
+            log.debug(format, exprToStr(expr));
+        }
+    }
+
+    // 按优先级从高到低,每一级遍历一次
+    private void parseByPasses(Expr expr, List<Node> nodes) {
+        for (Node node : nodes) {
+            if (node.getType() == NodeType.OPERATOR && ("?".equals(node.getToken()) || ":".equals(node.getToken()) || "!".equals(node.getToken()))) {
+                throw new IllegalArgumentException("旧的解析方式不支持该操作符:" + node);
+            }
+        }
+        // 处理括号,返回一个双向链表
+        handleBracket(expr, nodes);
+        debugExpr("处理括号完成:{}", expr);
+        handleSerialOperator(expr);
+        debugExpr("处理孤立的正负号完成:{}", expr);
+        handleOperator(expr, true, new HashSet<>(Arrays.asList("^")));
+        debugExpr("处理操作符^完成:{}", expr);
+        handleOperator(expr, true, new HashSet<>(Arrays.asList("*", "/")));
+        debugExpr("处理操作符*、/完成:{}", expr);
+        handleOperator(expr, true, new HashSet<>(Arrays.asList("+", "-")));
+        debugExpr("处理操作符+、-完成:{}", expr);
+        handleOperator(expr, true, new HashSet<>(Arrays.asList("<", "<=", ">", ">=")));
+        handleOperator(expr, true, new HashSet<>(Arrays.asList("==", "!=")));
+        handleOperator(expr, true, new HashSet<>(Arrays.asList("&&")));
+        handleOperator(expr, true, new HashSet<>(Arrays.asList("||")));
+        debugExpr("处理比较和逻辑运算完成:{}", expr);
+        handleOperator(expr, false, new HashSet<>(Arrays.asList("=")));
+        debugExpr("处理赋值=完成:{}", expr);
+    }
+
+    // 在词法分析结果上移动,需要时才创建节点
+    private static class TokenCursor {
+        private final ExprTokenizer tokens;
+        private int index;
+
+        private TokenCursor(ExprTokenizer tokens) {
+            this.tokens = tokens;
+        }
+
+        private boolean hasNext() {
+            return index < tokens.size();
+        }
+
+        private NodeType peekType() {
+            return hasNext() ? tokens.type(index) : null;
+        }
+
+        private String peekText() {
+            return tokens.text(index);
+        }
+
+        private int peekBegin() {
+            return tokens.start(index);
+        }
+
+        private Node peek() {
+            return hasNext() ? tokens.node(index) : null;
+        }
+
+        private Node next() {
+            return hasNext() ? tokens.node(index++) : null;
+        }
+
+        private void skip() {
+            index++;
+        }
+
+        private boolean isBracket(char bracket) {
+            return hasNext() && tokens.type(index) == NodeType.BRACKET && tokens.is(index, bracket);
+        }
+
+        // 数字,或者后面不是(和=的变量,本身就是完整的值
+        private boolean isSimpleValue() {
+            NodeType type = peekType();
+            if (type == NodeType.NUMBER) return true;
+            if (type != NodeType.VAR) return false;
+            if (index + 1 == tokens.size()) return true;
+            NodeType nextType = tokens.type(index + 1);
+            return nextType != NodeType.ASSIGN && !(nextType == NodeType.BRACKET && tokens.is(index + 1, '('));
+        }
+
+        private Node last() {
+            return tokens.node(tokens.size() - 1);
+        }
+    }
+
+    /**
+     * 单次遍历的优先级爬升解析,按Operator表的优先级和结合性构造和parseByPasses相同的树:
+     * 1.括号内只有一个表达式时直接返回该表达式,否则为EXPR节点
+     * 2.变量后面紧跟括号视为函数调用,括号内的表达式是参数
+     * 3.开头的正负号视为0的运算,操作符后面的正负号只作用于下一个值
+     * 4.赋值只作用于紧挨着的变量,如1+s=2等价于1+(s=2);分号分隔语句
+     * 5.a?b:c右结合,?和:之间按一个完整的表达式解析;前缀!a等价于a==0
+     */
+    private void parseByPrecedence(Expr expr, ExprTokenizer tokens) {
+        TokenCursor cursor = new TokenCursor(tokens);
+        expr.setChildren(parseList(cursor, 0));
+        if (cursor.hasNext()) {
+            throw new IllegalArgumentException("表达式的括号不成对:" + cursor.peek());
+        }
+    }
+
+    // 解析状态的种类:语句列表、操作符、单个值
+    private static final int PARSE_LIST = 0;
+    private static final int PARSE_OPERATOR = 1;
+    private static final int PARSE_VALUE = 2;
+
+    /**
+     * 等待子结果的解析状态,代替递归调用的栈帧。按深度复用,不是每层都创建对象
+     */
+    private static final class ParseFrame {
+        private int kind;
+        private int phase;
+        // LIST:下一个语句是否在开头;OPERATOR:左侧是否在语句开头
+        private boolean isStart;
+        // OPERATOR:能处理的最低优先级
+        private int level;
+        // OPERATOR:已解析的左侧;VALUE:赋值左侧的变量
+        private Node left;
+        // 正在构造的节点
+        private Node node;
+        // ?:的第二个参数
+        private Node then;
+        private LinkedList<Node> list;
+        // 左括号的位置
+        private int rowBegin;
+    }
+
+    private static final class ParseStack {
+        private final List<ParseFrame> frames = new ArrayList<>();
+        private int size;
+        // 栈底的状态完成后的结果
+        private Node result;
+        private LinkedList<Node> resultList;
+
+        private ParseFrame push(int kind) {
+            if (size == frames.size()) {
+                frames.add(new ParseFrame());
+            }
+            ParseFrame frame = frames.get(size++);
+            frame.kind = kind;
+            frame.phase = 0;
+            frame.left = frame.node = frame.then = null;
+            frame.list = kind == PARSE_LIST ? new LinkedList<>() : null;
+            return frame;
+        }
+
+        private ParseFrame pushOperator(int level, boolean isStart) {
+            ParseFrame frame = push(PARSE_OPERATOR);
+            frame.level = level;
+            frame.isStart = isStart;
+            return frame;
+        }
+
+        private ParseFrame pushList() {
+            ParseFrame frame = push(PARSE_LIST);
+            frame.isStart = true;
+            return frame;
+        }
+    }
+
+    /**
+     * 连续的表达式,直到右括号或结束。
+     * 括号、函数参数、右结合操作符的嵌套是递归解析的,深度超过RECURSION_LIMIT的部分交给parseDeep
+     */
+    private LinkedList<Node> parseList(TokenCursor cursor, int depth) {
+        if (depth > RECURSION_LIMIT) {
+            return parseListDeep(cursor);
+        }
+        LinkedList<Node> list = new LinkedList<>();
+        boolean isStart = true;
+        for (NodeType type; (type = cursor.peekType()) != null && !cursor.isBracket(')'); ) {
+            if (type == NodeType.END) {
+                cursor.skip();
+                isStart = true;
+                continue;
+            }
+            list.add(parseOperator(cursor, maxOperatorLevel, isStart, depth + 1));
+            isStart = false;
+        }
+        return list;
+    }
+
+    // 解析优先级不低于maxLevel的操作符
+    private Node parseOperator(TokenCursor cursor, int maxLevel, boolean isStart, int depth) {
+        if (depth > RECURSION_LIMIT) {
+            return parseOperatorDeep(cursor, maxLevel, isStart);
+        }
+        Node left;
+        if (isStart && cursor.peekType() == NodeType.OPERATOR && specialTokens.contains(cursor.peekText())) {
+            left = Node.number(BigDecimal.ZERO, cursor.peekBegin(), cursor.peekBegin());
+        } else {
+            left = parseValue(cursor, depth + 1);
+        }
+        for (NodeType type; (type = cursor.peekType()) != null; ) {
+            if (type != NodeType.OPERATOR && type != NodeType.ASSIGN) break;
+            String token = cursor.peekText();
+            // 条件运算符的:由?处理
+            if (":".equals(token)) break;
+            Operator operator = token2Operator.get(token);
+            if (operator == null) {
+                throw new IllegalArgumentException("token不合法:" + cursor.peek());
+            }
+            if (operator.getLevel() > maxLevel) break;
+            Node node = cursor.next();
+            if ("?".equals(token)) {
+                Node then = parseOperator(cursor, operator.getLevel(), false, depth + 1);
+                if (!cursor.hasNext() || !":".equals(cursor.peekText())) {
+                    throw new IllegalArgumentException("条件运算符缺少:" + node);
+                }
+                cursor.skip();
+                Node otherwise = parseOperator(cursor, operator.getLevel(), false, depth + 1);
+                node.setChildren(new LinkedList<>(Arrays.asList(left, then, otherwise)));
+                left = node;
+                continue;
+            }
+            Node right = parseOperator(cursor, operator.isRightAssoc() ? operator.getLevel() : operator.getLevel() - 1, false, depth + 1);
+            node.setChildren(new LinkedList<>(Arrays.asList(left, right)));
+            left = node;
+        }
+        return left;
+    }
+
+    // 解析一个值:数字、变量、括号、函数调用、赋值和前缀的+-!
+    private Node parseValue(TokenCursor cursor, int depth) {
+        if (depth > RECURSION_LIMIT) {
+            return parseValueDeep(cursor);
+        }
+        NodeType type = cursor.peekType();
+        if (type == null) {
+            throw new IllegalArgumentException("表达式不完整:" + cursor.last());
+        }
+        if (type == NodeType.BRACKET && cursor.isBracket('(')) {
+            int rowBegin = cursor.peekBegin();
+            cursor.skip();
+            LinkedList<Node> children = parseList(cursor, depth + 1);
+            int rowEnd = nextRightBracket(cursor, rowBegin);
+            if (children.size() == 1) {
+                return children.getFirst();
+            }
+            Node exprNode = new Node(NodeType.EXPR, "()", rowBegin, rowEnd);
+            exprNode.setChildren(children);
+            return exprNode;
+        }
+        Node node = cursor.next();
+        if (node.getType() == NodeType.NUMBER) {
+            return node;
+        } else if (node.getType() == NodeType.VAR) {
+            if (cursor.isBracket('(')) {
+                int leftBegin = cursor.peekBegin();
+                cursor.skip();
+                Node funcNode = new Node(NodeType.FUNCTION, node.getToken(), node.getRowBegin(), leftBegin + 1);
+                funcNode.setChildren(parseList(cursor, depth + 1));
+                funcNode.setRowEnd(nextRightBracket(cursor, leftBegin));
+                return funcNode;
+            }
+            if (cursor.peekType() == NodeType.ASSIGN) {
+                Node next = cursor.next();
+                Operator operator = token2Operator.get(next.getToken());
+                next.setChildren(new LinkedList<>(Arrays.asList(node, parseOperator(cursor, operator.getLevel(), false, depth + 1))));
+                return next;
+            }
+            return node;
+        } else if (node.getType() == NodeType.OPERATOR && specialTokens.contains(node.getToken())) {
+            NodeType nextType = cursor.peekType();
+            if (nextType == null || nextType == NodeType.OPERATOR) {
+                throw new IllegalArgumentException(node.getType().getName() + "缺少左侧参数:" + node);
+            }
+            Node zeroNode = Node.number(BigDecimal.ZERO, node.getRowBegin(), node.getRowBegin());
+            node.setChildren(new LinkedList<>(Arrays.asList(zeroNode, parseValue(cursor, depth + 1))));
+            return node;
+        } else if (node.getType() == NodeType.OPERATOR && "!".equals(node.getToken())) {
+            Node value = parseValue(cursor, depth + 1);
+            Node notNode = new Node(NodeType.OPERATOR, "==", node.getRowBegin(), value.getRowEnd());
+            notNode.setChildren(new LinkedList<>(Arrays.asList(value, Node.number(BigDecimal.ZERO, node.getRowBegin(), node.getRowBegin()))));
+            return notNode;
+        } else if (node.getType() == NodeType.OPERATOR || node.getType() == NodeType.ASSIGN) {
+            throw new IllegalArgumentException(node.getType().getName() + "缺少左侧参数:" + node);
+        } else {
+            throw new IllegalArgumentException("无效的token:" + node);
+        }
+    }
+
+    /**
+     * 从栈底的状态开始用显式的栈解析,直到它完成,嵌套深度不受线程栈大小限制。
+     * 栈顶的状态需要子结果时压入新状态,新状态完成后把结果放在result/resultList里,再回到栈顶的状态继续
+     */
+    private void parseDeep(TokenCursor cursor, ParseStack stack) {
+        Node result = null;
+        LinkedList<Node> resultList = null;
+        while (stack.size > 0) {
+            ParseFrame frame = stack.frames.get(stack.size - 1);
+            if (frame.kind == PARSE_LIST) {
+                if (frame.phase == 1) {
+                    frame.list.add(result);
+                    frame.isStart = false;
+                }
+                NodeType type;
+                while ((type = cursor.peekType()) == NodeType.END) {
+                    cursor.skip();
+                    frame.isStart = true;
+                }
+                if (type == null || cursor.isBracket(')')) {
+                    resultList = frame.list;
+                    frame.list = null;
+                    stack.size--;
+                    continue;
+                }
+                frame.phase = 1;
+                stack.pushOperator(maxOperatorLevel, frame.isStart);
+            } else if (frame.kind == PARSE_OPERATOR) {
+                if (stepOperator(cursor, stack, frame, result)) {
+                    result = frame.left;
+                    stack.size--;
+                }
+            } else {
+                Node value = stepValue(cursor, stack, frame, result, resultList);
+                if (value != null) {
+                    result = value;
+                    stack.size--;
+                }
+            }
+        }
+        stack.result = result;
+        stack.resultList = resultList;
+    }
+
+    private LinkedList<Node> parseListDeep(TokenCursor cursor) {
+        ParseStack stack = parseStack;
+        // 上次出错时可能留下了状态
+        stack.size = 0;
+        stack.pushList();
+        parseDeep(cursor, stack);
+        LinkedList<Node> list = stack.resultList;
+        stack.result = null;
+        stack.resultList = null;
+        return list;
+    }
+
+    private Node parseOperatorDeep(TokenCursor cursor, int maxLevel, boolean isStart) {
+        ParseStack stack = parseStack;
+        // 上次出错时可能留下了状态
+        stack.size = 0;
+        stack.pushOperator(maxLevel, isStart);
+        return takeResult(cursor, stack);
+    }
+
+    private Node parseValueDeep(TokenCursor cursor) {
+        ParseStack stack = parseStack;
+        // 上次出错时可能留下了状态
+        stack.size = 0;
+        stack.push(PARSE_VALUE);
+        return takeResult(cursor, stack);
+    }
+
+    private Node takeResult(TokenCursor cursor, ParseStack stack) {
+        parseDeep(cursor, stack);
+        Node result = stack.result;
+        stack.result = null;
+        stack.resultList = null;
+        return result;
+    }
+
+    /**
+     * parseOperator的显式栈版本:解析优先级不低于frame.level的操作符,左结合的连续操作符在同一个状态里循环处理
+     *
+     * @param result 压入的子状态的结果
+     * @return 是否完成,结果在frame.left
+     */
+    private boolean stepOperator(TokenCursor cursor, ParseStack stack, ParseFrame frame, Node result) {
+        switch (frame.phase) {
+            case 0:
+                if (frame.isStart && cursor.peekType() == NodeType.OPERATOR && specialTokens.contains(cursor.peekText())) {
+                    frame.left = Node.number(BigDecimal.ZERO, cursor.peekBegin(), cursor.peekBegin());
+                    frame.phase = 2;
+                } else if (cursor.isSimpleValue()) {
+                    // 不需要为简单的值压入新状态
+                    frame.left = cursor.next();
+                    frame.phase = 2;
+                } else {
+                    frame.phase = 1;
+                    stack.push(PARSE_VALUE);
+                    return false;
+                }
+                break;
+            case 1:
+                frame.left = result;
+                frame.phase = 2;
+                break;
+            case 3:
+                // ?和:之间的参数
+                if (!cursor.hasNext() || !":".equals(cursor.peekText())) {
+                    throw new IllegalArgumentException("条件运算符缺少:" + frame.node);
+                }
+                cursor.skip();
+                frame.then = result;
+                frame.phase = 4;
+                stack.pushOperator(token2Operator.get(frame.node.getToken()).getLevel(), false);
+                return false;
+            case 4:
+                frame.node.setChildren(new LinkedList<>(Arrays.asList(frame.left, frame.then, result)));
+                frame.left = frame.node;
+                frame.phase = 2;
+                break;
+            case 5:
+                frame.node.setChildren(new LinkedList<>(Arrays.asList(frame.left, result)));
+                frame.left = frame.node;
+                frame.phase = 2;
+                break;
+            default:
+        }
+        NodeType type = cursor.peekType();
+        if (type != NodeType.OPERATOR && type != NodeType.ASSIGN) return true;
+        String token = cursor.peekText();
+        // 条件运算符的:由?处理
+        if (":".equals(token)) return true;
+        Operator operator = token2Operator.get(token);
+        if (operator == null) {
+            throw new IllegalArgumentException("token不合法:" + cursor.peek());
+        }
+        if (operator.getLevel() > frame.level) return true;
+        frame.node = cursor.next();
+        if ("?".equals(token)) {
+            frame.phase = 3;
+            stack.pushOperator(operator.getLevel(), false);
+        } else {
+            frame.phase = 5;
+            stack.pushOperator(operator.isRightAssoc() ? operator.getLevel() : operator.getLevel() - 1, false);
+        }
+        return false;
+    }
+
+    /**
+     * parseValue的显式栈版本:解析一个值
+     *
+     * @return 解析好的值,还需要子状态时返回null
+     */
+    private Node stepValue(TokenCursor cursor, ParseStack stack, ParseFrame frame, Node result, LinkedList<Node> resultList) {
+        switch (frame.phase) {
+            case 1:
+                // 括号内只有一个表达式时直接返回该表达式
+                int rowEnd = nextRightBracket(cursor, frame.rowBegin);
+                if (resultList.size() == 1) {
+                    return resultList.getFirst();
+                }
+                Node exprNode = new Node(NodeType.EXPR, "()", frame.rowBegin, rowEnd);
+                exprNode.setChildren(resultList);
+                return exprNode;
+            case 2:
+                frame.node.setChildren(resultList);
+                frame.node.setRowEnd(nextRightBracket(cursor, frame.rowBegin));
+                return frame.node;
+            case 3:
+                frame.node.setChildren(new LinkedList<>(Arrays.asList(frame.left, result)));
+                return frame.node;
+            case 4:
+                Node zeroNode = Node.number(BigDecimal.ZERO, frame.node.getRowBegin(), frame.node.getRowBegin());
+                frame.node.setChildren(new LinkedList<>(Arrays.asList(zeroNode, result)));
+                return frame.node;
+            case 5:
+                Node notNode = new Node(NodeType.OPERATOR, "==", frame.node.getRowBegin(), result.getRowEnd());
+                notNode.setChildren(new LinkedList<>(Arrays.asList(result, Node.number(BigDecimal.ZERO, frame.node.getRowBegin(), frame.node.getRowBegin()))));
+                return notNode;
+            default:
+        }
+        NodeType type = cursor.peekType();
+        if (type == null) {
+            throw new IllegalArgumentException("表达式不完整:" + cursor.last());
+        }
+        if (type == NodeType.BRACKET && cursor.isBracket('(')) {
+            frame.rowBegin = cursor.peekBegin();
+            cursor.skip();
+            frame.phase = 1;
+            stack.pushList();
+            return null;
+        }
+        Node node = cursor.next();
+        if (node.getType() == NodeType.NUMBER) {
+            return node;
+        } else if (node.getType() == NodeType.VAR) {
+            // 变量后面紧跟括号视为函数调用
+            if (cursor.isBracket('(')) {
+                frame.rowBegin = cursor.peekBegin();
+                cursor.skip();
+                frame.node = new Node(NodeType.FUNCTION, node.getToken(), node.getRowBegin(), frame.rowBegin + 1);
+                frame.phase = 2;
+                stack.pushList();
+                return null;
+            }
+            if (cursor.peekType() == NodeType.ASSIGN) {
+                frame.node = cursor.next();
+                frame.left = node;
+                frame.phase = 3;
+                stack.pushOperator(token2Operator.get(frame.node.getToken()).getLevel(), false);
+                return null;
+            }
+            return node;
+        } else if (node.getType() == NodeType.OPERATOR && specialTokens.contains(node.getToken())) {
+            NodeType nextType = cursor.peekType();
+            if (nextType == null || nextType == NodeType.OPERATOR) {
+                throw new IllegalArgumentException(node.getType().getName() + "缺少左侧参数:" + node);
+            }
+            frame.node = node;
+            frame.phase = 4;
+            stack.push(PARSE_VALUE);
+            return null;
+        } else if (node.getType() == NodeType.OPERATOR && "!".equals(node.getToken())) {
+            frame.node = node;
+            frame.phase = 5;
+            stack.push(PARSE_VALUE);
+            return null;
+        } else if (node.getType() == NodeType.OPERATOR || node.getType() == NodeType.ASSIGN) {
+            throw new IllegalArgumentException(node.getType().getName() + "缺少左侧参数:" + node);
+        } else {
+            throw new IllegalArgumentException("无效的token:" + node);
+        }
+    }
+
+    // 返回右括号的结束位置
+    private int nextRightBracket(TokenCursor cursor, int leftBegin) {
+        if (!cursor.isBracket(')')) {
+            throw new IllegalArgumentException("表达式的括号不成对:" + new Node(NodeType.BRACKET, "(", leftBegin, leftBegin + 1));
+        }
+        int rowEnd = cursor.tokens.end(cursor.index);
+        cursor.skip();
+        return rowEnd;
+    }
+
     private List<String> getArgNames(Expr expr) {
-        HashSet<String> argNameSet = new HashSet<>();
+        Set<String> argNameSet = new LinkedHashSet<>();
         findVarNames(expr, argNameSet);
+        // 常量不作为参数
+        argNameSet.removeAll(registry.getImmutableConstants().keySet());
         return new ArrayList<>(argNameSet);
     }
 
-    private void findVarNames(Node headNode, Set<String> varNames) {
-        if (headNode.getType() == NodeType.VAR) {
-            varNames.add(headNode.getToken());
-        } else if (headNode.getChildren() != null) {
-            Iterator<Node> iterator = headNode.getChildren().iterator();
-            if (headNode.getType() == NodeType.ASSIGN && iterator.hasNext()) {
-                iterator.next();
+    // 把变量解析成参数槽位,作为函数计算时直接按下标取值
+    private static void resolveSlots(Node headNode, List<String> argNames) {
+        for (Node node : preorder(headNode)) {
+            if (node.getType() == NodeType.VAR) {
+                node.setSlot(argNames.indexOf(node.getToken()));
             }
-            while (iterator.hasNext()) {
-                findVarNames(iterator.next(), varNames);
+        }
+    }
+
+    // 按出现顺序,赋值左侧的变量不算读取
+    private void findVarNames(Node headNode, Set<String> varNames) {
+        NodeStack stack = new NodeStack(headNode);
+        while (!stack.isEmpty()) {
+            Node node = stack.pop();
+            if (node.getType() == NodeType.VAR) {
+                varNames.add(node.getToken());
+            } else {
+                stack.pushChildren(node.getChildren(), node.getType() == NodeType.ASSIGN ? 1 : 0);
             }
         }
     }
@@ -258,16 +1328,24 @@ public class Evaluate {
         }
     }
 
-    // 处理连续的符号
-    private void handleSerialOperator(Node headNode) {
-        if (headNode.getChildren() == null) return;
+    // 处理连续的符号,每个节点的子节点列表单独处理,需要处理的子节点放进栈里
+    private void handleSerialOperator(Node rootNode) {
+        Deque<Node> stack = new ArrayDeque<>();
+        stack.push(rootNode);
+        while (!stack.isEmpty()) {
+            handleSerialOperator(stack.pop(), stack);
+        }
+    }
+
+    private void handleSerialOperator(Node headNode, Deque<Node> stack) {
+        if (headNode.getChildren() == null || headNode.getChildren().isEmpty()) return;
         LinkedList<Node> children = new LinkedList<>();
 //        Node preNode = new Node(NodeType.OPERATOR, "+", headNode.getRowBegin(), headNode.getRowBegin());
         Iterator<Node> iterator = headNode.getChildren().iterator();
         Node preNode = iterator.next();
         if (preNode.getType() == NodeType.OPERATOR) {
             if (specialTokens.contains(preNode.getToken())) {
-                Node zeroNode = new Node(NodeType.NUMBER, "0", preNode.getRowBegin(), preNode.getRowBegin());
+                Node zeroNode = Node.number(BigDecimal.ZERO, preNode.getRowBegin(), preNode.getRowBegin());
                 children.add(zeroNode);
             } else {
                 throw new IllegalArgumentException(preNode.getType().getName() + "缺少左侧参数:" + preNode);
@@ -281,7 +1359,7 @@ public class Evaluate {
                 if (specialTokens.contains(node.getToken()) && iterator.hasNext()) {
                     Node next = iterator.next();
                     if (next.getType() != NodeType.OPERATOR) {
-                        Node zeroNode = new Node(NodeType.NUMBER, "0", node.getRowBegin(), node.getRowBegin());
+                        Node zeroNode = Node.number(BigDecimal.ZERO, node.getRowBegin(), node.getRowBegin());
                         Node exprNode = new Node(NodeType.EXPR, "()", node.getRowBegin(), node.getRowBegin());
                         exprNode.setChildren(Arrays.asList(zeroNode, node, next));
                         children.add(exprNode);
@@ -291,7 +1369,7 @@ public class Evaluate {
                 }
                 throw new IllegalArgumentException(node.getType().getName() + "缺少左侧参数:" + node);
             }
-            handleSerialOperator(node);
+            stack.push(node);
             children.add(node);
             preNode = node;
         }
@@ -299,88 +1377,661 @@ public class Evaluate {
     }
 
     public BigDecimal evaluate(String exprText) {
-        Expr expr = parseExpr(exprText);
-        log.info("计算开始:{}", exprToStr(expr));
-        Node result = calculate(expr, varMap);
-        log.info("计算完成:{}={}", result, exprToStr(expr));
-        return new BigDecimal(result.getToken());
+        if (numberMode == NumberMode.DOUBLE) {
+            return toDecimal(evaluateDouble(exprText));
+        } else if (numberMode == NumberMode.FIXED) {
+            return evaluateFixed(compile(exprText));
+        }
+        return evaluate(parseExprCached(exprText));
+    }
+
+    /**
+     * 计算解析好的表达式,赋值的变量写回变量表
+     */
+    public BigDecimal evaluate(Expr expr) {
+        if (numberMode != NumberMode.DECIMAL) {
+            return evaluate(compile(expr));
+        }
+        debugExpr("计算开始:{}", expr);
+        BigDecimal result = measureEval(() -> {
+            addFormulas(expr);
+            return reactive(() -> calculate(expr, varMap));
+        });
+        if (log.isDebugEnabled()) {
+            log.debug("计算完成:{}={}", result, exprToStr(expr));
+        }
+        return result;
+    }
+
+    /**
+     * 生成字节码,结果缓存。函数调用执行时才查找,函数重新定义不影响缓存
+     */
+    public ExprBytecode compileBytecode(String exprText) {
+        String key = normalizeExpr(exprText);
+        Expr expr = parseExprCached(key);
+        ExprBytecode code = registry.getBytecodeCache().get(key);
+        if (code == null || code.getExpr() != expr) {
+            // 表达式重新解析过,旧的字节码作废
+            if (code != null) registry.getBytecodeCache().remove(key);
+            code = registry.getBytecodeCache().put(key, ExprBytecode.compile(expr));
+        }
+        return code;
+    }
+
+    /**
+     * 用字节码虚拟机计算,结果和evaluate(String)一致
+     */
+    public BigDecimal evaluateBytecode(String exprText) {
+        return evaluate(compileBytecode(exprText));
+    }
+
+    public BigDecimal evaluate(ExprBytecode code) {
+        if (vm == null) {
+            vm = new ExprVM(this);
+        }
+        return measureEval(() -> {
+            addFormulas(code.getExpr());
+            return reactive(() -> {
+                try {
+                    return vm.run(code, counting);
+                } finally {
+                    if (counting) {
+                        nodeCount += vm.getInstructionCount();
+                        callCount += vm.getCallCount();
+                        lookupCount += vm.getLookupCount();
+                    }
+                }
+            });
+        });
+    }
+
+    /**
+     * 计算过程中直接传递数值,不再转成字符串再解析回来
+     */
+    public BigDecimal calculate(Node headNode, Map<String, BigDecimal> varMap) {
+        return calculate(headNode, null, varMap, 0);
     }
 
-    public Node calculate(Node headNode, Map<String, BigDecimal> varMap) {
+    /**
+     * 函数调用的栈帧:参数按argNames的顺序放在数组里,parent是调用者的栈帧
+     */
+    private static final class Frame {
+        private final Expr expr;
+        private final BigDecimal[] slots;
+        private final Frame parent;
+
+        private Frame(Expr expr, BigDecimal[] slots, Frame parent) {
+            this.expr = expr;
+            this.slots = slots;
+            this.parent = parent;
+        }
+    }
+
+    // 先按解析好的槽位取当前栈帧,再沿调用链按名称查找,最后查全局变量
+    private static BigDecimal lookupVar(Node varNode, Frame frame, Map<String, BigDecimal> varMap) {
+        String name = varNode.getToken();
+        int slot = varNode.getSlot();
+        if (frame != null && slot >= 0 && slot < frame.slots.length
+                && name.equals(frame.expr.getArgNames().get(slot))) {
+            return frame.slots[slot];
+        }
+        for (Frame it = frame; it != null; it = it.parent) {
+            int index = it.expr.getArgNames().indexOf(name);
+            if (index >= 0) return it.slots[index];
+        }
+        return varMap.get(name);
+    }
+
+    /**
+     * 递归计算,浅的表达式不用维护显式栈。深度(包括函数调用的层数)超过RECURSION_LIMIT的部分交给calculateDeep
+     */
+    private BigDecimal calculate(Node headNode, Frame frame, Map<String, BigDecimal> varMap, int depth) {
+        if (depth > RECURSION_LIMIT) {
+            return calculateDeep(headNode, frame, varMap);
+        }
+        if (counting) nodeCount++;
         if (headNode.getType() == NodeType.NUMBER) {
-            return headNode;
+            return headNode.getNumber();
         } else if (headNode.getType() == NodeType.OPERATOR) {
             Operator operator = token2Operator.get(headNode.getToken());
-            List<BigDecimal> args = headNode.getChildren().stream().map(it -> calculate(it, varMap))
-                    .map(it -> new BigDecimal(it.getToken())).collect(Collectors.toList());
-            if (args.size() < operator.getLeftArgNum() + operator.getRightArgNum()) {
+            List<Node> children = headNode.getChildren();
+            if (children.size() < operator.getLeftArgNum() + operator.getRightArgNum()) {
                 throw new IllegalArgumentException("计算参数不足:" + headNode);
             }
-            BigDecimal result = token2Func.get(headNode.getToken()).apply(args);
-            return new Node(NodeType.NUMBER, result + "", headNode.getRowBegin(), headNode.getRowEnd());
+            if (isLazyOperator(headNode.getToken())) {
+                return calculateLazy(headNode, frame, varMap, depth);
+            }
+            List<BigDecimal> args = new ArrayList<>(children.size());
+            for (Node node : children) {
+                args.add(calculate(node, frame, varMap, depth + 1));
+            }
+            return registry.getOperatorFunc(headNode.getToken()).apply(args);
         } else if (headNode.getType() == NodeType.VAR) {
-            BigDecimal val = varMap.get(headNode.getToken());
+            if (counting) lookupCount++;
+            BigDecimal val = lookupVar(headNode, frame, varMap);
             if (val == null) {
                 throw new IllegalArgumentException("找不到变量:" + headNode);
             }
-            return new Node(NodeType.NUMBER, val + "", headNode.getRowBegin(), headNode.getRowEnd());
+            return val;
         } else if (headNode.getType() == NodeType.EXPR) {
-            Node result = null;
+            BigDecimal result = null;
             for (Node node : headNode.getChildren()) {
-                result = calculate(node, varMap);
-//                if (node.getType() != NodeType.ASSIGN) {
-//                    putTempVar(new BigDecimal(result.getToken()));
-//                }
+                result = calculate(node, frame, varMap, depth + 1);
             }
             return result;
         } else if (headNode.getType() == NodeType.FUNCTION) {
-            Expr expr = exprMap.get(headNode.getToken());
+            NativeFunction function = headNode.getNativeFunction();
+            if (function == null) function = registry.getNativeFunction(headNode.getToken());
+            if (function != null) {
+                return calculateNative(headNode, function, frame, varMap, depth);
+            }
+            Expr expr = registry.getExpr(headNode.getToken());
             if (expr == null) {
                 throw new IllegalArgumentException("函数不存在:" + headNode);
             }
             List<Node> children = Optional.ofNullable(headNode.getChildren()).orElse(Collections.EMPTY_LIST);
-            if (children.size() < expr.getArgNames().size()) {
+            int argNum = expr.getArgNames().size();
+            if (children.size() < argNum) {
                 throw new IllegalArgumentException("函数参数不匹配:" + exprToStr(headNode) + ",expr:" + exprToStr(expr));
             }
-            Iterator<String> argIterator = expr.getArgNames().iterator();
-            Iterator<Node> childIterator = children.iterator();
-            Map<String, BigDecimal> argMap = new LinkedHashMap<>(varMap);
-            while (argIterator.hasNext()) {
-                argMap.put(argIterator.next(), new BigDecimal(calculate(childIterator.next(), varMap).getToken()));
+            // 只分配参数个数大小的栈帧,不复制变量表
+            BigDecimal[] slots = new BigDecimal[argNum];
+            for (int i = 0; i < argNum; i++) {
+                slots[i] = calculate(children.get(i), frame, varMap, depth + 1);
+            }
+            if (counting) callCount++;
+            ExprCache<BigDecimal> memoCache = registry.getMemoCache(headNode.getToken());
+            if (memoCache == null) {
+                return calculate(expr.getBody(), new Frame(expr, slots, frame), varMap, depth + 1);
+            }
+            String key = memoKey(slots);
+            BigDecimal result = memoCache.get(key);
+            if (result == null) {
+                result = memoCache.put(key, calculate(expr.getBody(), new Frame(expr, slots, frame), varMap, depth + 1));
             }
-            Node result = calculate(expr, argMap);
-//            putTempVar(new BigDecimal(result.getToken()));
             return result;
         } else if (headNode.getType() == NodeType.ASSIGN) {
             Node varNode = headNode.getChildren().get(0);
             if (varNode.getType() != NodeType.VAR) {
                 throw new IllegalArgumentException("赋值语句左侧不是变量:" + headNode);
             }
-            Node result = calculate(headNode.getChildren().get(1), varMap);
-            putVar(varNode.getToken(), new BigDecimal(result.getToken()));
+            BigDecimal result = calculate(headNode.getChildren().get(1), frame, varMap, depth + 1);
+            assignVar(varNode.getToken(), result);
             return result;
         } else {
             throw new IllegalArgumentException("无效的token:" + headNode);
         }
     }
 
-    private AtomicInteger tempVarIndex = new AtomicInteger(0);
+    // 先计算第一个参数,再按结果只计算需要的参数
+    private BigDecimal calculateLazy(Node headNode, Frame frame, Map<String, BigDecimal> varMap, int depth) {
+        Iterator<Node> iterator = headNode.getChildren().iterator();
+        boolean cond = isTrue(calculate(iterator.next(), frame, varMap, depth + 1));
+        switch (headNode.getToken()) {
+            case "&&":
+                return cond && isTrue(calculate(iterator.next(), frame, varMap, depth + 1)) ? BigDecimal.ONE : BigDecimal.ZERO;
+            case "||":
+                return cond || isTrue(calculate(iterator.next(), frame, varMap, depth + 1)) ? BigDecimal.ONE : BigDecimal.ZERO;
+            default:
+                Node then = iterator.next();
+                Node otherwise = iterator.next();
+                return calculate(cond ? then : otherwise, frame, varMap, depth + 1);
+        }
+    }
+
+    private BigDecimal calculateNative(Node headNode, NativeFunction function, Frame frame, Map<String, BigDecimal> varMap, int depth) {
+        List<Node> children = Optional.ofNullable(headNode.getChildren()).orElse(Collections.EMPTY_LIST);
+        if (children.size() != function.getArity()) {
+            throw new IllegalArgumentException("函数参数不匹配:" + exprToStr(headNode) + ",需要" + function.getArity() + "个参数");
+        }
+        BigDecimal[] args = new BigDecimal[children.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = calculate(children.get(i), frame, varMap, depth + 1);
+        }
+        if (counting) callCount++;
+        return function.invoke(args, 0);
+    }
+
+    /**
+     * calculateDeep的显式栈,代替递归,表达式的深度和函数的递归层数不受线程栈大小限制。
+     * 待处理的节点带一个状态:0表示还没有计算子节点,其它值表示子节点已算完、结果在值栈顶上。
+     * 每次调用只使用调用时栈顶以上的部分,计算中重新进入calculate也不影响
+     */
+    private static final class CalcStack {
+        private Node[] nodes = new Node[64];
+        private int[] states = new int[64];
+        private Frame[] frames = new Frame[64];
+        // 函数调用时查到的函数、纯函数的缓存
+        private Object[] extras = new Object[64];
+        private int size;
+        private BigDecimal[] values = new BigDecimal[64];
+        private int valueSize;
+
+        private void push(Node node, int state, Frame frame, Object extra) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                states = Arrays.copyOf(states, size * 2);
+                frames = Arrays.copyOf(frames, size * 2);
+                extras = Arrays.copyOf(extras, size * 2);
+            }
+            nodes[size] = node;
+            states[size] = state;
+            frames[size] = frame;
+            extras[size] = extra;
+            size++;
+        }
+
+
+        private void pushValue(BigDecimal value) {
+            if (valueSize == values.length) {
+                values = Arrays.copyOf(values, valueSize * 2);
+            }
+            values[valueSize++] = value;
+        }
+
+        private BigDecimal peekValue() {
+            return values[valueSize - 1];
+        }
+
+        private BigDecimal popValue() {
+            BigDecimal value = values[--valueSize];
+            values[valueSize] = null;
+            return value;
+        }
+
+        private void popValues(int num) {
+            Arrays.fill(values, valueSize - num, valueSize, null);
+            valueSize -= num;
+        }
+
+        // 出错时丢弃这次调用留下的内容
+        private void truncate(int size, int valueSize) {
+            Arrays.fill(nodes, size, this.size, null);
+            Arrays.fill(frames, size, this.size, null);
+            Arrays.fill(extras, size, this.size, null);
+            Arrays.fill(values, valueSize, this.valueSize, null);
+            this.size = size;
+            this.valueSize = valueSize;
+        }
+    }
+
+    // 纯函数缓存的key,函数体算完后放进缓存
+    private static final class MemoCall {
+        private final ExprCache<BigDecimal> cache;
+        private final String key;
+
+        private MemoCall(ExprCache<BigDecimal> cache, String key) {
+            this.cache = cache;
+            this.key = key;
+        }
+    }
+
+    private BigDecimal calculateDeep(Node headNode, Frame frame, Map<String, BigDecimal> varMap) {
+        CalcStack stack = calcStack;
+        int base = stack.size, valueBase = stack.valueSize;
+        stack.push(headNode, 0, frame, null);
+        try {
+            while (stack.size > base) {
+                int top = --stack.size;
+                Node node = stack.nodes[top];
+                int state = stack.states[top];
+                Frame nodeFrame = stack.frames[top];
+                Object extra = stack.extras[top];
+                stack.nodes[top] = null;
+                stack.frames[top] = null;
+                stack.extras[top] = null;
+                if (state == 0) {
+                    expand(stack, node, nodeFrame, varMap);
+                } else {
+                    reduce(stack, node, state, nodeFrame, extra);
+                }
+            }
+            return stack.popValue();
+        } finally {
+            if (stack.size != base || stack.valueSize != valueBase) {
+                stack.truncate(base, valueBase);
+            }
+        }
+    }
+
+    // 叶子节点直接算出值,其它节点先把自己(状态1)再把需要的子节点入栈
+    private void expand(CalcStack stack, Node headNode, Frame frame, Map<String, BigDecimal> varMap) {
+        if (counting) nodeCount++;
+        List<Node> children = headNode.getChildren();
+        switch (headNode.getType()) {
+            case NUMBER:
+                stack.pushValue(headNode.getNumber());
+                break;
+            case VAR:
+                if (counting) lookupCount++;
+                BigDecimal val = lookupVar(headNode, frame, varMap);
+                if (val == null) {
+                    throw new IllegalArgumentException("找不到变量:" + headNode);
+                }
+                stack.pushValue(val);
+                break;
+            case OPERATOR:
+                Operator operator = token2Operator.get(headNode.getToken());
+                if (children.size() < operator.getLeftArgNum() + operator.getRightArgNum()) {
+                    throw new IllegalArgumentException("计算参数不足:" + headNode);
+                }
+                stack.push(headNode, 1, frame, null);
+                if (isLazyOperator(headNode.getToken())) {
+                    // 短路求值:先只算第一个参数
+                    stack.push(children.get(0), 0, frame, null);
+                } else {
+                    pushChildren(stack, children, children.size(), frame, varMap);
+                }
+                break;
+            case EXPR:
+                stack.push(headNode, 1, frame, null);
+                pushChildren(stack, children, children.size(), frame, varMap);
+                break;
+            case FUNCTION:
+                int childNum = children == null ? 0 : children.size();
+                NativeFunction function = headNode.getNativeFunction();
+                if (function == null) function = registry.getNativeFunction(headNode.getToken());
+                if (function != null) {
+                    if (childNum != function.getArity()) {
+                        throw new IllegalArgumentException("函数参数不匹配:" + exprToStr(headNode) + ",需要" + function.getArity() + "个参数");
+                    }
+                    stack.push(headNode, 1, frame, function);
+                    if (childNum > 0) pushChildren(stack, children, childNum, frame, varMap);
+                    break;
+                }
+                Expr expr = registry.getExpr(headNode.getToken());
+                if (expr == null) {
+                    throw new IllegalArgumentException("函数不存在:" + headNode);
+                }
+                int argNum = expr.getArgNames().size();
+                if (childNum < argNum) {
+                    throw new IllegalArgumentException("函数参数不匹配:" + exprToStr(headNode) + ",expr:" + exprToStr(expr));
+                }
+                stack.push(headNode, 1, frame, expr);
+                if (argNum > 0) pushChildren(stack, children, argNum, frame, varMap);
+                break;
+            case ASSIGN:
+                Node varNode = children.get(0);
+                if (varNode.getType() != NodeType.VAR) {
+                    throw new IllegalArgumentException("赋值语句左侧不是变量:" + headNode);
+                }
+                stack.push(headNode, 1, frame, null);
+                stack.push(children.get(1), 0, frame, null);
+                break;
+            default:
+                throw new IllegalArgumentException("无效的token:" + headNode);
+        }
+    }
+
+    // 子节点都是数字或变量时直接按顺序算出值,不经过节点栈;否则倒序入栈,出栈时按原顺序计算
+    private void pushChildren(CalcStack stack, List<Node> children, int num, Frame frame, Map<String, BigDecimal> varMap) {
+        for (int i = 0; i < num; i++) {
+            if (!isLeaf(children.get(i))) {
+                for (ListIterator<Node> it = children.listIterator(num); it.hasPrevious(); ) {
+                    stack.push(it.previous(), 0, frame, null);
+                }
+                return;
+            }
+        }
+        for (int i = 0; i < num; i++) {
+            expand(stack, children.get(i), frame, varMap);
+        }
+    }
+
+    private static boolean isLeaf(Node node) {
+        return node.getType() == NodeType.NUMBER || node.getType() == NodeType.VAR;
+    }
+
+    // 子节点的值都在值栈顶上,算出节点的值
+    private void reduce(CalcStack stack, Node headNode, int state, Frame frame, Object extra) {
+        List<Node> children = headNode.getChildren();
+        switch (headNode.getType()) {
+            case OPERATOR:
+                if (isLazyOperator(headNode.getToken())) {
+                    reduceLazy(stack, headNode, state, frame);
+                    break;
+                }
+                int num = children.size();
+                List<BigDecimal> args = new ArrayList<>(num);
+                for (int i = stack.valueSize - num; i < stack.valueSize; i++) {
+                    args.add(stack.values[i]);
+                }
+                stack.popValues(num);
+                stack.pushValue(registry.getOperatorFunc(headNode.getToken()).apply(args));
+                break;
+            case EXPR:
+                // 结果是最后一条语句的值
+                BigDecimal result = children.isEmpty() ? null : stack.peekValue();
+                stack.popValues(children.size());
+                stack.pushValue(result);
+                break;
+            case FUNCTION:
+                if (extra instanceof NativeFunction) {
+                    NativeFunction function = (NativeFunction) extra;
+                    int from = stack.valueSize - function.getArity();
+                    if (counting) callCount++;
+                    // 参数直接从值栈上传,不复制
+                    BigDecimal value = function.invoke(stack.values, from);
+                    stack.popValues(function.getArity());
+                    stack.pushValue(value);
+                } else if (extra instanceof Expr) {
+                    call(stack, headNode, frame, (Expr) extra);
+                } else {
+                    MemoCall memoCall = (MemoCall) extra;
+                    stack.pushValue(memoCall.cache.put(memoCall.key, stack.popValue()));
+                }
+                break;
+            case ASSIGN:
+                assignVar(children.get(0).getToken(), stack.peekValue());
+                break;
+            default:
+                throw new IllegalArgumentException("无效的token:" + headNode);
+        }
+    }
+
+    // 参数已算好,只分配参数个数大小的栈帧,不复制变量表。函数体入栈,结果就是调用的值
+    private void call(CalcStack stack, Node headNode, Frame frame, Expr expr) {
+        int argNum = expr.getArgNames().size();
+        BigDecimal[] slots = Arrays.copyOfRange(stack.values, stack.valueSize - argNum, stack.valueSize);
+        stack.popValues(argNum);
+        if (counting) callCount++;
+        Frame callFrame = new Frame(expr, slots, frame);
+        ExprCache<BigDecimal> memoCache = registry.getMemoCache(headNode.getToken());
+        if (memoCache == null) {
+            stack.push(expr.getBody(), 0, callFrame, null);
+            return;
+        }
+        String key = memoKey(slots);
+        BigDecimal result = memoCache.get(key);
+        if (result != null) {
+            stack.pushValue(result);
+            return;
+        }
+        stack.push(headNode, 2, frame, new MemoCall(memoCache, key));
+        stack.push(expr.getBody(), 0, callFrame, null);
+    }
+
+    // 第一个参数已算好,按结果决定还要算哪个参数
+    private void reduceLazy(CalcStack stack, Node headNode, int state, Frame frame) {
+        boolean cond = isTrue(stack.popValue());
+        List<Node> children = headNode.getChildren();
+        switch (headNode.getToken()) {
+            case "&&":
+                if (state == 1 && cond) {
+                    stack.push(headNode, 2, frame, null);
+                    stack.push(children.get(1), 0, frame, null);
+                } else {
+                    stack.pushValue(cond ? BigDecimal.ONE : BigDecimal.ZERO);
+                }
+                break;
+            case "||":
+                if (state == 1 && !cond) {
+                    stack.push(headNode, 2, frame, null);
+                    stack.push(children.get(1), 0, frame, null);
+                } else {
+                    stack.pushValue(cond ? BigDecimal.ONE : BigDecimal.ZERO);
+                }
+                break;
+            default:
+                // ?:选中的分支的值就是结果
+                stack.push(children.get(cond ? 1 : 2), 0, frame, null);
+        }
+    }
+
+    // BigDecimal.toString和数值、精度一一对应,2和2.0是不同的key
+    static String memoKey(BigDecimal[] args) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < args.length; i++) {
+            if (i > 0) sb.append(',');
+            sb.append(args[i]);
+        }
+        return sb.toString();
+    }
 
     private String getTempVarName() {
-        return "$" + tempVarIndex.incrementAndGet();
+        return "$" + (++tempVarIndex);
     }
 
+    /**
+     * 设置变量。响应式模式下手动设置的值覆盖原来的公式,并重新计算依赖它的变量
+     */
     public void putVar(String name, BigDecimal val) {
-//        Integer maxKey = varMap.keySet().stream().filter(it -> it.matches("\\$[0-9]+"))
-//                -                .map(it -> Integer.valueOf(it.substring(1))).max(Integer::compareTo).orElse(0);
-        if (name.matches("\\$[0-9]+")) {
-            Integer index = Integer.valueOf(name.substring(1));
-            for (int maxIndex; index > (maxIndex = tempVarIndex.get()) || !tempVarIndex.compareAndSet(maxIndex, index); ) {
-            }
+        setVar(name, val);
+        if (dependencyGraph != null) {
+            dependencyGraph.remove(name);
+            recalculate(Collections.singleton(name));
+        }
+    }
+
+    // 表达式中的赋值,不覆盖公式
+    void assignVar(String name, BigDecimal val) {
+        setVar(name, val);
+        if (assignedNames != null) {
+            assignedNames.add(name);
+        } else if (dependencyGraph != null) {
+            recalculate(Collections.singleton(name));
+        }
+    }
+
+    private void setVar(String name, BigDecimal val) {
+        if (registry.getImmutableConstants().containsKey(name)) {
+            throw new IllegalArgumentException("常量不能修改:" + name);
+        }
+        // 只有$开头的临时变量才需要更新最大序号,不用正则
+        if (name.length() > 1 && name.charAt(0) == '$') {
+            int index = parseTempVarIndex(name);
+            if (index > tempVarIndex) tempVarIndex = index;
         }
         varMap.put(name, val);
     }
 
+    // $后全是数字时返回序号,否则返回-1
+    private static int parseTempVarIndex(String name) {
+        int index = 0;
+        for (int i = 1; i < name.length(); i++) {
+            char ch = name.charAt(i);
+            if (ch < '0' || ch > '9' || index > (Integer.MAX_VALUE - 9) / 10) return -1;
+            index = index * 10 + (ch - '0');
+        }
+        return index;
+    }
+
+    public boolean isReactive() {
+        return dependencyGraph != null;
+    }
+
+    /**
+     * 响应式模式:记录赋值语句中变量之间的依赖,变量变化时按拓扑顺序只重新计算受影响的下游变量。
+     * 关闭时清空记录的公式
+     */
+    public void setReactive(boolean reactive) {
+        if (!reactive) {
+            dependencyGraph = null;
+        } else if (dependencyGraph == null) {
+            dependencyGraph = new DependencyGraph();
+        }
+    }
+
+    /**
+     * 变量变化后需要重新计算的变量,按计算顺序
+     */
+    public List<String> getRecalculateOrder(String name) {
+        return dependencyGraph == null ? Collections.emptyList() : dependencyGraph.downstream(Collections.singleton(name));
+    }
+
+    // 把表达式里的赋值记录成公式,嵌套的赋值改成读取被赋值的变量,如y=(x=a+1)*2记录为x=a+1和y=x*2
+    private void addFormulas(Expr expr) {
+        if (dependencyGraph == null) return;
+        Map<String, Node> formulas = new LinkedHashMap<>();
+        extractFormulas(expr, formulas);
+        for (Map.Entry<String, Node> entry : formulas.entrySet()) {
+            Set<String> deps = new LinkedHashSet<>();
+            findVarNames(entry.getValue(), deps);
+            deps.removeAll(registry.getImmutableConstants().keySet());
+            dependencyGraph.put(entry.getKey(), entry.getValue(), deps);
+        }
+    }
+
+    private static Node extractFormulas(Node headNode, Map<String, Node> formulas) {
+        return transform(headNode, node -> isVarAssign(node) ? node.getChildren().subList(1, 2) : node.getChildren(),
+                (Node node, List<Node> children) -> {
+                    if (node.getChildren() == null) return node;
+                    if (isVarAssign(node)) {
+                        Node varNode = node.getChildren().get(0);
+                        formulas.put(varNode.getToken(), children.get(0));
+                        return new Node(NodeType.VAR, varNode.getToken(), varNode.getRowBegin(), varNode.getRowEnd());
+                    }
+                    boolean changed = false;
+                    Iterator<Node> iterator = node.getChildren().iterator();
+                    for (Node child : children) {
+                        changed |= child != iterator.next();
+                    }
+                    if (!changed) return node;
+                    Node copy = new Node(node.getType(), node.getToken(), node.getRowBegin(), node.getRowEnd());
+                    copy.setValue(node.getValue());
+                    copy.setNativeFunction(node.getNativeFunction());
+                    copy.setChildren(children);
+                    return copy;
+                });
+    }
+
+    private static boolean isVarAssign(Node node) {
+        return node.getType() == NodeType.ASSIGN && node.getChildren() != null && node.getChildren().get(0).getType() == NodeType.VAR;
+    }
+
+    // 响应式模式下,计算结束后统一重新计算被赋值变量的下游
+    private <T> T reactive(Supplier<T> evaluation) {
+        if (dependencyGraph == null || assignedNames != null) {
+            return evaluation.get();
+        }
+        assignedNames = new LinkedHashSet<>();
+        try {
+            T result = evaluation.get();
+            Set<String> names = assignedNames;
+            assignedNames = null;
+            recalculate(names);
+            return result;
+        } finally {
+            assignedNames = null;
+        }
+    }
+
+    private void recalculate(Set<String> names) {
+        List<String> order = dependencyGraph.downstream(names);
+        if (order.isEmpty()) return;
+        Set<String> savedNames = assignedNames;
+        // 重新计算时函数体内的赋值不再触发重新计算
+        assignedNames = new HashSet<>();
+        try {
+            for (String target : order) {
+                varMap.put(target, calculate(dependencyGraph.getFormula(target).value, varMap));
+            }
+        } finally {
+            assignedNames = savedNames;
+        }
+        log.debug("重新计算:{}", order);
+    }
+
     public BigDecimal getVar(String name) {
         return varMap.get(name);
     }
@@ -389,116 +2040,158 @@ public class Evaluate {
         return new LinkedHashMap<>(varMap);
     }
 
-    private static void printNodes(Node head, String prefix, List<String> lines) {
-        lines.add(prefix + "|-" + head);
-        if (head.getChildren() == null) return;
-        for (Node node : head.getChildren()) {
-            printNodes(node, prefix + "  ", lines);
+    public static String printNodes(Node headNode, String exprText) {
+        StringBuilder sb = new StringBuilder("expr:").append(exprText);
+        // 节点和它的缩进层数
+        Deque<Node> nodes = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        nodes.push(headNode);
+        depths.push(0);
+        while (!nodes.isEmpty()) {
+            Node node = nodes.pop();
+            int depth = depths.pop();
+            sb.append('\n');
+            for (int i = 0; i < depth; i++) sb.append("  ");
+            sb.append("|-").append(node);
+            if (node.getChildren() == null) continue;
+            for (ListIterator<Node> it = node.getChildren().listIterator(node.getChildren().size()); it.hasPrevious(); ) {
+                nodes.push(it.previous());
+                depths.push(depth + 1);
+            }
         }
+        return sb.toString();
     }
 
-    public static String printNodes(Node headNode, String exprText) {
-        List<String> lines = new LinkedList<>();
-        lines.add("expr:" + exprText);
-        printNodes(headNode, "", lines);
-        return String.join("\n", lines);
+    public String exprToStr(Node headNode) {
+        StringBuilder sb = new StringBuilder();
+        // 待输出的文本和节点,用栈代替递归
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(headNode);
+        while (!stack.isEmpty()) {
+            Object item = stack.pop();
+            if (item instanceof String) {
+                sb.append((String) item);
+            } else {
+                appendStr((Node) item, sb, stack);
+            }
+        }
+        return sb.toString();
     }
 
-    public String exprToStr(Node headNode) {
-//        return exprToStr(headNode, Collections.EMPTY_MAP, Collections.EMPTY_MAP);
-//    }
-//
-//    public static String exprToStr(Node headNode, Map<String, BigDecimal> varMap, Map<String, Expr> exprMap) {
+    // 开头的文本直接输出,后面的部分倒序入栈
+    private void appendStr(Node headNode, StringBuilder sb, Deque<Object> stack) {
+        List<Node> children = headNode.getChildren();
         if (headNode.getType() == NodeType.OPERATOR || headNode.getType() == NodeType.ASSIGN) {
-            if (headNode.getChildren() == null || headNode.getChildren().isEmpty()) {
-                return headNode.getToken();
+            if (children == null || children.isEmpty()) {
+                sb.append(headNode.getToken());
+                return;
+            }
+            sb.append('(');
+            stack.push(")");
+            if ("?".equals(headNode.getToken())) {
+                Iterator<Node> iterator = children.iterator();
+                Node test = iterator.next(), then = iterator.next();
+                stack.push(iterator.next());
+                stack.push(":");
+                stack.push(then);
+                stack.push("?");
+                stack.push(test);
+                return;
             }
             Operator operator = token2Operator.get(headNode.getToken());
-            Iterator<Node> iterator = headNode.getChildren().iterator();
-            List<Node> lefts = new LinkedList<>(), rights = new LinkedList<>();
-            for (int i = 0; i < operator.getLeftArgNum(); i++) lefts.add(iterator.next());
-            for (int i = 0; i < operator.getRightArgNum(); i++) rights.add(iterator.next());
-            return "(" + nodesToStr(lefts) + headNode.getToken() + nodesToStr(rights) + ")";
+            int leftNum = operator.getLeftArgNum();
+            pushNodes(children.subList(leftNum, leftNum + operator.getRightArgNum()), stack);
+            stack.push(headNode.getToken());
+            pushNodes(children.subList(0, leftNum), stack);
         } else if (headNode.getType() == NodeType.FUNCTION) {
-            if (headNode.getChildren() == null || headNode.getChildren().isEmpty()) {
-                return headNode.getToken();
-            }
-            Expr expr = exprMap.get(headNode.getToken());
-            Iterator<String> argNameIterator = expr.getArgNames().iterator();
-            Iterator<Node> iterator = headNode.getChildren().iterator();
-            String str = headNode.getToken() + "(";
-            while (argNameIterator.hasNext()) {
-//                str += argNameIterator.next() + "=" + exprToStr(iterator.next()) + (argNameIterator.hasNext() ? "," : ")");
-                argNameIterator.next();
-                str += exprToStr(iterator.next()) + (argNameIterator.hasNext() ? "," : ")");
-            }
-            return str;
+            sb.append(headNode.getToken());
+            if (children == null || children.isEmpty()) return;
+            // 缓存的表达式可能先于函数定义解析,按实参打印,不依赖exprMap
+            sb.append('(');
+            pushSeparated(children, ")", stack);
         } else if (headNode.getType() == NodeType.NUMBER) {
-            return headNode.getToken();
+            sb.append(headNode.getToken());
         } else if (headNode.getType() == NodeType.VAR) {
             BigDecimal val = varMap.get(headNode.getToken());
-            return (val != null ? (val + "@") : "") + headNode.getToken();
+            if (val != null) sb.append(val).append('@');
+            sb.append(headNode.getToken());
         } else {
-            return nodesToStr(headNode.getChildren());
+            pushNodes(children, stack);
         }
     }
 
-    private String nodesToStr(List<Node> nodes) {
-//        return nodesToStr(nodes, Collections.EMPTY_MAP, Collections.EMPTY_MAP);
-//    }
-//
-//    private static String nodesToStr(List<Node> nodes, Map<String, BigDecimal> varMap, Map<String, Expr> exprMap) {
-        if (nodes == null || nodes.isEmpty()) return "";
+    // 一个节点直接输出,多个节点输出成{a,b}
+    private static void pushNodes(List<Node> nodes, Deque<Object> stack) {
+        if (nodes == null || nodes.isEmpty()) return;
         if (nodes.size() == 1) {
-            return exprToStr(nodes.get(0));
-        } else {
-            return nodes.stream().map(it -> exprToStr(it)).collect(Collectors.joining(",", "{", "}"));
+            stack.push(nodes.get(0));
+            return;
         }
+        pushSeparated(nodes, "}", stack);
+        stack.push("{");
     }
 
-    private Node handleOperator(Node parentNode, boolean isStartLeft, Set<String> operatorTokens) {
-        if (parentNode.getChildren() == null || parentNode.getChildren().isEmpty()) return parentNode;
-        if (parentNode.getChildren().size() == 1) {
-            return handleOperator(parentNode.getChildren().get(0), isStartLeft, operatorTokens);
+    // 节点之间用逗号分隔,最后是end
+    private static void pushSeparated(List<Node> nodes, String end, Deque<Object> stack) {
+        stack.push(end);
+        for (ListIterator<Node> it = nodes.listIterator(nodes.size()); it.hasPrevious(); ) {
+            stack.push(it.previous());
+            if (it.hasPrevious()) stack.push(",");
         }
-//        log.info("handleOperator111:parent={},children={}", parentNode, nodesToStr(parentNode.getChildren()));
-        LinkedList<Node> children = new LinkedList<>();
-        Iterator<Node> iterator = getIterator(parentNode.getChildren(), isStartLeft);
-        while (iterator.hasNext()) {
-            Node node = iterator.next();
-            if (operatorTokens.contains(node.getToken())) {
-                Operator operator = token2Operator.get(node.getToken());
-                if (operator == null) {
-                    throw new IllegalArgumentException("token不合法:" + node);
-                }
-                LinkedList<Node> argNodes = new LinkedList<>();
-                int argNum1 = isStartLeft ? operator.getLeftArgNum() : operator.getRightArgNum();
-                for (int i = 0; i < argNum1; i++) {
-                    if (children.isEmpty()) {
-                        throw new IllegalArgumentException(node.getType().getName() + (isStartLeft ? "左" : "右") + "侧参数缺失:" + node);
+    }
+
+    // 子节点先处理完,再按本次的操作符分组。参与分组的操作符节点没有子节点,处理结果是它自己
+    private Node handleOperator(Node rootNode, boolean isStartLeft, Set<String> operatorTokens) {
+        return transform(rootNode, Node::getChildren, (Node parentNode, List<Node> results) -> {
+            if (results.isEmpty()) return parentNode;
+            // 函数节点不能用唯一的参数代替
+            boolean isFunction = parentNode.getType() == NodeType.FUNCTION;
+            if (results.size() == 1 && !isFunction) {
+                return results.get(0);
+            }
+            // 原来的子节点和处理结果一一对应
+            Map<Node, Node> resultMap = new IdentityHashMap<>();
+            Iterator<Node> resultIterator = results.iterator();
+            for (Node node : parentNode.getChildren()) {
+                resultMap.put(node, resultIterator.next());
+            }
+            LinkedList<Node> children = new LinkedList<>();
+            Iterator<Node> iterator = getIterator(parentNode.getChildren(), isStartLeft);
+            while (iterator.hasNext()) {
+                Node node = iterator.next();
+                if (operatorTokens.contains(node.getToken())) {
+                    Operator operator = token2Operator.get(node.getToken());
+                    if (operator == null) {
+                        throw new IllegalArgumentException("token不合法:" + node);
                     }
-                    argNodes.add(isStartLeft ? 0 : argNodes.size(), children.removeLast()); // 从左往右遍历,右侧参数已处理过
-                }
-                int argNum2 = isStartLeft ? operator.getRightArgNum() : operator.getLeftArgNum();
-                for (int i = 0; i < argNum2; i++) {
-                    if (!iterator.hasNext()) {
-                        throw new IllegalArgumentException(node.getType().getName() + (isStartLeft ? "右" : "左") + "侧参数缺失:" + node);
+                    LinkedList<Node> argNodes = new LinkedList<>();
+                    int argNum1 = isStartLeft ? operator.getLeftArgNum() : operator.getRightArgNum();
+                    for (int i = 0; i < argNum1; i++) {
+                        if (children.isEmpty()) {
+                            throw new IllegalArgumentException(node.getType().getName() + (isStartLeft ? "左" : "右") + "侧参数缺失:" + node);
+                        }
+                        // 从左往右遍历时右侧参数已处理过,从右往左遍历时左侧参数已处理过
+                        argNodes.add(isStartLeft ? 0 : argNodes.size(), isStartLeft ? children.removeLast() : children.removeFirst());
+                    }
+                    int argNum2 = isStartLeft ? operator.getRightArgNum() : operator.getLeftArgNum();
+                    for (int i = 0; i < argNum2; i++) {
+                        if (!iterator.hasNext()) {
+                            throw new IllegalArgumentException(node.getType().getName() + (isStartLeft ? "右" : "左") + "侧参数缺失:" + node);
+                        }
+                        argNodes.add(isStartLeft ? argNodes.size() : 0, resultMap.get(iterator.next()));
                     }
-                    argNodes.add(isStartLeft ? argNodes.size() : 0, handleOperator(iterator.next(), isStartLeft, operatorTokens));
+                    node.setChildren(argNodes);
+                    children.add(isStartLeft ? children.size() : 0, node);
+                } else {
+                    children.add(isStartLeft ? children.size() : 0, resultMap.get(node));
                 }
-                node.setChildren(argNodes);
-                children.add(node);
-            } else {
-                node = handleOperator(node, isStartLeft, operatorTokens);
-                children.add(isStartLeft ? children.size() : 0, node);
             }
-        }
-//        log.info("handleOperator222:parent={},children={}", parentNode, nodesToStr(children));
-        parentNode.setChildren(children);
-        while (parentNode.getChildren() != null && parentNode.getChildren().size() == 1) {
-            parentNode = parentNode.getChildren().get(0);
-        }
-        return parentNode;
+            parentNode.setChildren(children);
+            while (parentNode.getType() != NodeType.FUNCTION && parentNode.getChildren() != null && parentNode.getChildren().size() == 1) {
+                parentNode = parentNode.getChildren().get(0);
+            }
+            return parentNode;
+        });
     }
 
     private static <T> Iterator<T> getIterator(List<T> list, boolean isStartLeft) {
@@ -571,41 +2264,4 @@ public class Evaluate {
         }
     }
 
-    private List<Node> expr2Nodes(String expr) {
-        List<Node> nodes = new ArrayList<>();
-        for (int i = 0; i < expr.length(); ) {
-            char ch = expr.charAt(i);
-            if (!symbols_all[ch]) {
-                i++;
-            } else if (symbols_number[ch]) {
-                int j = i + 1;
-                while (j < expr.length() && symbols_float[expr.charAt(j)]) j++;
-                String number = expr.substring(i, j);
-                nodes.add(new Node(NodeType.NUMBER, number, i, j));
-                i = j;
-            } else if (symbols_operator[ch]) {
-                nodes.add(new Node(NodeType.OPERATOR, ch + "", i, i + 1));
-                i++;
-            } else if (symbols_bracket[ch]) {
-                nodes.add(new Node(NodeType.BRACKET, ch + "", i, i + 1));
-                i++;
-            } else if (symbols_var_start[ch]) {
-                int j = i + 1;
-                while (j < expr.length() && symbols_var_name[expr.charAt(j)]) j++;
-                String varName = expr.substring(i, j);
-                nodes.add(new Node(NodeType.VAR, varName, i, j));
-                i = j;
-            } else if (symbols_assign[ch]) {
-                nodes.add(new Node(NodeType.ASSIGN, ch + "", i, i + 1));
-                i++;
-            } else if (symbols_end[ch]) {
-                nodes.add(new Node(NodeType.END, ch + "", i, i + 1));
-                i++;
-            } else {
-                i++;
-            }
-        }
-        return nodes;
-    }
-
 }
@@ -0,0 +1,369 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.Expr;
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.Node;
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.NodeType;
+import lombok.Getter;
+
+import java.math.BigDecimal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+/**
+ * 表达式展开成的后缀指令,由ExprVM执行。不可变,可以多线程共享。
+ * 每条指令是操作码加0~2个操作数,放在一个int数组里;常量和名称放在各自的表里用下标引用。
+ * 函数调用不内联,执行时按名称查找函数,所以支持递归,函数重新定义后不用重新生成;
+ * 解析时已绑定的Java函数不能重新定义,生成时直接放进函数表。
+ * &&、||和?:生成条件跳转,没有用到的分支不执行。生成时用显式的栈,表达式的深度不受线程栈大小限制
+ */
+public class ExprBytecode {
+
+    public static final int PUSH_CONST = 0; // 常量下标
+    public static final int LOAD_ARG = 1; // 参数下标
+    public static final int LOAD_VAR = 2; // 名称下标,沿调用链按名称查找后查全局变量
+    public static final int STORE = 3; // 名称下标,写全局变量,值留在栈上
+    public static final int ADD = 4;
+    public static final int SUB = 5;
+    public static final int MUL = 6;
+    public static final int DIV = 7;
+    public static final int POW = 8;
+    public static final int POP = 9;
+    public static final int CALL = 10; // 函数名下标,实参个数
+    public static final int CALL_NATIVE = 11; // Java函数下标,实参个数
+    // 比较栈顶两个值,结果是1或0
+    public static final int LT = 12;
+    public static final int LE = 13;
+    public static final int GT = 14;
+    public static final int GE = 15;
+    public static final int EQ = 16;
+    public static final int NE = 17;
+    public static final int JUMP = 18; // 目标位置
+    public static final int JUMP_IF_FALSE = 19; // 目标位置,弹出栈顶,为0时跳转
+    public static final int JUMP_IF_TRUE = 20; // 目标位置,弹出栈顶,非0时跳转
+
+    private static final String[] OP_NAMES = {
+            "PUSH_CONST", "LOAD_ARG", "LOAD_VAR", "STORE", "ADD", "SUB", "MUL", "DIV", "POW", "POP", "CALL", "CALL_NATIVE",
+            "LT", "LE", "GT", "GE", "EQ", "NE", "JUMP", "JUMP_IF_FALSE", "JUMP_IF_TRUE"};
+    private static final int[] OPERAND_NUMS = {1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 2, 2, 0, 0, 0, 0, 0, 0, 1, 1, 1};
+
+    @Getter
+    private final Expr expr;
+    // 是否是函数体,函数体中的参数按下标读取
+    @Getter
+    private final boolean function;
+    private final int[] code;
+    private final BigDecimal[] constants;
+    private final String[] names;
+    private final NativeFunction[] natives;
+    // 执行时操作数栈的最大深度
+    @Getter
+    private final int maxStack;
+
+    private ExprBytecode(Expr expr, boolean function, int[] code, BigDecimal[] constants, String[] names,
+                         NativeFunction[] natives, int maxStack) {
+        this.expr = expr;
+        this.function = function;
+        this.code = code;
+        this.constants = constants;
+        this.names = names;
+        this.natives = natives;
+        this.maxStack = maxStack;
+    }
+
+    /**
+     * 整个表达式,变量都是全局变量
+     */
+    public static ExprBytecode compile(Expr expr) {
+        return new Emitter(false).emitAll(expr, expr);
+    }
+
+    /**
+     * 作为函数调用时执行的函数体,参数按槽位读取
+     */
+    public static ExprBytecode compileFunction(Expr expr) {
+        return new Emitter(true).emitAll(expr, expr.getBody());
+    }
+
+    int[] code() {
+        return code;
+    }
+
+    BigDecimal constant(int index) {
+        return constants[index];
+    }
+
+    String name(int index) {
+        return names[index];
+    }
+
+    NativeFunction nativeFunction(int index) {
+        return natives[index];
+    }
+
+    public int getCodeLength() {
+        return code.length;
+    }
+
+    /**
+     * 操作符对应的操作码
+     */
+    static int operator(Node node) {
+        switch (node.getToken()) {
+            case "+":
+                return ADD;
+            case "-":
+                return SUB;
+            case "*":
+                return MUL;
+            case "/":
+                return DIV;
+            case "^":
+                return POW;
+            case "<":
+                return LT;
+            case "<=":
+                return LE;
+            case ">":
+                return GT;
+            case ">=":
+                return GE;
+            case "==":
+                return EQ;
+            case "!=":
+                return NE;
+            default:
+                throw new IllegalArgumentException("无效的操作符:" + node);
+        }
+    }
+
+    private static class Emitter {
+        private final boolean function;
+        private int[] code = new int[16];
+        private int length;
+        private final List<BigDecimal> constants = new ArrayList<>();
+        private final Map<String, Integer> names = new HashMap<>();
+        private final List<String> nameList = new ArrayList<>();
+        private final List<NativeFunction> natives = new ArrayList<>();
+        private int stack;
+        private int maxStack;
+
+        private Emitter(boolean function) {
+            this.function = function;
+        }
+
+        private ExprBytecode emitAll(Expr expr, Node body) {
+            emit(body);
+            return new ExprBytecode(expr, function, Arrays.copyOf(code, length),
+                    constants.toArray(new BigDecimal[0]), nameList.toArray(new String[0]),
+                    natives.toArray(new NativeFunction[0]), maxStack);
+        }
+
+        // 用显式的栈代替递归:栈里是待生成的节点和子节点生成完之后执行的动作,按出栈顺序生成指令
+        private void emit(Node rootNode) {
+            Deque<Object> work = new ArrayDeque<>();
+            work.push(rootNode);
+            while (!work.isEmpty()) {
+                Object item = work.pop();
+                if (item instanceof Runnable) {
+                    ((Runnable) item).run();
+                } else {
+                    emit((Node) item, work);
+                }
+            }
+        }
+
+        // 倒序入栈:先入栈的后执行
+        private void emit(Node headNode, Deque<Object> work) {
+            List<Node> children = headNode.getChildren();
+            switch (headNode.getType()) {
+                case NUMBER:
+                    pushConst(headNode.getNumber());
+                    break;
+                case VAR:
+                    if (function && headNode.getSlot() >= 0) {
+                        op(LOAD_ARG, 1, headNode.getSlot());
+                    } else {
+                        op(LOAD_VAR, 1, name(headNode.getToken()));
+                    }
+                    break;
+                case OPERATOR:
+                    if (children == null || children.size() < 2) {
+                        throw new IllegalArgumentException("计算参数不足:" + headNode);
+                    }
+                    if (Evaluate.isLazyOperator(headNode.getToken())) {
+                        emitLazy(headNode, work);
+                        break;
+                    }
+                    int opcode = operator(headNode);
+                    work.push((Runnable) () -> op(opcode, -1));
+                    work.push(children.get(1));
+                    work.push(children.get(0));
+                    break;
+                case ASSIGN:
+                    Node varNode = children.get(0);
+                    if (varNode.getType() != NodeType.VAR) {
+                        throw new IllegalArgumentException("赋值语句左侧不是变量:" + headNode);
+                    }
+                    int nameIndex = name(varNode.getToken());
+                    work.push((Runnable) () -> op(STORE, 0, nameIndex));
+                    work.push(children.get(1));
+                    break;
+                case EXPR:
+                    if (children == null || children.isEmpty()) {
+                        throw new IllegalArgumentException("空表达式:" + headNode);
+                    }
+                    // 语句之间弹出上一条语句的值
+                    for (ListIterator<Node> it = children.listIterator(children.size()); it.hasPrevious(); ) {
+                        work.push(it.previous());
+                        if (it.hasPrevious()) work.push((Runnable) () -> op(POP, -1));
+                    }
+                    break;
+                case FUNCTION:
+                    int argNum = children == null ? 0 : children.size();
+                    NativeFunction nativeFunction = headNode.getNativeFunction();
+                    if (nativeFunction != null) {
+                        int index = natives.indexOf(nativeFunction);
+                        if (index < 0) {
+                            natives.add(nativeFunction);
+                            index = natives.size() - 1;
+                        }
+                        int nativeIndex = index;
+                        work.push((Runnable) () -> op(CALL_NATIVE, 1 - argNum, nativeIndex, argNum));
+                    } else {
+                        int funcIndex = name(headNode.getToken());
+                        work.push((Runnable) () -> op(CALL, 1 - argNum, funcIndex, argNum));
+                    }
+                    for (int i = argNum - 1; i >= 0; i--) {
+                        work.push(children.get(i));
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("无效的token:" + headNode);
+            }
+        }
+
+        // 两个分支各自把一个值压栈,跳转前的分支执行完后栈深度要减回去。跳转目标在生成到目标位置时回填
+        private void emitLazy(Node headNode, Deque<Object> work) {
+            List<Node> children = headNode.getChildren();
+            // 待回填的跳转指令的操作数位置
+            int[] jumps = new int[3];
+            List<Object> items;
+            switch (headNode.getToken()) {
+                case "?":
+                    if (children.size() < 3) {
+                        throw new IllegalArgumentException("计算参数不足:" + headNode);
+                    }
+                    items = Arrays.asList(children.get(0),
+                            (Runnable) () -> jumps[0] = op(JUMP_IF_FALSE, -1, 0),
+                            children.get(1),
+                            (Runnable) () -> {
+                                jumps[1] = op(JUMP, -1, 0);
+                                code[jumps[0]] = length;
+                            },
+                            children.get(2),
+                            (Runnable) () -> code[jumps[1]] = length);
+                    break;
+                case "&&":
+                    items = Arrays.asList(children.get(0),
+                            (Runnable) () -> jumps[0] = op(JUMP_IF_FALSE, -1, 0),
+                            children.get(1),
+                            (Runnable) () -> {
+                                jumps[1] = op(JUMP_IF_FALSE, -1, 0);
+                                pushConst(BigDecimal.ONE);
+                                jumps[2] = op(JUMP, -1, 0);
+                                code[jumps[0]] = code[jumps[1]] = length;
+                                pushConst(BigDecimal.ZERO);
+                                code[jumps[2]] = length;
+                            });
+                    break;
+                default:
+                    items = Arrays.asList(children.get(0),
+                            (Runnable) () -> jumps[0] = op(JUMP_IF_TRUE, -1, 0),
+                            children.get(1),
+                            (Runnable) () -> {
+                                jumps[1] = op(JUMP_IF_TRUE, -1, 0);
+                                pushConst(BigDecimal.ZERO);
+                                jumps[2] = op(JUMP, -1, 0);
+                                code[jumps[0]] = code[jumps[1]] = length;
+                                pushConst(BigDecimal.ONE);
+                                code[jumps[2]] = length;
+                            });
+            }
+            for (int i = items.size() - 1; i >= 0; i--) {
+                work.push(items.get(i));
+            }
+        }
+
+        private void pushConst(BigDecimal value) {
+            constants.add(value);
+            op(PUSH_CONST, 1, constants.size() - 1);
+        }
+
+        private int name(String name) {
+            return names.computeIfAbsent(name, it -> {
+                nameList.add(it);
+                return nameList.size() - 1;
+            });
+        }
+
+        // stackChange:执行后操作数栈深度的变化,返回第一个操作数的位置,用于回填跳转目标
+        private int op(int opcode, int stackChange, int... operands) {
+            if (length + 1 + operands.length > code.length) {
+                code = Arrays.copyOf(code, code.length * 2 + operands.length);
+            }
+            code[length++] = opcode;
+            int position = length;
+            for (int operand : operands) {
+                code[length++] = operand;
+            }
+            stack += stackChange;
+            maxStack = Math.max(maxStack, stack);
+            return position;
+        }
+    }
+
+    /**
+     * 反汇编,每行一条指令
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int pc = 0; pc < code.length; ) {
+            int opcode = code[pc];
+            sb.append(pc).append(": ").append(OP_NAMES[opcode]);
+            switch (opcode) {
+                case PUSH_CONST:
+                    sb.append(' ').append(constants[code[pc + 1]]);
+                    break;
+                case LOAD_ARG:
+                    sb.append(' ').append(code[pc + 1]).append('(').append(expr.getArgNames().get(code[pc + 1])).append(')');
+                    break;
+                case LOAD_VAR:
+                case STORE:
+                    sb.append(' ').append(names[code[pc + 1]]);
+                    break;
+                case CALL:
+                    sb.append(' ').append(names[code[pc + 1]]).append(' ').append(code[pc + 2]);
+                    break;
+                case CALL_NATIVE:
+                    sb.append(' ').append(natives[code[pc + 1]].getName()).append(' ').append(code[pc + 2]);
+                    break;
+                case JUMP:
+                case JUMP_IF_FALSE:
+                case JUMP_IF_TRUE:
+                    sb.append(' ').append(code[pc + 1]);
+                    break;
+                default:
+            }
+            sb.append('\n');
+            pc += 1 + OPERAND_NUMS[opcode];
+        }
+        return sb.toString();
+    }
+}
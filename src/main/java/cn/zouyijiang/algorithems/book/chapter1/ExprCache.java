@@ -0,0 +1,172 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * 表达式缓存,key为规范化后的表达式文本。
+ * 读操作无锁;超出容量时按最近访问时间淘汰最久未用的一批(近似LRU)。
+ * 每个缓存项记录它调用的函数名,函数被重新定义时可按函数名失效。
+ */
+public class ExprCache<V> {
+
+    private static class Entry<V> {
+        private final V value;
+        private final Collection<String> funcNames;
+        private volatile long accessTime;
+
+        private Entry(V value, Collection<String> funcNames) {
+            this.value = value;
+            this.funcNames = funcNames;
+            this.accessTime = System.nanoTime();
+        }
+    }
+
+    private final int maxSize;
+    // 缓存值依赖的函数名
+    private final Function<V, Collection<String>> dependencies;
+    private final Map<String, Entry<V>> entryMap = new ConcurrentHashMap<>();
+    // 函数名 -> 依赖它的缓存key
+    private final Map<String, Set<String>> func2Keys = new ConcurrentHashMap<>();
+    private final Object evictLock = new Object();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder invalidationCount = new LongAdder();
+
+    public ExprCache(int maxSize, Function<V, Collection<String>> dependencies) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("缓存容量必须大于0:" + maxSize);
+        }
+        this.maxSize = maxSize;
+        this.dependencies = dependencies;
+    }
+
+    public V get(String key) {
+        Entry<V> entry = entryMap.get(key);
+        if (entry == null) {
+            missCount.increment();
+            return null;
+        }
+        hitCount.increment();
+        entry.accessTime = System.nanoTime();
+        return entry.value;
+    }
+
+    /**
+     * 查找缓存,不存在时用loader加载。
+     * loader在map外执行,并发加载同一个key时以先放入的为准。
+     */
+    public V get(String key, Function<String, V> loader) {
+        V value = get(key);
+        if (value != null) return value;
+        return put(key, loader.apply(key));
+    }
+
+    public V put(String key, V value) {
+        Collection<String> funcNames = dependencies == null ? Collections.emptySet() : dependencies.apply(value);
+        Entry<V> entry = new Entry<>(value, funcNames);
+        Entry<V> preEntry = entryMap.putIfAbsent(key, entry);
+        if (preEntry != null) {
+            return preEntry.value;
+        }
+        for (String funcName : funcNames) {
+            func2Keys.computeIfAbsent(funcName, it -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+        if (entryMap.size() > maxSize) {
+            evict();
+        }
+        return value;
+    }
+
+    // 淘汰最久未访问的10%
+    private void evict() {
+        synchronized (evictLock) {
+            int overflow = entryMap.size() - maxSize;
+            if (overflow <= 0) return;
+            int evictNum = Math.max(overflow, maxSize / 10);
+            List<Map.Entry<String, Entry<V>>> entries = new ArrayList<>(entryMap.entrySet());
+            entries.sort(Comparator.comparingLong(it -> it.getValue().accessTime));
+            for (int i = 0; i < evictNum && i < entries.size(); i++) {
+                if (remove(entries.get(i).getKey()) != null) {
+                    evictionCount.increment();
+                }
+            }
+        }
+    }
+
+    public V remove(String key) {
+        Entry<V> entry = entryMap.remove(key);
+        if (entry == null) return null;
+        for (String funcName : entry.funcNames) {
+            Set<String> keys = func2Keys.get(funcName);
+            if (keys != null) keys.remove(key);
+        }
+        return entry.value;
+    }
+
+    /**
+     * 函数重新定义后,失效所有调用了该函数的缓存项
+     *
+     * @return 失效的缓存项数量
+     */
+    public int invalidateFunction(String funcName) {
+        Set<String> keys = func2Keys.remove(funcName);
+        if (keys == null) return 0;
+        int count = 0;
+        for (String key : keys) {
+            if (remove(key) != null) count++;
+        }
+        invalidationCount.add(count);
+        return count;
+    }
+
+    public void clear() {
+        entryMap.clear();
+        func2Keys.clear();
+    }
+
+    public int size() {
+        return entryMap.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    public long getInvalidationCount() {
+        return invalidationCount.sum();
+    }
+
+    public double getHitRate() {
+        long hit = hitCount.sum(), total = hit + missCount.sum();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    @Override
+    public String toString() {
+        return "ExprCache[size=" + size() + "/" + maxSize + ",hit=" + getHitCount() + ",miss=" + getMissCount()
+                + ",eviction=" + getEvictionCount() + ",invalidation=" + getInvalidationCount() + "]";
+    }
+}
@@ -0,0 +1,870 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.Expr;
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.Node;
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.NodeType;
+import lombok.Getter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * 把解析好的表达式编译成MethodHandle链:
+ * 1.变量解析为槽位,表达式函数的调用内联到调用处,参数放在调用处独占的隐藏槽位;Java函数直接调用它的MethodHandle
+ * 2.每个节点生成一个(BigDecimal[])BigDecimal的MethodHandle,由JIT内联成直接的运算;
+ * &&、||和?:编译成guardWithTest,没有用到的分支不执行
+ * 语义和Evaluate.calculate一致,包括函数内的赋值写到全局变量
+ * 同一棵节点树还可以生成double和定点数(long)的MethodHandle
+ * 编译用显式的栈,嵌套很深的表达式只有下层的子树生成MethodHandle链,上层用显式的栈执行,深度不受线程栈大小限制
+ */
+public class ExprCompiler {
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    // 一条MethodHandle链的最大深度
+    private static final int MAX_HANDLE_DEPTH = 64;
+
+    private static final MethodHandle mh_load;
+    private static final MethodHandle mh_store;
+    private static final MethodHandle mh_add;
+    private static final MethodHandle mh_subtract;
+    private static final MethodHandle mh_multiply;
+    private static final MethodHandle mh_divide;
+    private static final MethodHandle mh_pow;
+    private static final MethodHandle mh_storeDouble;
+    private static final MethodHandle mh_addDouble;
+    private static final MethodHandle mh_subtractDouble;
+    private static final MethodHandle mh_multiplyDouble;
+    private static final MethodHandle mh_divideDouble;
+    private static final MethodHandle mh_powDouble;
+    private static final MethodHandle mh_storeFixed;
+    private static final MethodHandle mh_addFixed;
+    private static final MethodHandle mh_subtractFixed;
+    private static final MethodHandle mh_multiplyFixed;
+    private static final MethodHandle mh_divideFixed;
+    private static final MethodHandle mh_powFixed;
+    private static final MethodHandle mh_multiplyScaled;
+    private static final MethodHandle mh_powScaled;
+    private static final MethodHandle mh_setScale;
+    private static final MethodHandle mh_compare;
+    private static final MethodHandle mh_compareDouble;
+    private static final MethodHandle mh_compareFixed;
+    private static final MethodHandle mh_isTrue;
+    private static final MethodHandle mh_isTrueDouble;
+    private static final MethodHandle mh_isTrueFixed;
+    private static final MethodHandle mh_toDecimal;
+    private static final MethodHandle mh_toFixed;
+    private static final MethodHandle mh_evalDeep;
+
+    static {
+        try {
+            MethodType binaryType = MethodType.methodType(BigDecimal.class, BigDecimal.class);
+            mh_load = lookup.findStatic(ExprCompiler.class, "load",
+                    MethodType.methodType(BigDecimal.class, BigDecimal[].class, int.class, String.class));
+            mh_store = lookup.findStatic(ExprCompiler.class, "store",
+                    MethodType.methodType(BigDecimal.class, BigDecimal[].class, int.class, BigDecimal.class));
+            mh_add = lookup.findVirtual(BigDecimal.class, "add", binaryType);
+            mh_subtract = lookup.findVirtual(BigDecimal.class, "subtract", binaryType);
+            mh_multiply = lookup.findVirtual(BigDecimal.class, "multiply", binaryType);
+            mh_divide = lookup.findVirtual(BigDecimal.class, "divide",
+                    MethodType.methodType(BigDecimal.class, BigDecimal.class, int.class, RoundingMode.class));
+            mh_pow = lookup.findStatic(ExprCompiler.class, "pow",
+                    MethodType.methodType(BigDecimal.class, BigDecimal.class, BigDecimal.class));
+            MethodType doubleType = MethodType.methodType(double.class, double.class, double.class);
+            mh_storeDouble = lookup.findStatic(ExprCompiler.class, "store",
+                    MethodType.methodType(double.class, double[].class, int.class, double.class));
+            mh_addDouble = lookup.findStatic(ExprCompiler.class, "add", doubleType);
+            mh_subtractDouble = lookup.findStatic(ExprCompiler.class, "subtract", doubleType);
+            mh_multiplyDouble = lookup.findStatic(ExprCompiler.class, "multiply", doubleType);
+            mh_divideDouble = lookup.findStatic(ExprCompiler.class, "divide", doubleType);
+            mh_powDouble = lookup.findStatic(Math.class, "pow", doubleType);
+            MethodType fixedType = MethodType.methodType(long.class, long.class, long.class);
+            MethodType roundType = MethodType.methodType(long.class, long.class, long.class, long.class, RoundingMode.class);
+            mh_storeFixed = lookup.findStatic(ExprCompiler.class, "store",
+                    MethodType.methodType(long.class, long[].class, int.class, long.class));
+            mh_addFixed = lookup.findStatic(FixedPoint.class, "add", fixedType);
+            mh_subtractFixed = lookup.findStatic(FixedPoint.class, "subtract", fixedType);
+            mh_multiplyFixed = lookup.findStatic(FixedPoint.class, "multiply", roundType);
+            mh_divideFixed = lookup.findStatic(FixedPoint.class, "divide", roundType);
+            mh_powFixed = lookup.findStatic(FixedPoint.class, "pow",
+                    MethodType.methodType(long.class, long.class, long.class, long.class, int.class, RoundingMode.class));
+            MethodType scaledType = MethodType.methodType(BigDecimal.class, BigDecimal.class, BigDecimal.class, int.class, RoundingMode.class);
+            mh_multiplyScaled = lookup.findStatic(ExprCompiler.class, "multiply", scaledType);
+            mh_powScaled = lookup.findStatic(ExprCompiler.class, "pow", scaledType);
+            mh_setScale = lookup.findVirtual(BigDecimal.class, "setScale",
+                    MethodType.methodType(BigDecimal.class, int.class, RoundingMode.class));
+            mh_compare = lookup.findStatic(ExprCompiler.class, "compare",
+                    MethodType.methodType(BigDecimal.class, BigDecimal.class, BigDecimal.class, int.class));
+            mh_compareDouble = lookup.findStatic(ExprCompiler.class, "compare",
+                    MethodType.methodType(double.class, double.class, double.class, int.class));
+            mh_compareFixed = lookup.findStatic(ExprCompiler.class, "compare",
+                    MethodType.methodType(long.class, long.class, long.class, int.class, long.class));
+            mh_isTrue = lookup.findStatic(Evaluate.class, "isTrue", MethodType.methodType(boolean.class, BigDecimal.class));
+            mh_isTrueDouble = lookup.findStatic(ExprCompiler.class, "isTrue", MethodType.methodType(boolean.class, double.class));
+            mh_isTrueFixed = lookup.findStatic(ExprCompiler.class, "isTrue", MethodType.methodType(boolean.class, long.class));
+            mh_toDecimal = lookup.findStatic(FixedPoint.class, "toDecimal",
+                    MethodType.methodType(BigDecimal.class, long.class, int.class));
+            mh_toFixed = lookup.findStatic(FixedPoint.class, "toFixed",
+                    MethodType.methodType(long.class, BigDecimal.class, int.class, RoundingMode.class));
+            mh_evalDeep = lookup.findVirtual(DeepEvaluator.class, "eval", MethodType.methodType(Object.class, Object.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @Getter
+    private final int scale;
+    @Getter
+    private final RoundingMode roundingMode;
+    // 按名称查找函数表达式
+    private final Function<String, Expr> funcLookup;
+    // 按名称查找Java函数,调用节点解析时没有绑定才用到
+    private final Function<String, NativeFunction> nativeLookup;
+
+    public ExprCompiler(int scale, RoundingMode roundingMode, Function<String, Expr> funcLookup,
+                        Function<String, NativeFunction> nativeLookup) {
+        this.scale = scale;
+        this.roundingMode = roundingMode;
+        this.funcLookup = funcLookup;
+        this.nativeLookup = nativeLookup;
+    }
+
+    public ExprCompiler(int scale, RoundingMode roundingMode, Function<String, Expr> funcLookup) {
+        this(scale, roundingMode, funcLookup, name -> null);
+    }
+
+    // 变量作用域,函数内联时参数在新作用域,找不到时到调用方作用域找(和calculate复制varMap一致)
+    private static class Scope {
+        private final Scope parent;
+        private final Map<String, Integer> slots = new HashMap<>();
+
+        private Scope(Scope parent) {
+            this.parent = parent;
+        }
+    }
+
+    // 一次编译的上下文
+    private static class Context {
+        private final List<String> slotNames = new ArrayList<>();
+        // 全局变量槽位
+        private final Map<String, Integer> varSlots = new LinkedHashMap<>();
+        private final Set<String> funcNames = new LinkedHashSet<>();
+        // 赋值前就读取的变量,计算前必须有值
+        private final Set<String> inputNames = new LinkedHashSet<>();
+        private final Set<String> assignNames = new LinkedHashSet<>();
+        // 正在内联的函数,用于发现递归
+        private final LinkedList<String> inlining = new LinkedList<>();
+
+        private int globalSlot(String name) {
+            return varSlots.computeIfAbsent(name, it -> newSlot(it));
+        }
+
+        private int newSlot(String name) {
+            slotNames.add(name);
+            return slotNames.size() - 1;
+        }
+
+        private int findSlot(Scope scope, String name) {
+            for (; scope != null; scope = scope.parent) {
+                Integer slot = scope.slots.get(name);
+                if (slot != null) return slot;
+            }
+            if (!assignNames.contains(name)) {
+                inputNames.add(name);
+            }
+            return globalSlot(name);
+        }
+    }
+
+    public CompiledExpr compile(Expr expr) {
+        return compile(expr, false);
+    }
+
+    /**
+     * @param eliminateCommon 是否消除公共子表达式,重复的运算用隐藏槽位保存结果
+     */
+    public CompiledExpr compile(Expr expr, boolean eliminateCommon) {
+        Context ctx = new Context();
+        CompiledNode root = resolve(expr, null, ctx);
+        int removedNodes = expr.getRemovedNodes();
+        if (eliminateCommon) {
+            ExprOptimizer.CommonEliminator eliminator = new ExprOptimizer.CommonEliminator(
+                    name -> ctx.newSlot(name + "#" + ctx.slotNames.size()));
+            root = eliminator.eliminate(root);
+            removedNodes += eliminator.getRemovedNodes();
+        }
+        return new CompiledExpr(this, expr, root, ctx.slotNames, ctx.varSlots, ctx.funcNames,
+                ctx.inputNames, ctx.assignNames, removedNodes, decimalHandle(root));
+    }
+
+    // 用显式的栈代替递归,和ExprBytecode生成指令的方式一样:栈里是待执行的动作,按出栈顺序执行,每个节点的结果依次加到results
+    private CompiledNode resolve(Node headNode, Scope scope, Context ctx) {
+        Deque<Runnable> work = new ArrayDeque<>();
+        List<CompiledNode> results = new ArrayList<>();
+        work.push(() -> resolve(headNode, scope, ctx, work, results));
+        while (!work.isEmpty()) {
+            work.pop().run();
+        }
+        return results.get(0);
+    }
+
+    private void resolve(Node headNode, Scope scope, Context ctx, Deque<Runnable> work, List<CompiledNode> results) {
+        if (headNode.getType() == NodeType.NUMBER) {
+            results.add(CompiledNode.constant(headNode.getNumber()));
+        } else if (headNode.getType() == NodeType.VAR) {
+            results.add(CompiledNode.load(headNode.getToken(), ctx.findSlot(scope, headNode.getToken())));
+        } else if (headNode.getType() == NodeType.OPERATOR) {
+            if (headNode.getChildren() == null || headNode.getChildren().size() < 2) {
+                throw new IllegalArgumentException("计算参数不足:" + headNode);
+            }
+            if (Evaluate.isLazyOperator(headNode.getToken())) {
+                resolveLazy(headNode, scope, ctx, work, results);
+                return;
+            }
+            resolveChildren(headNode.getChildren().subList(0, 2), scope, ctx, work, results,
+                    args -> CompiledNode.operator(headNode.getToken(), args[0], args[1]));
+        } else if (headNode.getType() == NodeType.ASSIGN) {
+            Node varNode = headNode.getChildren().get(0);
+            if (varNode.getType() != NodeType.VAR) {
+                throw new IllegalArgumentException("赋值语句左侧不是变量:" + headNode);
+            }
+            // 和putVar一致,赋值总是写全局变量
+            int slot = ctx.globalSlot(varNode.getToken());
+            resolveChildren(headNode.getChildren().subList(1, 2), scope, ctx, work, results, args -> {
+                ctx.assignNames.add(varNode.getToken());
+                return CompiledNode.store(varNode.getToken(), slot, args[0]);
+            });
+        } else if (headNode.getType() == NodeType.EXPR) {
+            List<Node> children = headNode.getChildren();
+            if (children == null || children.isEmpty()) {
+                throw new IllegalArgumentException("空表达式:" + headNode);
+            }
+            if (children.size() == 1) {
+                work.push(() -> resolve(children.get(0), scope, ctx, work, results));
+                return;
+            }
+            resolveChildren(children, scope, ctx, work, results, CompiledNode::seq);
+        } else if (headNode.getType() == NodeType.FUNCTION) {
+            resolveFunction(headNode, scope, ctx, work, results);
+        } else {
+            throw new IllegalArgumentException("无效的token:" + headNode);
+        }
+    }
+
+    // 依次解析子节点,都解析完之后用它们的结果生成节点
+    private void resolveChildren(List<Node> children, Scope scope, Context ctx, Deque<Runnable> work, List<CompiledNode> results,
+                                 Function<CompiledNode[], CompiledNode> builder) {
+        work.push(() -> results.add(builder.apply(popResults(results, children.size()))));
+        for (int i = children.size() - 1; i >= 0; i--) {
+            Node child = children.get(i);
+            work.push(() -> resolve(child, scope, ctx, work, results));
+        }
+    }
+
+    private static CompiledNode[] popResults(List<CompiledNode> results, int num) {
+        List<CompiledNode> last = results.subList(results.size() - num, results.size());
+        CompiledNode[] nodes = last.toArray(new CompiledNode[0]);
+        last.clear();
+        return nodes;
+    }
+
+    // a&&b即a?(b?1:0):0,a||b即a?1:(b?1:0)
+    private void resolveLazy(Node headNode, Scope scope, Context ctx, Deque<Runnable> work, List<CompiledNode> results) {
+        List<Node> children = headNode.getChildren();
+        CompiledNode one = CompiledNode.constant(BigDecimal.ONE), zero = CompiledNode.constant(BigDecimal.ZERO);
+        switch (headNode.getToken()) {
+            case "&&":
+                resolveChildren(children.subList(0, 2), scope, ctx, work, results,
+                        args -> CompiledNode.cond(args[0], CompiledNode.cond(args[1], one, zero), zero));
+                break;
+            case "||":
+                resolveChildren(children.subList(0, 2), scope, ctx, work, results,
+                        args -> CompiledNode.cond(args[0], one, CompiledNode.cond(args[1], one, zero)));
+                break;
+            default:
+                if (children.size() < 3) {
+                    throw new IllegalArgumentException("计算参数不足:" + headNode);
+                }
+                resolveChildren(children.subList(0, 3), scope, ctx, work, results,
+                        args -> CompiledNode.cond(args[0], args[1], args[2]));
+        }
+    }
+
+    // 内联函数调用:先在调用方作用域计算实参写入参数槽位,再执行函数体
+    private void resolveFunction(Node headNode, Scope scope, Context ctx, Deque<Runnable> work, List<CompiledNode> results) {
+        String funcName = headNode.getToken();
+        List<Node> children = headNode.getChildren() == null ? Collections.emptyList() : headNode.getChildren();
+        NativeFunction function = headNode.getNativeFunction() != null ? headNode.getNativeFunction() : nativeLookup.apply(funcName);
+        if (function != null) {
+            if (children.size() != function.getArity()) {
+                throw new IllegalArgumentException("函数参数不匹配:" + headNode + ",需要" + function.getArity() + "个参数");
+            }
+            resolveChildren(children, scope, ctx, work, results, args -> CompiledNode.call(function, args));
+            return;
+        }
+        Expr expr = funcLookup.apply(funcName);
+        if (expr == null) {
+            throw new IllegalArgumentException("函数不存在:" + headNode);
+        }
+        List<String> argNames = expr.getArgNames();
+        if (children.size() < argNames.size()) {
+            throw new IllegalArgumentException("函数参数不匹配:" + headNode + ",argNames:" + argNames);
+        }
+        if (ctx.inlining.contains(funcName)) {
+            throw new IllegalArgumentException("递归调用无法编译:" + ctx.inlining + "->" + funcName);
+        }
+        ctx.funcNames.add(funcName);
+        Scope funcScope = new Scope(scope);
+        int[] slots = new int[argNames.size()];
+        // 倒序入栈:依次分配参数槽位并解析实参,然后在函数作用域解析函数体
+        work.push(() -> {
+            ctx.inlining.pop();
+            CompiledNode[] nodes = popResults(results, argNames.size() + 1);
+            for (int i = 0; i < argNames.size(); i++) {
+                nodes[i] = CompiledNode.store(argNames.get(i), slots[i], nodes[i]);
+            }
+            results.add(nodes.length == 1 ? nodes[0] : CompiledNode.seq(nodes));
+        });
+        work.push(() -> resolve(expr.getBody(), funcScope, ctx, work, results));
+        work.push(() -> ctx.inlining.push(funcName));
+        for (int i = argNames.size() - 1; i >= 0; i--) {
+            int index = i;
+            String argName = argNames.get(i);
+            work.push(() -> resolve(children.get(index), scope, ctx, work, results));
+            work.push(() -> {
+                slots[index] = ctx.newSlot(funcName + "." + argName + "#" + ctx.slotNames.size());
+                funcScope.slots.put(argName, slots[index]);
+            });
+        }
+    }
+
+    /**
+     * 一种数值类型的运算方式,生成(frame)value的MethodHandle
+     */
+    private interface Arith {
+        Class<?> frameType();
+
+        MethodHandle constant(BigDecimal val);
+
+        MethodHandle load(int slot, String name);
+
+        // (frame,value)value
+        MethodHandle store(int slot);
+
+        // (value,value)value
+        MethodHandle operator(String token);
+
+        // (value...)value
+        MethodHandle function(NativeFunction function);
+
+        // (value)boolean,非0为真
+        MethodHandle test();
+    }
+
+    private final Arith decimalArith = new Arith() {
+        @Override
+        public Class<?> frameType() {
+            return BigDecimal[].class;
+        }
+
+        @Override
+        public MethodHandle constant(BigDecimal val) {
+            return MethodHandles.dropArguments(MethodHandles.constant(BigDecimal.class, val), 0, BigDecimal[].class);
+        }
+
+        @Override
+        public MethodHandle load(int slot, String name) {
+            return MethodHandles.insertArguments(mh_load, 1, slot, name);
+        }
+
+        @Override
+        public MethodHandle store(int slot) {
+            return MethodHandles.insertArguments(mh_store, 1, slot);
+        }
+
+        @Override
+        public MethodHandle operator(String token) {
+            switch (token) {
+                case "+":
+                    return mh_add;
+                case "-":
+                    return mh_subtract;
+                case "*":
+                    return mh_multiply;
+                case "/":
+                    return MethodHandles.insertArguments(mh_divide, 2, scale, roundingMode);
+                case "^":
+                    return mh_pow;
+                default:
+                    return MethodHandles.insertArguments(mh_compare, 2, compareMask(token));
+            }
+        }
+
+        @Override
+        public MethodHandle function(NativeFunction function) {
+            return function.getHandle();
+        }
+
+        @Override
+        public MethodHandle test() {
+            return mh_isTrue;
+        }
+    };
+
+    // 全部是double原始类型,计算过程不装箱
+    private static final Arith doubleArith = new Arith() {
+        @Override
+        public Class<?> frameType() {
+            return double[].class;
+        }
+
+        @Override
+        public MethodHandle constant(BigDecimal val) {
+            return MethodHandles.dropArguments(MethodHandles.constant(double.class, val.doubleValue()), 0, double[].class);
+        }
+
+        @Override
+        public MethodHandle load(int slot, String name) {
+            return MethodHandles.insertArguments(MethodHandles.arrayElementGetter(double[].class), 1, slot);
+        }
+
+        @Override
+        public MethodHandle store(int slot) {
+            return MethodHandles.insertArguments(mh_storeDouble, 1, slot);
+        }
+
+        @Override
+        public MethodHandle operator(String token) {
+            switch (token) {
+                case "+":
+                    return mh_addDouble;
+                case "-":
+                    return mh_subtractDouble;
+                case "*":
+                    return mh_multiplyDouble;
+                case "/":
+                    return mh_divideDouble;
+                case "^":
+                    return mh_powDouble;
+                default:
+                    return MethodHandles.insertArguments(mh_compareDouble, 2, compareMask(token));
+            }
+        }
+
+        @Override
+        public MethodHandle function(NativeFunction function) {
+            return function.getDoubleHandle();
+        }
+
+        @Override
+        public MethodHandle test() {
+            return mh_isTrueDouble;
+        }
+    };
+
+    /**
+     * 定点数:long乘以10^scale,乘除按scale舍入,溢出抛ArithmeticException
+     */
+    private class FixedArith implements Arith {
+        private final long factor = FixedPoint.factor(scale);
+
+        @Override
+        public Class<?> frameType() {
+            return long[].class;
+        }
+
+        @Override
+        public MethodHandle constant(BigDecimal val) {
+            MethodHandle handle;
+            try {
+                handle = MethodHandles.constant(long.class, FixedPoint.toFixed(val, scale, roundingMode));
+            } catch (ArithmeticException e) {
+                // 超出范围的常量计算时再报错,转为BigDecimal计算
+                handle = MethodHandles.insertArguments(MethodHandles.throwException(long.class, ArithmeticException.class), 0, e);
+            }
+            return MethodHandles.dropArguments(handle, 0, long[].class);
+        }
+
+        @Override
+        public MethodHandle load(int slot, String name) {
+            return MethodHandles.insertArguments(MethodHandles.arrayElementGetter(long[].class), 1, slot);
+        }
+
+        @Override
+        public MethodHandle store(int slot) {
+            return MethodHandles.insertArguments(mh_storeFixed, 1, slot);
+        }
+
+        @Override
+        public MethodHandle operator(String token) {
+            switch (token) {
+                case "+":
+                    return mh_addFixed;
+                case "-":
+                    return mh_subtractFixed;
+                case "*":
+                    return MethodHandles.insertArguments(mh_multiplyFixed, 2, factor, roundingMode);
+                case "/":
+                    return MethodHandles.insertArguments(mh_divideFixed, 2, factor, roundingMode);
+                case "^":
+                    return MethodHandles.insertArguments(mh_powFixed, 2, factor, scale, roundingMode);
+                default:
+                    // 真是定点数的1
+                    return MethodHandles.insertArguments(mh_compareFixed, 2, compareMask(token), factor);
+            }
+        }
+
+        @Override
+        public MethodHandle test() {
+            return mh_isTrueFixed;
+        }
+
+        // 参数转成BigDecimal调用,结果按scale舍入,超出范围时抛ArithmeticException
+        @Override
+        public MethodHandle function(NativeFunction function) {
+            MethodHandle[] filters = new MethodHandle[function.getArity()];
+            Arrays.fill(filters, MethodHandles.insertArguments(mh_toDecimal, 1, scale));
+            MethodHandle handle = MethodHandles.filterArguments(function.getHandle(), 0, filters);
+            return MethodHandles.filterReturnValue(handle, MethodHandles.insertArguments(mh_toFixed, 1, scale, roundingMode));
+        }
+    }
+
+    // 定点数溢出后的BigDecimal计算,舍入规则和定点数一致:常量、乘除和乘方的结果都按scale舍入
+    private final Arith scaledDecimalArith = new Arith() {
+        @Override
+        public Class<?> frameType() {
+            return BigDecimal[].class;
+        }
+
+        @Override
+        public MethodHandle constant(BigDecimal val) {
+            return decimalArith.constant(val.setScale(scale, roundingMode));
+        }
+
+        @Override
+        public MethodHandle load(int slot, String name) {
+            return decimalArith.load(slot, name);
+        }
+
+        @Override
+        public MethodHandle store(int slot) {
+            return decimalArith.store(slot);
+        }
+
+        @Override
+        public MethodHandle operator(String token) {
+            switch (token) {
+                case "*":
+                    return MethodHandles.insertArguments(mh_multiplyScaled, 2, scale, roundingMode);
+                case "^":
+                    return MethodHandles.insertArguments(mh_powScaled, 2, scale, roundingMode);
+                case "+":
+                case "-":
+                case "/":
+                    return decimalArith.operator(token);
+                default:
+                    // 比较的结果和定点数一样带scale位小数
+                    return MethodHandles.filterReturnValue(decimalArith.operator(token),
+                            MethodHandles.insertArguments(mh_setScale, 1, scale, roundingMode));
+            }
+        }
+
+        @Override
+        public MethodHandle test() {
+            return mh_isTrue;
+        }
+
+        @Override
+        public MethodHandle function(NativeFunction function) {
+            return MethodHandles.filterReturnValue(function.getHandle(),
+                    MethodHandles.insertArguments(mh_setScale, 1, scale, roundingMode));
+        }
+    };
+
+    // (BigDecimal[])BigDecimal
+    MethodHandle decimalHandle(CompiledNode node) {
+        return handle(node, decimalArith);
+    }
+
+    // (double[])double
+    MethodHandle doubleHandle(CompiledNode node) {
+        return handle(node, doubleArith);
+    }
+
+    // (long[])long
+    MethodHandle fixedHandle(CompiledNode node) {
+        return handle(node, new FixedArith());
+    }
+
+    // (BigDecimal[])BigDecimal,槽位里的值已经按scale舍入
+    MethodHandle scaledDecimalHandle(CompiledNode node) {
+        return handle(node, scaledDecimalArith);
+    }
+
+    /**
+     * MethodHandle链计算时每层节点要嵌套几层调用,SEQ的每个子节点还要多嵌套一层。
+     * 嵌套深度超过MAX_HANDLE_DEPTH的表达式不整个生成一条链:深度不超过MAX_HANDLE_DEPTH的子树各自生成MethodHandle,
+     * 上面的部分用显式的栈执行,深度不受线程栈大小限制
+     */
+    private static MethodHandle handle(CompiledNode root, Arith arith) {
+        Map<CompiledNode, Integer> depths = new IdentityHashMap<>();
+        int depth = CompiledNode.transform(root, CompiledNode::getChildren, (CompiledNode node, List<Integer> childDepths) -> {
+            int d = 0;
+            for (int childDepth : childDepths) {
+                d = Math.max(d, childDepth);
+            }
+            d += node.getKind() == CompiledNode.Kind.SEQ ? childDepths.size() : 1;
+            depths.put(node, d);
+            return d;
+        });
+        if (depth <= MAX_HANDLE_DEPTH) {
+            return handleTree(root, arith);
+        }
+        DeepEvaluator evaluator = new DeepEvaluator(root, arith, depths);
+        // 值的类型取test的参数类型
+        MethodType type = MethodType.methodType(arith.test().type().parameterType(0), arith.frameType());
+        return mh_evalDeep.bindTo(evaluator).asType(type);
+    }
+
+    private static MethodHandle handleTree(CompiledNode node, Arith arith) {
+        CompiledNode[] children = node.getChildren();
+        switch (node.getKind()) {
+            case CONST:
+                return arith.constant(node.getConstant());
+            case LOAD:
+                return arith.load(node.getSlot(), node.getToken());
+            case STORE:
+                return applyFrame(arith.store(node.getSlot()),
+                        MethodHandles.identity(arith.frameType()), handleTree(children[0], arith));
+            case OPERATOR:
+                return applyFrame(arith.operator(node.getToken()), handleTree(children[0], arith), handleTree(children[1], arith));
+            case COND:
+                MethodHandle test = MethodHandles.filterReturnValue(handleTree(children[0], arith), arith.test());
+                return MethodHandles.guardWithTest(test, handleTree(children[1], arith), handleTree(children[2], arith));
+            case CALL:
+                MethodHandle function = arith.function(node.getFunction());
+                if (children.length == 0) {
+                    return MethodHandles.dropArguments(function, 0, arith.frameType());
+                }
+                MethodHandle[] args = new MethodHandle[children.length];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = handleTree(children[i], arith);
+                }
+                return applyFrame(function, args);
+            case SEQ:
+                MethodHandle handle = handleTree(children[children.length - 1], arith);
+                for (int i = children.length - 2; i >= 0; i--) {
+                    MethodHandle before = handleTree(children[i], arith);
+                    handle = MethodHandles.foldArguments(handle, before.asType(before.type().changeReturnType(void.class)));
+                }
+                return handle;
+            default:
+                throw new IllegalArgumentException("无效的节点:" + node);
+        }
+    }
+
+    /**
+     * 深层表达式的上层部分:按节点逐个执行,子节点的值放在值栈上,运算、赋值和函数调用用对应的MethodHandle,
+     * 嵌套深度不超过MAX_HANDLE_DEPTH的子树直接调用生成好的MethodHandle链。值都装箱,只用于很深的表达式
+     */
+    private static final class DeepEvaluator {
+        // 整棵子树生成好的MethodHandle:(frame)value
+        private final Map<CompiledNode, MethodHandle> subtrees = new IdentityHashMap<>();
+        // 上层节点的运算:OPERATOR是(value,value)value,STORE是(frame,value)value,CALL是(value...)value
+        private final Map<CompiledNode, MethodHandle> operations = new IdentityHashMap<>();
+        private final CompiledNode root;
+        private final MethodHandle test;
+
+        private DeepEvaluator(CompiledNode root, Arith arith, Map<CompiledNode, Integer> depths) {
+            this.root = root;
+            this.test = arith.test();
+            Deque<CompiledNode> stack = new ArrayDeque<>();
+            stack.push(root);
+            while (!stack.isEmpty()) {
+                CompiledNode node = stack.pop();
+                if (depths.get(node) <= MAX_HANDLE_DEPTH) {
+                    subtrees.put(node, handleTree(node, arith));
+                    continue;
+                }
+                switch (node.getKind()) {
+                    case OPERATOR:
+                        operations.put(node, arith.operator(node.getToken()));
+                        break;
+                    case STORE:
+                        operations.put(node, arith.store(node.getSlot()));
+                        break;
+                    case CALL:
+                        operations.put(node, arith.function(node.getFunction()));
+                        break;
+                    default:
+                }
+                for (CompiledNode child : node.getChildren()) {
+                    stack.push(child);
+                }
+            }
+        }
+
+        Object eval(Object frame) throws Throwable {
+            Deque<CompiledNode> nodes = new ArrayDeque<>();
+            // 节点下一个要计算的子节点,COND计算完条件后是3
+            Deque<int[]> indexes = new ArrayDeque<>();
+            List<Object> values = new ArrayList<>();
+            nodes.push(root);
+            indexes.push(new int[1]);
+            while (!nodes.isEmpty()) {
+                CompiledNode node = nodes.peek();
+                int[] index = indexes.peek();
+                CompiledNode[] children = node.getChildren();
+                MethodHandle subtree = subtrees.get(node);
+                CompiledNode next = null;
+                if (subtree != null) {
+                    values.add(subtree.invoke(frame));
+                } else if (node.getKind() == CompiledNode.Kind.COND) {
+                    if (index[0] == 0) {
+                        next = children[index[0]++];
+                    } else if (index[0] == 1) {
+                        boolean cond = (Boolean) test.invoke(values.remove(values.size() - 1));
+                        next = children[cond ? 1 : 2];
+                        index[0] = 3;
+                    }
+                } else if (index[0] < children.length) {
+                    // SEQ只保留最后一个值
+                    if (node.getKind() == CompiledNode.Kind.SEQ && index[0] > 0) values.remove(values.size() - 1);
+                    next = children[index[0]++];
+                } else if (node.getKind() != CompiledNode.Kind.SEQ) {
+                    List<Object> args = values.subList(values.size() - children.length, values.size());
+                    List<Object> operands = new ArrayList<>();
+                    if (node.getKind() == CompiledNode.Kind.STORE) operands.add(frame);
+                    operands.addAll(args);
+                    args.clear();
+                    values.add(operations.get(node).invokeWithArguments(operands));
+                }
+                if (next != null) {
+                    nodes.push(next);
+                    indexes.push(new int[1]);
+                } else {
+                    nodes.pop();
+                    indexes.pop();
+                }
+            }
+            return values.get(0);
+        }
+    }
+
+    // op(a(frame), b(frame)...) -> (frame)
+    private static MethodHandle applyFrame(MethodHandle op, MethodHandle... args) {
+        MethodHandle handle = MethodHandles.filterArguments(op, 0, args);
+        MethodType type = MethodType.methodType(handle.type().returnType(), args[0].type().parameterType(0));
+        return MethodHandles.permuteArguments(handle, type, new int[args.length]);
+    }
+
+    // 比较结果满足时为真的位:1小于,2等于,4大于,8无法比较(NaN)
+    private static int compareMask(String token) {
+        switch (token) {
+            case "<":
+                return 1;
+            case "<=":
+                return 1 | 2;
+            case ">":
+                return 4;
+            case ">=":
+                return 4 | 2;
+            case "==":
+                return 2;
+            case "!=":
+                return 1 | 4 | 8;
+            default:
+                throw new IllegalArgumentException("无效的操作符:" + token);
+        }
+    }
+
+    private static BigDecimal compare(BigDecimal a, BigDecimal b, int mask) {
+        int cmp = a.compareTo(b);
+        return (mask & (cmp < 0 ? 1 : cmp > 0 ? 4 : 2)) != 0 ? BigDecimal.ONE : BigDecimal.ZERO;
+    }
+
+    private static double compare(double a, double b, int mask) {
+        int bit = a < b ? 1 : a > b ? 4 : a == b ? 2 : 8;
+        return (mask & bit) != 0 ? 1 : 0;
+    }
+
+    private static long compare(long a, long b, int mask, long one) {
+        int bit = a < b ? 1 : a > b ? 4 : 2;
+        return (mask & bit) != 0 ? one : 0;
+    }
+
+    private static boolean isTrue(double val) {
+        return val != 0;
+    }
+
+    private static boolean isTrue(long val) {
+        return val != 0;
+    }
+
+    private static BigDecimal load(BigDecimal[] frame, int slot, String name) {
+        BigDecimal val = frame[slot];
+        if (val == null) {
+            throw new IllegalArgumentException("找不到变量:" + name);
+        }
+        return val;
+    }
+
+    private static BigDecimal store(BigDecimal[] frame, int slot, BigDecimal val) {
+        frame[slot] = val;
+        return val;
+    }
+
+    private static BigDecimal pow(BigDecimal a, BigDecimal b) {
+        return Evaluate.toDecimal(Math.pow(a.doubleValue(), b.doubleValue()));
+    }
+
+    private static BigDecimal multiply(BigDecimal a, BigDecimal b, int scale, RoundingMode roundingMode) {
+        return a.multiply(b).setScale(scale, roundingMode);
+    }
+
+    private static BigDecimal pow(BigDecimal a, BigDecimal b, int scale, RoundingMode roundingMode) {
+        return pow(a, b).setScale(scale, roundingMode);
+    }
+
+    private static long store(long[] frame, int slot, long val) {
+        frame[slot] = val;
+        return val;
+    }
+
+    private static double store(double[] frame, int slot, double val) {
+        frame[slot] = val;
+        return val;
+    }
+
+    private static double add(double a, double b) {
+        return a + b;
+    }
+
+    private static double subtract(double a, double b) {
+        return a - b;
+    }
+
+    private static double multiply(double a, double b) {
+        return a * b;
+    }
+
+    private static double divide(double a, double b) {
+        return a / b;
+    }
+}
@@ -0,0 +1,400 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.Expr;
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.Node;
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.NodeType;
+import lombok.Getter;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * 表达式优化:解析之后、计算之前执行,不修改原来的表达式。
+ * 1.常量折叠:操作数都是数字的运算和纯Java函数调用直接算出结果,条件是常量的?:只保留用到的分支,注册表设置了不可修改的常量(e、pi)时替换成数字。
+ * 定点数模式读数字、乘除和函数结果都按scale舍入,所以只折叠操作数和结果都不超过scale位小数的运算;
+ * DOUBLE模式按double计算,所以结果的double值和按double计算的结果不同时也不折叠,比如0.1+0.2。保证各种模式折叠前后结果一致;
+ * 2.化简恒等式:x*1、1*x、x+0、0+x、x-0、0-(0-x)替换成x,结果数值相等;
+ * 3.公共子表达式:编译时同一条语句里重复的运算只算一次,见{@link CommonEliminator}。
+ * 解析树自底向上用显式的栈处理,深度不受线程栈大小限制
+ */
+public class ExprOptimizer {
+
+    private final Function<String, Function<List<BigDecimal>, BigDecimal>> operatorFuncs;
+    // 不可修改的常量,不是常量时返回null
+    private final Function<String, BigDecimal> constants;
+    // 定点数的小数位数
+    private final int scale;
+
+    public ExprOptimizer(Function<String, Function<List<BigDecimal>, BigDecimal>> operatorFuncs, Function<String, BigDecimal> constants, int scale) {
+        this.operatorFuncs = operatorFuncs;
+        this.constants = constants;
+        this.scale = scale;
+    }
+
+    /**
+     * @return 优化后的新表达式,removedNodes是去掉的节点数
+     */
+    public Expr optimize(Expr expr) {
+        Expr result = new Expr(expr.getType(), expr.getToken(), expr.getExprText());
+        result.setName(expr.getName());
+        result.setArgNames(expr.getArgNames());
+        result.setChildren(Evaluate.<Node>transform(expr, ExprOptimizer::childrenToOptimize, this::optimize).getChildren());
+        result.setRemovedNodes(countNodes(expr) - countNodes(result));
+        return result;
+    }
+
+    // 赋值左侧的变量不能替换
+    private static List<Node> childrenToOptimize(Node node) {
+        List<Node> children = node.getChildren();
+        return node.getType() == NodeType.ASSIGN && children != null ? children.subList(1, children.size()) : children;
+    }
+
+    /**
+     * @param children 优化后的子节点,赋值节点不包括左侧的变量
+     */
+    private Node optimize(Node node, List<Node> children) {
+        if (node.getChildren() == null) children = null;
+        switch (node.getType()) {
+            case VAR:
+                BigDecimal val = constants.apply(node.getToken());
+                return val == null ? node : Node.number(val, node.getRowBegin(), node.getRowEnd());
+            case OPERATOR:
+                return optimizeOperator(node, children);
+            case ASSIGN:
+                children.add(0, node.getChildren().get(0));
+                return copy(node, children);
+            case FUNCTION:
+                return optimizeFunction(node, children);
+            case EXPR:
+                return children == null ? node : copy(node, children);
+            default:
+                return node;
+        }
+    }
+
+    private Node optimizeOperator(Node node, List<Node> children) {
+        Node lazy = optimizeLazy(node, children);
+        if (lazy != null) return lazy;
+        if (children == null || children.size() != 2) {
+            return children == null ? node : copy(node, children);
+        }
+        Node left = children.get(0), right = children.get(1);
+        String token = node.getToken();
+        if (isScaled(left) && isScaled(right)) {
+            Function<List<BigDecimal>, BigDecimal> func = operatorFuncs.apply(token);
+            try {
+                BigDecimal val = func.apply(Arrays.asList(left.getNumber(), right.getNumber()));
+                // 结果要舍入的不折叠,比如scale=2时0.15*0.15,定点数是0.02,精确值是0.0225
+                double doubleVal = applyDouble(token, left.getNumber().doubleValue(), right.getNumber().doubleValue());
+                return withinScale(val) && val.doubleValue() == doubleVal
+                        ? Node.number(val, node.getRowBegin(), node.getRowEnd()) : copy(node, children);
+            } catch (ArithmeticException e) {
+                // 除以0等错误留到计算时再报
+                return copy(node, children);
+            }
+        }
+        switch (token) {
+            case "*":
+                if (isNumber(left, 1)) return right;
+                if (isNumber(right, 1)) return left;
+                break;
+            case "+":
+                if (isNumber(left, 0)) return right;
+                if (isNumber(right, 0)) return left;
+                break;
+            case "-":
+                if (isNumber(right, 0)) return left;
+                // 负负得正
+                if (isNumber(left, 0) && right.getType() == NodeType.OPERATOR && "-".equals(right.getToken())
+                        && right.getChildren().size() == 2 && isNumber(right.getChildren().get(0), 0)) {
+                    return right.getChildren().get(1);
+                }
+                break;
+            default:
+        }
+        return copy(node, children);
+    }
+
+    // 参数都是数字的纯Java函数直接算出结果
+    private Node optimizeFunction(Node node, List<Node> children) {
+        if (children == null) return node;
+        NativeFunction function = node.getNativeFunction();
+        if (function == null || !function.isPure() || children.size() != function.getArity()
+                || !children.stream().allMatch(this::isScaled)) {
+            return copy(node, children);
+        }
+        BigDecimal[] args = new BigDecimal[children.size()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = children.get(i).getNumber();
+        }
+        try {
+            BigDecimal val = function.invoke(args, 0);
+            return withinScale(val) && val.doubleValue() == invokeDouble(function, args)
+                    ? Node.number(val, node.getRowBegin(), node.getRowEnd()) : copy(node, children);
+        } catch (ArithmeticException | NumberFormatException e) {
+            // 负数开方等错误留到计算时再报
+            return copy(node, children);
+        }
+    }
+
+    // 条件是常量的?:只保留用到的分支,左侧是常量并且决定了结果的&&、||直接替换成结果
+    private Node optimizeLazy(Node node, List<Node> children) {
+        if (children == null || children.isEmpty() || !isScaled(children.get(0))) return null;
+        BigDecimal condVal = children.get(0).getNumber();
+        boolean cond = Evaluate.isTrue(condVal);
+        // 太小的数按double是0
+        if (cond != (condVal.doubleValue() != 0)) return null;
+        switch (node.getToken()) {
+            case "?":
+                return children.size() == 3 ? children.get(cond ? 1 : 2) : null;
+            case "&&":
+                return cond ? null : Node.number(BigDecimal.ZERO, node.getRowBegin(), node.getRowEnd());
+            case "||":
+                return cond ? Node.number(BigDecimal.ONE, node.getRowBegin(), node.getRowEnd()) : null;
+            default:
+                return null;
+        }
+    }
+
+    // DOUBLE模式下的运算结果,和编译成double计算时一致
+    private static double applyDouble(String token, double a, double b) {
+        switch (token) {
+            case "+":
+                return a + b;
+            case "-":
+                return a - b;
+            case "*":
+                return a * b;
+            case "/":
+                return a / b;
+            case "^":
+                return Math.pow(a, b);
+            case "<":
+                return a < b ? 1 : 0;
+            case "<=":
+                return a <= b ? 1 : 0;
+            case ">":
+                return a > b ? 1 : 0;
+            case ">=":
+                return a >= b ? 1 : 0;
+            case "==":
+                return a == b ? 1 : 0;
+            case "!=":
+                return a != b ? 1 : 0;
+            case "&&":
+                return a != 0 && b != 0 ? 1 : 0;
+            case "||":
+                return a != 0 || b != 0 ? 1 : 0;
+            default:
+                return Double.NaN;
+        }
+    }
+
+    // 按double实现调用的结果,出错时返回NaN,不折叠
+    private static double invokeDouble(NativeFunction function, BigDecimal[] args) {
+        Object[] doubles = new Object[args.length];
+        for (int i = 0; i < args.length; i++) {
+            doubles[i] = args[i].doubleValue();
+        }
+        try {
+            return (double) function.getDoubleHandle().invokeWithArguments(doubles);
+        } catch (RuntimeException e) {
+            return Double.NaN;
+        } catch (Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("函数调用出错:" + function.getName(), e);
+        }
+    }
+
+    // 定点数读取时不需要舍入的数字
+    private boolean isScaled(Node node) {
+        return node.getType() == NodeType.NUMBER && withinScale(node.getNumber());
+    }
+
+    private boolean withinScale(BigDecimal val) {
+        return val.scale() <= scale || val.stripTrailingZeros().scale() <= scale;
+    }
+
+    // 没有小数位的整数字面量,和它运算不改变另一个数的精度
+    private static boolean isNumber(Node node, int val) {
+        if (node.getType() != NodeType.NUMBER) return false;
+        BigDecimal number = node.getNumber();
+        return number.scale() == 0 && number.compareTo(BigDecimal.valueOf(val)) == 0;
+    }
+
+    private static Node copy(Node node, List<Node> children) {
+        Node result = new Node(node.getType(), node.getToken(), node.getRowBegin(), node.getRowEnd());
+        result.setValue(node.getValue());
+        result.setSlot(node.getSlot());
+        result.setNativeFunction(node.getNativeFunction());
+        result.setChildren(children);
+        return result;
+    }
+
+    public static int countNodes(Node node) {
+        int count = 0;
+        for (Node ignored : Evaluate.preorder(node)) {
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 编译后的公共子表达式消除。以语句(SEQ的子节点)为单位:
+     * 不含赋值、读取的槽位在本条语句里不会被写的运算和纯Java函数调用,出现多次时在语句开头算一次存入隐藏槽位,其余位置改成读槽位。
+     * 子表达式按结构编号,嵌套的SEQ从里到外处理,都用显式的栈,深度不受线程栈大小限制
+     */
+    static class CommonEliminator {
+        private static final CompiledNode[] NO_CHILDREN = new CompiledNode[0];
+        // 分配隐藏槽位
+        private final Function<String, Integer> newSlot;
+        // 不再需要计算的节点数
+        @Getter
+        private int removedNodes;
+        // 原来的节点的先序编号和子树的节点数,语句的子树是编号连续的一段
+        private final Map<CompiledNode, Integer> positions = new IdentityHashMap<>();
+        private final Map<CompiledNode, Integer> sizes = new IdentityHashMap<>();
+        // 槽位 -> 写这个槽位的节点的先序编号,从小到大
+        private final Map<Integer, List<Integer>> storePositions = new HashMap<>();
+        // 处理过的SEQ -> 消除后的节点
+        private final Map<CompiledNode, CompiledNode> eliminated = new IdentityHashMap<>();
+
+        CommonEliminator(Function<String, Integer> newSlot) {
+            this.newSlot = newSlot;
+        }
+
+        CompiledNode eliminate(CompiledNode root) {
+            int position = 0;
+            for (CompiledNode node : CompiledNode.preorder(root)) {
+                positions.put(node, position);
+                if (node.getKind() == CompiledNode.Kind.STORE) {
+                    storePositions.computeIfAbsent(node.getSlot(), it -> new ArrayList<>()).add(position);
+                }
+                position++;
+            }
+            // 自底向上,处理一个SEQ时它里面的SEQ都已经处理过
+            CompiledNode.transform(root, CompiledNode::getChildren, (CompiledNode node, List<Integer> childSizes) -> {
+                int size = 1;
+                for (int childSize : childSizes) {
+                    size += childSize;
+                }
+                sizes.put(node, size);
+                if (node.getKind() == CompiledNode.Kind.SEQ) {
+                    CompiledNode[] children = new CompiledNode[node.getChildren().length];
+                    for (int i = 0; i < children.length; i++) {
+                        CompiledNode child = node.getChildren()[i];
+                        children[i] = child.getKind() == CompiledNode.Kind.SEQ ? eliminated.get(child) : eliminateStatement(child);
+                    }
+                    eliminated.put(node, CompiledNode.seq(children));
+                }
+                return size;
+            });
+            return root.getKind() == CompiledNode.Kind.SEQ ? eliminated.get(root) : eliminateStatement(root);
+        }
+
+        private CompiledNode eliminateStatement(CompiledNode statement) {
+            int from = positions.get(statement), to = from + sizes.get(statement);
+            // 结构相同的子树编号相同
+            Map<List<Object>, Integer> ids = new HashMap<>();
+            Map<CompiledNode, Integer> keys = new IdentityHashMap<>();
+            Map<Integer, Integer> counts = new HashMap<>();
+            CompiledNode.transform(statement, CommonEliminator::childrenToCount,
+                    (CompiledNode node, List<Integer> childKeys) -> countKey(node, childKeys, from, to, ids, keys, counts));
+            List<CompiledNode> stores = new ArrayList<>();
+            CompiledNode result = rewrite(statement, keys, counts, stores);
+            if (stores.isEmpty()) return result;
+            stores.add(result);
+            return CompiledNode.seq(stores.toArray(new CompiledNode[0]));
+        }
+
+        // 嵌套的SEQ是单独的语句,条件的分支不一定执行,都不参与本条语句的统计
+        private static CompiledNode[] childrenToCount(CompiledNode node) {
+            switch (node.getKind()) {
+                case OPERATOR:
+                case CALL:
+                case STORE:
+                    return node.getChildren();
+                default:
+                    return NO_CHILDREN;
+            }
+        }
+
+        // 返回子树的结构编号,不能消除的返回null
+        private Integer countKey(CompiledNode node, List<Integer> childKeys, int from, int to,
+                                 Map<List<Object>, Integer> ids, Map<CompiledNode, Integer> keys, Map<Integer, Integer> counts) {
+            List<Object> structure = new ArrayList<>();
+            structure.add(node.getKind());
+            switch (node.getKind()) {
+                case CONST:
+                    structure.add(node.getToken());
+                    return id(structure, ids);
+                case LOAD:
+                    if (isStored(node.getSlot(), from, to)) return null;
+                    structure.add(node.getSlot());
+                    return id(structure, ids);
+                case OPERATOR:
+                case CALL:
+                    if (node.getKind() == CompiledNode.Kind.CALL && !node.getFunction().isPure()) return null;
+                    if (childKeys.contains(null)) return null;
+                    structure.add(node.getToken());
+                    structure.addAll(childKeys);
+                    Integer key = id(structure, ids);
+                    keys.put(node, key);
+                    counts.merge(key, 1, Integer::sum);
+                    return key;
+                default:
+                    return null;
+            }
+        }
+
+        private static Integer id(List<Object> structure, Map<List<Object>, Integer> ids) {
+            return ids.computeIfAbsent(structure, it -> ids.size());
+        }
+
+        // 先序编号在[from,to)的节点里有没有写这个槽位的
+        private boolean isStored(int slot, int from, int to) {
+            List<Integer> list = storePositions.get(slot);
+            if (list == null) return false;
+            int index = Collections.binarySearch(list, from);
+            if (index < 0) index = -index - 1;
+            return index < list.size() && list.get(index) < to;
+        }
+
+        // 重复的子表达式第一次出现时存入隐藏槽位,之后的直接读槽位,不再处理它的子节点
+        private CompiledNode rewrite(CompiledNode statement, Map<CompiledNode, Integer> keys, Map<Integer, Integer> counts,
+                                     List<CompiledNode> stores) {
+            Map<Integer, Integer> hoisted = new HashMap<>();
+            Function<CompiledNode, CompiledNode[]> children = node -> {
+                if (node.getKind() == CompiledNode.Kind.SEQ) return NO_CHILDREN;
+                Integer key = keys.get(node);
+                return key != null && hoisted.containsKey(key) ? NO_CHILDREN : node.getChildren();
+            };
+            return CompiledNode.transform(statement, children, (CompiledNode node, List<CompiledNode> newChildren) -> {
+                if (node.getKind() == CompiledNode.Kind.SEQ) {
+                    return eliminated.get(node);
+                }
+                Integer key = keys.get(node);
+                if (key == null || counts.get(key) < 2) {
+                    return node.withChildren(newChildren.toArray(NO_CHILDREN));
+                }
+                Integer slot = hoisted.get(key);
+                if (slot == null) {
+                    slot = newSlot.apply("cse");
+                    stores.add(CompiledNode.store("cse", slot, node.withChildren(newChildren.toArray(NO_CHILDREN))));
+                    hoisted.put(key, slot);
+                } else {
+                    removedNodes += sizes.get(node) - 1;
+                }
+                return CompiledNode.load("cse", slot);
+            });
+        }
+    }
+}
@@ -0,0 +1,396 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.Expr;
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.Node;
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.NodeType;
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.NumberMode;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * 表达式注册表:函数定义、解析缓存、编译缓存和操作符实现,多线程共享。
+ * 函数表写时复制,读不加锁;变量不在这里,每次调用用newEvaluate()创建轻量的Evaluate绑定自己的变量
+ */
+@Slf4j
+public class ExprRegistry {
+
+    public static final int DEFAULT_CACHE_SIZE = 4096;
+    // 每个纯函数最多缓存的结果数
+    public static final int DEFAULT_MEMO_SIZE = 1024;
+    // 函数体节点数少于这个值时直接计算比查缓存快,不缓存
+    public static final int MEMO_MIN_NODES = 8;
+
+    @Getter
+    private final int scale;
+    @Getter
+    private final RoundingMode roundingMode;
+    // 操作符 -> 计算函数,创建后不再修改
+    private final Map<String, Function<List<BigDecimal>, BigDecimal>> token2Func;
+    // 函数表达式,每次定义替换成新的不可变map
+    private volatile Map<String, Expr> exprMap = Collections.emptyMap();
+    // Java实现的函数,和exprMap不重名,定义后不能修改
+    private volatile Map<String, NativeFunction> nativeMap = Collections.emptyMap();
+    private final Object defineLock = new Object();
+    // 解析结果缓存
+    @Getter
+    private final ExprCache<Expr> exprCache;
+    // 编译结果缓存
+    @Getter
+    private final ExprCache<CompiledExpr> compiledCache;
+    @Getter
+    private final ExprCompiler compiler;
+    // 字节码缓存,函数调用执行时才查找,不依赖函数定义
+    @Getter
+    private final ExprCache<ExprBytecode> bytecodeCache;
+    // 函数名 -> 函数体的字节码,函数重新定义后按表达式对象发现过期
+    private final Map<String, ExprBytecode> functionBytecodes = new ConcurrentHashMap<>();
+    // 内置常量e、pi,每个Evaluate创建时作为变量的初始值,默认和普通变量一样可以修改
+    @Getter
+    private final Map<String, BigDecimal> constants;
+    // 常量不可修改:赋值时报错,优化时直接替换成数字,不作为函数参数和依赖
+    @Getter
+    private volatile boolean immutableConstants = false;
+    @Getter
+    private final ExprOptimizer optimizer;
+    // 解析后做常量折叠和化简,编译时消除公共子表达式
+    @Getter
+    private volatile boolean optimize = true;
+
+    // 纯函数的结果缓存:函数名 -> (参数 -> 结果),不是纯函数的为empty。任何函数重新定义时整体替换
+    private volatile Map<String, Optional<ExprCache<BigDecimal>>> memoCaches = new ConcurrentHashMap<>();
+    @Getter
+    private volatile boolean memoize = true;
+
+    // 使用原来按优先级多次遍历的解析方式,用于和单次遍历的解析结果对比
+    @Getter
+    private volatile boolean legacyParser = false;
+
+    public ExprRegistry(int scale, RoundingMode roundingMode, int cacheSize) {
+        this.scale = scale;
+        this.roundingMode = roundingMode;
+
+        Map<String, Function<List<BigDecimal>, BigDecimal>> funcs = new LinkedHashMap<>();
+        funcs.put("+", list -> list.get(0).add(list.get(1)));
+        funcs.put("-", list -> list.get(0).subtract(list.get(1)));
+        funcs.put("*", list -> list.get(0).multiply(list.get(1)));
+        funcs.put("/", list -> list.get(0).divide(list.get(1), scale, roundingMode));
+        funcs.put("^", list -> Evaluate.toDecimal(Math.pow(list.get(0).doubleValue(), list.get(1).doubleValue())));
+        funcs.put("<", list -> bool(list.get(0).compareTo(list.get(1)) < 0));
+        funcs.put("<=", list -> bool(list.get(0).compareTo(list.get(1)) <= 0));
+        funcs.put(">", list -> bool(list.get(0).compareTo(list.get(1)) > 0));
+        funcs.put(">=", list -> bool(list.get(0).compareTo(list.get(1)) >= 0));
+        funcs.put("==", list -> bool(list.get(0).compareTo(list.get(1)) == 0));
+        funcs.put("!=", list -> bool(list.get(0).compareTo(list.get(1)) != 0));
+        // 计算时短路求值,这里只用于参数都是常量时的折叠
+        funcs.put("&&", list -> bool(Evaluate.isTrue(list.get(0)) && Evaluate.isTrue(list.get(1))));
+        funcs.put("||", list -> bool(Evaluate.isTrue(list.get(0)) || Evaluate.isTrue(list.get(1))));
+        token2Func = Collections.unmodifiableMap(funcs);
+
+        exprCache = new ExprCache<>(cacheSize, Evaluate::findFuncNames);
+        compiledCache = new ExprCache<>(cacheSize, CompiledExpr::getFuncNames);
+        compiler = new ExprCompiler(scale, roundingMode, this::getExpr, this::getNativeFunction);
+        bytecodeCache = new ExprCache<>(cacheSize, null);
+        Map<String, BigDecimal> constantMap = new LinkedHashMap<>();
+        constantMap.put("e", new BigDecimal(Math.E));
+        constantMap.put("pi", new BigDecimal(Math.PI));
+        constants = Collections.unmodifiableMap(constantMap);
+        optimizer = new ExprOptimizer(token2Func::get, name -> getImmutableConstants().get(name), scale);
+        defineBuiltinNatives();
+        defineExpr("area", newEvaluate().parseExpr("a*b"));
+        log.info("注册表初始化完成...\n");
+    }
+
+    public ExprRegistry(int scale, RoundingMode roundingMode) {
+        this(scale, roundingMode, DEFAULT_CACHE_SIZE);
+    }
+
+    public ExprRegistry() {
+        this(48, RoundingMode.HALF_UP);
+    }
+
+    /**
+     * 创建绑定到本注册表的计算上下文,只分配自己的变量表
+     */
+    public Evaluate newEvaluate() {
+        return new Evaluate(this, NumberMode.DECIMAL);
+    }
+
+    public Evaluate newEvaluate(NumberMode numberMode) {
+        return new Evaluate(this, numberMode);
+    }
+
+    Function<List<BigDecimal>, BigDecimal> getOperatorFunc(String token) {
+        return token2Func.get(token);
+    }
+
+    // 比较和逻辑运算的结果
+    static BigDecimal bool(boolean val) {
+        return val ? BigDecimal.ONE : BigDecimal.ZERO;
+    }
+
+    // 内置的Java函数,开方、对数和指数和乘方一样按double计算,结果不是有限的数时抛出ArithmeticException
+    private void defineBuiltinNatives() {
+        defineNative(NativeFunction.of("abs", true, (BigDecimal a) -> a.abs()).withDouble((double a) -> Math.abs(a)));
+        defineNative(NativeFunction.of("max", true, (BigDecimal a, BigDecimal b) -> a.max(b)).withDouble((double a, double b) -> Math.max(a, b)));
+        defineNative(NativeFunction.of("min", true, (BigDecimal a, BigDecimal b) -> a.min(b)).withDouble((double a, double b) -> Math.min(a, b)));
+        defineNative(NativeFunction.of("floor", true, (BigDecimal a) -> a.setScale(0, RoundingMode.FLOOR)).withDouble((double a) -> Math.floor(a)));
+        defineNative(NativeFunction.of("ceil", true, (BigDecimal a) -> a.setScale(0, RoundingMode.CEILING)).withDouble((double a) -> Math.ceil(a)));
+        defineNative(NativeFunction.of("sqrt", true, (BigDecimal a) -> Evaluate.toDecimal(Math.sqrt(a.doubleValue()))).withDouble((double a) -> Math.sqrt(a)));
+        defineNative(NativeFunction.of("log", true, (BigDecimal a) -> Evaluate.toDecimal(Math.log(a.doubleValue()))).withDouble((double a) -> Math.log(a)));
+        defineNative(NativeFunction.of("exp", true, (BigDecimal a) -> Evaluate.toDecimal(Math.exp(a.doubleValue()))).withDouble((double a) -> Math.exp(a)));
+    }
+
+    public NativeFunction getNativeFunction(String name) {
+        return nativeMap.get(name);
+    }
+
+    public Map<String, NativeFunction> getNativeFunctions() {
+        return nativeMap;
+    }
+
+    /**
+     * 定义Java函数,不能和已有的函数重名。解析时按名称绑定到调用节点,并检查参数个数
+     */
+    public void defineNative(NativeFunction function) {
+        String name = function.getName();
+        synchronized (defineLock) {
+            if (nativeMap.containsKey(name)) {
+                throw new IllegalArgumentException("内置函数不能重新定义:" + name);
+            }
+            if (exprMap.containsKey(name)) {
+                throw new IllegalArgumentException("函数已经定义为表达式:" + name);
+            }
+            Map<String, NativeFunction> newMap = new HashMap<>(nativeMap);
+            newMap.put(name, function);
+            nativeMap = Collections.unmodifiableMap(newMap);
+            // 调用它的函数可能变成纯函数
+            memoCaches = new ConcurrentHashMap<>();
+        }
+        // 之前解析的调用没有绑定,重新解析
+        exprCache.invalidateFunction(name);
+    }
+
+    /**
+     * 把调用节点绑定到Java函数并检查参数个数,没有定义的函数留到计算时再查找
+     */
+    void resolveNatives(Node headNode) {
+        for (Node node : Evaluate.preorder(headNode)) {
+            if (node.getType() != NodeType.FUNCTION) continue;
+            NativeFunction function = nativeMap.get(node.getToken());
+            if (function != null) {
+                int argNum = node.getChildren() == null ? 0 : node.getChildren().size();
+                if (argNum != function.getArity()) {
+                    throw new IllegalArgumentException("函数参数不匹配:" + node + ",需要" + function.getArity() + "个参数,实际" + argNum + "个");
+                }
+                node.setNativeFunction(function);
+            }
+        }
+    }
+
+    public Expr getExpr(String name) {
+        return exprMap.get(name);
+    }
+
+    public Map<String, Expr> getExprs() {
+        return exprMap;
+    }
+
+    /**
+     * 定义函数,重新定义时失效调用了它的缓存
+     */
+    public void defineExpr(String name, Expr expr) {
+        Expr preExpr;
+        synchronized (defineLock) {
+            checkNotNative(name);
+            preExpr = exprMap.get(name);
+            if (preExpr == expr) return;
+            Map<String, Expr> newMap = new HashMap<>(exprMap);
+            newMap.put(name, expr);
+            exprMap = Collections.unmodifiableMap(newMap);
+            // 函数体变化会影响调用它的函数的纯度和结果
+            memoCaches = new ConcurrentHashMap<>();
+        }
+        if (preExpr != null) {
+            int count = exprCache.invalidateFunction(name) + compiledCache.invalidateFunction(name);
+            log.info("函数重新定义:{},失效缓存:{}", name, count);
+        }
+    }
+
+    private void checkNotNative(String name) {
+        if (nativeMap.containsKey(name)) {
+            throw new IllegalArgumentException("内置函数不能重新定义:" + name);
+        }
+    }
+
+    /**
+     * 函数体的字节码,函数不存在返回null
+     */
+    public ExprBytecode getFunctionBytecode(String name) {
+        Expr expr = getExpr(name);
+        if (expr == null) return null;
+        ExprBytecode code = functionBytecodes.get(name);
+        if (code == null || code.getExpr() != expr) {
+            code = ExprBytecode.compileFunction(expr);
+            functionBytecodes.put(name, code);
+        }
+        return code;
+    }
+
+    /**
+     * 批量定义函数,只替换一次函数表
+     */
+    public void defineExprs(Map<String, Expr> exprs) {
+        Set<String> redefined = new HashSet<>();
+        synchronized (defineLock) {
+            exprs.keySet().forEach(this::checkNotNative);
+            Map<String, Expr> newMap = new HashMap<>(exprMap);
+            exprs.forEach((name, expr) -> {
+                Expr preExpr = newMap.put(name, expr);
+                if (preExpr != null && preExpr != expr) redefined.add(name);
+            });
+            exprMap = Collections.unmodifiableMap(newMap);
+            memoCaches = new ConcurrentHashMap<>();
+        }
+        int count = 0;
+        for (String name : redefined) {
+            count += exprCache.invalidateFunction(name) + compiledCache.invalidateFunction(name);
+        }
+        log.info("批量定义函数:{}个,重新定义:{},失效缓存:{}", exprs.size(), redefined.size(), count);
+    }
+
+    /**
+     * 把所有函数按二进制格式写入out,不关闭out
+     */
+    public void exportExprs(OutputStream out) throws IOException {
+        ExprSerializer.write(new TreeMap<>(exprMap), out);
+    }
+
+    /**
+     * 从exportExprs的结果加载函数,不需要重新解析
+     *
+     * @return 加载的函数数
+     */
+    public int importExprs(InputStream in) throws IOException {
+        Map<String, Expr> exprs = ExprSerializer.read(in);
+        exprs.values().forEach(this::resolveNatives);
+        defineExprs(exprs);
+        return exprs.size();
+    }
+
+    /**
+     * 纯函数的结果缓存,key是参数拼接的字符串,不是纯函数或者不值得缓存时返回null。
+     * 调用方先取缓存再计算,计算期间函数被重新定义时结果放进旧缓存,不会被读到
+     */
+    public ExprCache<BigDecimal> getMemoCache(String funcName) {
+        if (!memoize) return null;
+        Map<String, Optional<ExprCache<BigDecimal>>> caches = memoCaches;
+        Optional<ExprCache<BigDecimal>> cache = caches.get(funcName);
+        if (cache == null) {
+            Expr expr = getExpr(funcName);
+            boolean memo = expr != null && ExprOptimizer.countNodes(expr.getBody()) >= MEMO_MIN_NODES && isPure(funcName);
+            cache = caches.computeIfAbsent(funcName, it -> memo ? Optional.of(new ExprCache<>(DEFAULT_MEMO_SIZE, null)) : Optional.empty());
+        }
+        return cache.orElse(null);
+    }
+
+    /**
+     * 各纯函数结果缓存的统计
+     */
+    public Map<String, ExprCache<BigDecimal>> getMemoCaches() {
+        Map<String, ExprCache<BigDecimal>> result = new TreeMap<>();
+        memoCaches.forEach((name, cache) -> cache.ifPresent(it -> result.put(name, it)));
+        return result;
+    }
+
+    public void setMemoize(boolean memoize) {
+        this.memoize = memoize;
+        memoCaches = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 纯函数:没有赋值,只读取参数和常量,调用的函数也都是纯函数。结果只由参数决定
+     */
+    public boolean isPure(String funcName) {
+        return isPure(funcName, new HashSet<>());
+    }
+
+    // 递归调用按纯函数处理,由其它节点决定
+    private boolean isPure(String funcName, Set<String> visiting) {
+        Expr expr = getExpr(funcName);
+        if (expr == null) return false;
+        if (!visiting.add(funcName)) return true;
+        return isPure(expr.getBody(), expr.getArgNames(), visiting);
+    }
+
+    private boolean isPure(Node headNode, List<String> argNames, Set<String> visiting) {
+        for (Node node : Evaluate.preorder(headNode)) {
+            switch (node.getType()) {
+                case ASSIGN:
+                    return false;
+                case VAR:
+                    if (!argNames.contains(node.getToken()) && !constants.containsKey(node.getToken())) return false;
+                    break;
+                case FUNCTION:
+                    NativeFunction function = nativeMap.get(node.getToken());
+                    if (function != null ? !function.isPure() : !isPure(node.getToken(), visiting)) return false;
+                    break;
+                default:
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 不可修改的常量,关闭时为空
+     */
+    public Map<String, BigDecimal> getImmutableConstants() {
+        return immutableConstants ? constants : Collections.emptyMap();
+    }
+
+    /**
+     * 应在定义函数之前设置,已经定义的函数参数不变
+     */
+    public void setImmutableConstants(boolean immutableConstants) {
+        if (this.immutableConstants != immutableConstants) {
+            this.immutableConstants = immutableConstants;
+            exprCache.clear();
+            compiledCache.clear();
+            bytecodeCache.clear();
+        }
+    }
+
+    public void setOptimize(boolean optimize) {
+        if (this.optimize != optimize) {
+            this.optimize = optimize;
+            exprCache.clear();
+            compiledCache.clear();
+            bytecodeCache.clear();
+        }
+    }
+
+    public void setLegacyParser(boolean legacyParser) {
+        if (this.legacyParser != legacyParser) {
+            this.legacyParser = legacyParser;
+            exprCache.clear();
+            compiledCache.clear();
+            bytecodeCache.clear();
+        }
+    }
+}
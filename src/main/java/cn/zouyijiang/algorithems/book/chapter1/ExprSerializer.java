@@ -0,0 +1,294 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.Expr;
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.Node;
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.NodeType;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+/**
+ * 解析好的表达式的二进制格式,加载时直接重建节点树,不再做词法分析和解析。
+ * 格式:魔数"EXPR" 版本号 表达式数量 [名称 表达式]...
+ * 表达式:原文 函数名 参数名 优化去掉的节点数 子节点;
+ * 节点:类型 token 开始 结束 槽位 [数值] 子节点。
+ * 整数用变长编码,字符串第一次出现时写内容,之后只写编号。节点树按先序读写,不递归
+ */
+public class ExprSerializer {
+
+    public static final int MAGIC = 0x45585052;
+    public static final int VERSION = 1;
+
+    private static final NodeType[] TYPES = NodeType.values();
+
+    private ExprSerializer() {
+    }
+
+    public static byte[] toBytes(Expr expr) {
+        Map<String, Expr> exprs = new LinkedHashMap<>();
+        exprs.put("", expr);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            write(exprs, out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.toByteArray();
+    }
+
+    public static Expr fromBytes(byte[] bytes) {
+        try {
+            Map<String, Expr> exprs = read(new ByteArrayInputStream(bytes));
+            if (exprs.size() != 1) {
+                throw new IllegalArgumentException("不是单个表达式:" + exprs.keySet());
+            }
+            return exprs.values().iterator().next();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * 批量写入,名称 -> 表达式,不关闭out
+     */
+    public static void write(Map<String, Expr> exprs, OutputStream out) throws IOException {
+        Encoder encoder = new Encoder(new DataOutputStream(out));
+        encoder.out.writeInt(MAGIC);
+        encoder.writeInt(VERSION);
+        encoder.writeInt(exprs.size());
+        for (Map.Entry<String, Expr> entry : exprs.entrySet()) {
+            encoder.writeString(entry.getKey());
+            encoder.writeExpr(entry.getValue());
+        }
+        encoder.out.flush();
+    }
+
+    /**
+     * 批量读取,保持写入的顺序,不关闭in
+     */
+    public static Map<String, Expr> read(InputStream in) throws IOException {
+        Decoder decoder = new Decoder(new DataInputStream(in));
+        int magic = decoder.in.readInt();
+        if (magic != MAGIC) {
+            throw new IllegalArgumentException("不是表达式的二进制格式:" + Integer.toHexString(magic));
+        }
+        int version = decoder.readInt();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("不支持的版本:" + version + ",当前版本:" + VERSION);
+        }
+        int size = decoder.readInt();
+        Map<String, Expr> exprs = new LinkedHashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            String name = decoder.readString();
+            exprs.put(name, decoder.readExpr());
+        }
+        return exprs;
+    }
+
+    private static class Encoder {
+        private final DataOutputStream out;
+        private final Map<String, Integer> strings = new HashMap<>();
+
+        private Encoder(DataOutputStream out) {
+            this.out = out;
+        }
+
+        private void writeExpr(Expr expr) throws IOException {
+            writeString(expr.getExprText());
+            writeString(expr.getName());
+            List<String> argNames = expr.getArgNames();
+            writeInt(argNames == null ? -1 : argNames.size());
+            if (argNames != null) {
+                for (String argName : argNames) {
+                    writeString(argName);
+                }
+            }
+            writeInt(expr.getRemovedNodes());
+            writeChildren(expr.getChildren());
+        }
+
+        // 先序写出,每个节点后面紧跟子节点数,用栈代替递归
+        private void writeChildren(List<Node> children) throws IOException {
+            writeInt(children == null ? -1 : children.size());
+            if (children == null) return;
+            Deque<Node> stack = new ArrayDeque<>();
+            pushReversed(stack, children);
+            while (!stack.isEmpty()) {
+                Node node = stack.pop();
+                writeNode(node);
+                writeInt(node.getChildren() == null ? -1 : node.getChildren().size());
+                pushReversed(stack, node.getChildren());
+            }
+        }
+
+        private static void pushReversed(Deque<Node> stack, List<Node> children) {
+            if (children == null) return;
+            for (ListIterator<Node> it = children.listIterator(children.size()); it.hasPrevious(); ) {
+                stack.push(it.previous());
+            }
+        }
+
+        private void writeNode(Node node) throws IOException {
+            if (node instanceof Expr) {
+                throw new IllegalArgumentException("表达式不能作为子节点:" + node);
+            }
+            out.writeByte(node.getType().ordinal());
+            writeString(node.getToken());
+            writeInt(node.getRowBegin());
+            writeInt(node.getRowEnd());
+            writeInt(node.getSlot());
+            if (node.getType() == NodeType.NUMBER) {
+                BigDecimal value = node.getNumber();
+                writeInt(value.scale());
+                byte[] bytes = value.unscaledValue().toByteArray();
+                writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        // 0表示null,1表示新字符串,其它是已出现字符串的编号+2
+        private void writeString(String str) throws IOException {
+            if (str == null) {
+                writeInt(0);
+                return;
+            }
+            Integer index = strings.get(str);
+            if (index != null) {
+                writeInt(index + 2);
+            } else {
+                strings.put(str, strings.size());
+                writeInt(1);
+                byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+                writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        // 变长编码,每字节7位,-1等小负数先加1
+        private void writeInt(int val) throws IOException {
+            int v = val + 1;
+            while ((v & ~0x7F) != 0) {
+                out.writeByte((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            out.writeByte(v);
+        }
+    }
+
+    private static class Decoder {
+        private final DataInputStream in;
+        private final List<String> strings = new ArrayList<>();
+
+        private Decoder(DataInputStream in) {
+            this.in = in;
+        }
+
+        private Expr readExpr() throws IOException {
+            String exprText = readString();
+            Expr expr = new Expr(NodeType.EXPR, "()", exprText);
+            expr.setName(readString());
+            int argNum = readInt();
+            if (argNum >= 0) {
+                List<String> argNames = new ArrayList<>(argNum);
+                for (int i = 0; i < argNum; i++) {
+                    argNames.add(readString());
+                }
+                expr.setArgNames(argNames);
+            }
+            expr.setRemovedNodes(readInt());
+            expr.setChildren(readChildren());
+            return expr;
+        }
+
+        private Node readNode() throws IOException {
+            int ordinal = in.readUnsignedByte();
+            if (ordinal >= TYPES.length) {
+                throw new IllegalArgumentException("无效的节点类型:" + ordinal);
+            }
+            Node node = new Node(TYPES[ordinal], readString(), readInt(), readInt());
+            node.setSlot(readInt());
+            if (node.getType() == NodeType.NUMBER) {
+                int scale = readInt();
+                byte[] bytes = new byte[readInt()];
+                in.readFully(bytes);
+                node.setValue(new BigDecimal(new BigInteger(bytes), scale));
+            }
+            return node;
+        }
+
+        // 子节点用LinkedList,和解析器生成的一致。按先序读,栈里是还没读满的子节点列表和剩余个数
+        private List<Node> readChildren() throws IOException {
+            int size = readInt();
+            if (size < 0) return null;
+            List<Node> root = new LinkedList<>();
+            Deque<List<Node>> lists = new ArrayDeque<>();
+            Deque<Integer> remains = new ArrayDeque<>();
+            lists.push(root);
+            remains.push(size);
+            while (!lists.isEmpty()) {
+                int remain = remains.pop();
+                if (remain == 0) {
+                    lists.pop();
+                    continue;
+                }
+                remains.push(remain - 1);
+                Node node = readNode();
+                lists.peek().add(node);
+                int childNum = readInt();
+                if (childNum >= 0) {
+                    node.setChildren(new LinkedList<>());
+                    lists.push(node.getChildren());
+                    remains.push(childNum);
+                }
+            }
+            return root;
+        }
+
+        private String readString() throws IOException {
+            int index = readInt();
+            if (index == 0) return null;
+            if (index == 1) {
+                byte[] bytes = new byte[readInt()];
+                in.readFully(bytes);
+                String str = new String(bytes, StandardCharsets.UTF_8);
+                strings.add(str);
+                return str;
+            }
+            if (index - 2 >= strings.size()) {
+                throw new IllegalArgumentException("无效的字符串编号:" + (index - 2));
+            }
+            return strings.get(index - 2);
+        }
+
+        private int readInt() throws IOException {
+            int v = 0;
+            for (int shift = 0; ; shift += 7) {
+                if (shift > 28) {
+                    throw new IllegalArgumentException("无效的变长整数");
+                }
+                int b = in.readUnsignedByte();
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) break;
+            }
+            return v - 1;
+        }
+    }
+}
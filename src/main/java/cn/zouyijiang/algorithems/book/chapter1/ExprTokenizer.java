@@ -0,0 +1,232 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.Node;
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.NodeType;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 表达式的词法分析,结果写入可复用的int数组,每个token占3个int:类型、开始、结束。
+ * 切分过程不创建对象,token的文本和节点在解析器需要时才创建,符号用常量字符串。
+ * 比较和逻辑运算符<= >= == != && ||是两个字符的符号,优先于单字符的< > = !匹配。
+ * 非ASCII字母可以作为变量名,其它无效字符和空白一样跳过。不是线程安全的,每个Evaluate一个
+ */
+public class ExprTokenizer {
+
+    private static final int STRIDE = 3;
+    private static final NodeType[] TYPES = NodeType.values();
+
+    // 字符分类,只有ASCII,其它字符用Character判断
+    private static final byte OTHER = 0;
+    private static final byte DIGIT = 1;
+    private static final byte DOT = 2;
+    private static final byte NAME_START = 3;
+    private static final byte SYMBOL = 4;
+    private static final byte[] charTypes = new byte[128];
+    // 符号 -> token类型和文本
+    private static final NodeType[] symbolTypes = new NodeType[128];
+    private static final String[] symbolTexts = new String[128];
+    // 两个字符的符号,都是操作符
+    private static final String[] twoCharSymbols = {"<=", ">=", "==", "!=", "&&", "||"};
+
+    static {
+        for (int i = 0; i < 128; i++) {
+            if (i >= '0' && i <= '9') {
+                charTypes[i] = DIGIT;
+            } else if ((i >= 'a' && i <= 'z') || (i >= 'A' && i <= 'Z') || i == '_' || i == '$') {
+                charTypes[i] = NAME_START;
+            }
+        }
+        charTypes['.'] = DOT;
+        for (char ch : "+-*/^<>!?:".toCharArray()) {
+            symbol(ch, NodeType.OPERATOR);
+        }
+        symbol('(', NodeType.BRACKET);
+        symbol(')', NodeType.BRACKET);
+        symbol('=', NodeType.ASSIGN);
+        symbol(';', NodeType.END);
+    }
+
+    private static void symbol(char ch, NodeType type) {
+        charTypes[ch] = SYMBOL;
+        symbolTypes[ch] = type;
+        symbolTexts[ch] = String.valueOf(ch).intern();
+    }
+
+    private String text = "";
+    private int[] buffer = new int[STRIDE * 64];
+    private int size;
+
+    /**
+     * 切分表达式,覆盖上一次的结果
+     *
+     * @return token数
+     */
+    public int tokenize(String text) {
+        this.text = text;
+        size = 0;
+        int length = text.length();
+        for (int i = 0; i < length; ) {
+            char ch = text.charAt(i);
+            byte charType = charType(ch);
+            if (charType == DIGIT) {
+                int j = i + 1;
+                int dots = 0;
+                for (; j < length; j++) {
+                    byte nextType = charType(text.charAt(j));
+                    if (nextType == DOT) {
+                        dots++;
+                    } else if (nextType != DIGIT) {
+                        break;
+                    }
+                }
+                if (dots > 1) {
+                    throw new IllegalArgumentException("数字格式错误:" + new Node(NodeType.NUMBER, text.substring(i, j), i, j));
+                }
+                add(NodeType.NUMBER, i, j);
+                i = j;
+            } else if (charType == NAME_START) {
+                int j = i + 1;
+                while (j < length && isNamePart(text.charAt(j))) j++;
+                add(NodeType.VAR, i, j);
+                i = j;
+            } else if (i + 1 < length && twoCharSymbol(ch, text.charAt(i + 1)) != null) {
+                add(NodeType.OPERATOR, i, i + 2);
+                i += 2;
+            } else if (charType == SYMBOL) {
+                add(symbolTypes[ch], i, i + 1);
+                i++;
+            } else if (ch == '&' || ch == '|') {
+                throw new IllegalArgumentException("无效的操作符:" + new Node(NodeType.OPERATOR, String.valueOf(ch), i, i + 1)
+                        + ",逻辑运算符是" + ch + ch);
+            } else {
+                i++;
+            }
+        }
+        return size;
+    }
+
+    private static byte charType(char ch) {
+        if (ch < 128) return charTypes[ch];
+        return Character.isLetter(ch) ? NAME_START : OTHER;
+    }
+
+    private static boolean isNamePart(char ch) {
+        if (ch < 128) return charTypes[ch] == NAME_START || charTypes[ch] == DIGIT;
+        return Character.isLetterOrDigit(ch);
+    }
+
+    /**
+     * 两个字符组成的符号,不是时返回null
+     */
+    static String twoCharSymbol(char first, char second) {
+        for (String symbol : twoCharSymbols) {
+            if (symbol.charAt(0) == first && symbol.charAt(1) == second) return symbol;
+        }
+        return null;
+    }
+
+    /**
+     * 可以出现在名称或数字中的字符,非ASCII字符都算
+     */
+    static boolean isNameChar(char ch) {
+        return ch >= 128 || (charTypes[ch] != OTHER && charTypes[ch] != SYMBOL);
+    }
+
+    /**
+     * 整个字符串是一个名称token
+     */
+    static boolean isName(String text) {
+        if (text.isEmpty() || charType(text.charAt(0)) != NAME_START) return false;
+        for (int i = 1; i < text.length(); i++) {
+            if (!isNamePart(text.charAt(i))) return false;
+        }
+        return true;
+    }
+
+    private void add(NodeType type, int start, int end) {
+        int offset = size * STRIDE;
+        if (offset + STRIDE > buffer.length) {
+            buffer = Arrays.copyOf(buffer, buffer.length * 2);
+        }
+        buffer[offset] = type.ordinal();
+        buffer[offset + 1] = start;
+        buffer[offset + 2] = end;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public NodeType type(int index) {
+        return TYPES[buffer[index * STRIDE]];
+    }
+
+    public int start(int index) {
+        return buffer[index * STRIDE + 1];
+    }
+
+    public int end(int index) {
+        return buffer[index * STRIDE + 2];
+    }
+
+    /**
+     * token的文本,符号返回常量字符串,名称和数字才截取
+     */
+    public String text(int index) {
+        int start = start(index);
+        int end = end(index);
+        if (end - start == 1) {
+            char ch = text.charAt(start);
+            if (ch < 128 && symbolTexts[ch] != null) return symbolTexts[ch];
+        } else if (end - start == 2) {
+            String symbol = twoCharSymbol(text.charAt(start), text.charAt(start + 1));
+            if (symbol != null) return symbol;
+        }
+        return text.substring(start, end);
+    }
+
+    // 单字符符号的比较,不创建字符串
+    public boolean is(int index, char symbol) {
+        int start = start(index);
+        return end(index) - start == 1 && text.charAt(start) == symbol;
+    }
+
+    /**
+     * 创建解析树的节点,数字节点同时转换好数值
+     */
+    public Node node(int index) {
+        NodeType type = type(index);
+        Node node = new Node(type, text(index), start(index), end(index));
+        if (type == NodeType.NUMBER) {
+            try {
+                node.setValue(new BigDecimal(node.getToken()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("数字格式错误:" + node);
+            }
+        }
+        return node;
+    }
+
+    // 原来按优先级多次遍历的解析方式使用节点列表
+    public List<Node> toNodes() {
+        List<Node> nodes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            nodes.add(node(i));
+        }
+        return nodes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < size; i++) {
+            sb.append(i > 0 ? "," : "").append(text(i));
+        }
+        return sb.append("}").toString();
+    }
+}
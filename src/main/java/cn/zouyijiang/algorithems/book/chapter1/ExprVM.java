@@ -0,0 +1,287 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import lombok.Getter;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.List;
+
+import static cn.zouyijiang.algorithems.book.chapter1.ExprBytecode.*;
+
+/**
+ * 执行ExprBytecode的栈式虚拟机:一个循环逐条执行指令,操作数栈复用,计算过程只分配结果和函数调用的栈帧。
+ * 语义和Evaluate.calculate一致,包括函数结果缓存和赋值写全局变量。
+ * 属于一个Evaluate,不是线程安全的
+ */
+public class ExprVM {
+
+    private final Evaluate evaluate;
+    private final ExprRegistry registry;
+    private final int scale;
+    private final RoundingMode roundingMode;
+    private BigDecimal[] stack = new BigDecimal[64];
+    private int sp;
+    // 执行的指令数、函数调用和变量读取次数,每次run重新计数,不计数时都是0
+    private boolean counting;
+    @Getter
+    private long instructionCount;
+    @Getter
+    private long callCount;
+    @Getter
+    private long lookupCount;
+
+    ExprVM(Evaluate evaluate) {
+        this.evaluate = evaluate;
+        this.registry = evaluate.getRegistry();
+        this.scale = registry.getScale();
+        this.roundingMode = registry.getRoundingMode();
+    }
+
+    // 函数调用的栈帧,同时保存返回后调用方继续执行需要的状态
+    private static final class CallFrame {
+        private final ExprBytecode code;
+        private final BigDecimal[] args;
+        private final CallFrame parent;
+        // 返回后调用方的下一条指令、栈底和栈顶
+        private final int returnPc;
+        private final int callerBase;
+        private final int callerSp;
+        // 需要缓存结果时的缓存和key
+        private final ExprCache<BigDecimal> memoCache;
+        private final String memoKey;
+
+        private CallFrame(ExprBytecode code, BigDecimal[] args, CallFrame parent, int returnPc, int callerBase, int callerSp,
+                          ExprCache<BigDecimal> memoCache, String memoKey) {
+            this.code = code;
+            this.args = args;
+            this.parent = parent;
+            this.returnPc = returnPc;
+            this.callerBase = callerBase;
+            this.callerSp = callerSp;
+            this.memoCache = memoCache;
+            this.memoKey = memoKey;
+        }
+    }
+
+    public BigDecimal run(ExprBytecode code) {
+        return run(code, true);
+    }
+
+    /**
+     * @param counting 是否统计指令数、函数调用和变量读取,指标关闭时不计数
+     */
+    public BigDecimal run(ExprBytecode code, boolean counting) {
+        this.counting = counting;
+        instructionCount = callCount = lookupCount = 0;
+        sp = 0;
+        try {
+            return execute(code);
+        } finally {
+            Arrays.fill(stack, 0, stack.length, null);
+        }
+    }
+
+    /**
+     * 函数调用不递归:调用时保存调用方的状态到新栈帧,切换到函数的字节码,函数执行完后恢复调用方继续执行
+     */
+    private BigDecimal execute(ExprBytecode rootCode) {
+        ExprBytecode code = rootCode;
+        CallFrame frame = null;
+        int base = sp;
+        BigDecimal[] stack = ensureStack(base, code);
+        boolean counting = this.counting;
+        int[] ops = code.code();
+        int sp = base;
+        int pc = 0;
+        while (true) {
+            if (pc >= ops.length) {
+                BigDecimal result = stack[sp - 1];
+                if (frame == null) {
+                    this.sp = base;
+                    return result;
+                }
+                if (frame.memoCache != null) {
+                    frame.memoCache.put(frame.memoKey, result);
+                }
+                pc = frame.returnPc;
+                base = frame.callerBase;
+                sp = frame.callerSp;
+                frame = frame.parent;
+                code = frame == null ? rootCode : frame.code;
+                ops = code.code();
+                stack[sp++] = result;
+                continue;
+            }
+            if (counting) instructionCount++;
+            BigDecimal b;
+            switch (ops[pc]) {
+                case PUSH_CONST:
+                    stack[sp++] = code.constant(ops[pc + 1]);
+                    pc += 2;
+                    break;
+                case LOAD_ARG:
+                    if (counting) lookupCount++;
+                    stack[sp++] = frame.args[ops[pc + 1]];
+                    pc += 2;
+                    break;
+                case LOAD_VAR:
+                    if (counting) lookupCount++;
+                    stack[sp++] = loadVar(code.name(ops[pc + 1]), frame);
+                    pc += 2;
+                    break;
+                case STORE:
+                    evaluate.assignVar(code.name(ops[pc + 1]), stack[sp - 1]);
+                    pc += 2;
+                    break;
+                case ADD:
+                    b = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1].add(b);
+                    pc++;
+                    break;
+                case SUB:
+                    b = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1].subtract(b);
+                    pc++;
+                    break;
+                case MUL:
+                    b = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1].multiply(b);
+                    pc++;
+                    break;
+                case DIV:
+                    b = stack[--sp];
+                    stack[sp - 1] = stack[sp - 1].divide(b, scale, roundingMode);
+                    pc++;
+                    break;
+                case POW:
+                    b = stack[--sp];
+                    stack[sp - 1] = Evaluate.toDecimal(Math.pow(stack[sp - 1].doubleValue(), b.doubleValue()));
+                    pc++;
+                    break;
+                case LT:
+                case LE:
+                case GT:
+                case GE:
+                case EQ:
+                case NE:
+                    b = stack[--sp];
+                    stack[sp - 1] = compare(ops[pc], stack[sp - 1].compareTo(b)) ? BigDecimal.ONE : BigDecimal.ZERO;
+                    pc++;
+                    break;
+                case JUMP:
+                    pc = ops[pc + 1];
+                    break;
+                case JUMP_IF_FALSE:
+                    pc = Evaluate.isTrue(stack[--sp]) ? pc + 2 : ops[pc + 1];
+                    stack[sp] = null;
+                    break;
+                case JUMP_IF_TRUE:
+                    pc = Evaluate.isTrue(stack[--sp]) ? ops[pc + 1] : pc + 2;
+                    stack[sp] = null;
+                    break;
+                case POP:
+                    stack[--sp] = null;
+                    pc++;
+                    break;
+                case CALL:
+                    String funcName = code.name(ops[pc + 1]);
+                    int argNum = ops[pc + 2];
+                    sp -= argNum;
+                    ExprBytecode funcCode = registry.getFunctionBytecode(funcName);
+                    if (funcCode == null) {
+                        stack[sp] = callNative(funcName, stack, sp, argNum);
+                        sp++;
+                        pc += 3;
+                        break;
+                    }
+                    List<String> argNames = funcCode.getExpr().getArgNames();
+                    if (argNum < argNames.size()) {
+                        throw new IllegalArgumentException("函数参数不匹配:" + funcName + ",argNames:" + argNames);
+                    }
+                    BigDecimal[] args = Arrays.copyOfRange(stack, sp, sp + argNames.size());
+                    if (counting) callCount++;
+                    ExprCache<BigDecimal> memoCache = registry.getMemoCache(funcName);
+                    String memoKey = null;
+                    if (memoCache != null) {
+                        memoKey = Evaluate.memoKey(args);
+                        BigDecimal cached = memoCache.get(memoKey);
+                        if (cached != null) {
+                            stack[sp++] = cached;
+                            pc += 3;
+                            break;
+                        }
+                    }
+                    frame = new CallFrame(funcCode, args, frame, pc + 3, base, sp, memoCache, memoKey);
+                    code = funcCode;
+                    ops = code.code();
+                    base = sp;
+                    stack = ensureStack(base, code);
+                    pc = 0;
+                    break;
+                case CALL_NATIVE:
+                    NativeFunction function = code.nativeFunction(ops[pc + 1]);
+                    sp -= ops[pc + 2];
+                    if (counting) callCount++;
+                    // 参数直接从栈上传,不复制
+                    stack[sp] = function.invoke(stack, sp);
+                    sp++;
+                    pc += 3;
+                    break;
+                default:
+                    throw new IllegalStateException("无效的指令:" + ops[pc]);
+            }
+        }
+    }
+
+    // 栈从base开始要能放下code执行时的最大深度
+    private BigDecimal[] ensureStack(int base, ExprBytecode code) {
+        if (base + code.getMaxStack() > stack.length) {
+            stack = Arrays.copyOf(stack, Math.max(stack.length * 2, base + code.getMaxStack()));
+        }
+        return stack;
+    }
+
+    static boolean compare(int opcode, int cmp) {
+        switch (opcode) {
+            case LT:
+                return cmp < 0;
+            case LE:
+                return cmp <= 0;
+            case GT:
+                return cmp > 0;
+            case GE:
+                return cmp >= 0;
+            case EQ:
+                return cmp == 0;
+            default:
+                return cmp != 0;
+        }
+    }
+
+    // 解析时还没有定义的Java函数
+    private BigDecimal callNative(String funcName, BigDecimal[] stack, int from, int argNum) {
+        NativeFunction function = registry.getNativeFunction(funcName);
+        if (function == null) {
+            throw new IllegalArgumentException("函数不存在:" + funcName);
+        }
+        if (argNum != function.getArity()) {
+            throw new IllegalArgumentException("函数参数不匹配:" + funcName + ",需要" + function.getArity() + "个参数");
+        }
+        if (counting) callCount++;
+        return function.invoke(stack, from);
+    }
+
+    // 和Evaluate.lookupVar一致:沿调用链按参数名查找,最后查全局变量
+    private BigDecimal loadVar(String name, CallFrame frame) {
+        for (CallFrame it = frame; it != null; it = it.parent) {
+            int index = it.code.getExpr().getArgNames().indexOf(name);
+            if (index >= 0) return it.args[index];
+        }
+        BigDecimal val = evaluate.getVar(name);
+        if (val == null) {
+            throw new IllegalArgumentException("找不到变量:" + name);
+        }
+        return val;
+    }
+}
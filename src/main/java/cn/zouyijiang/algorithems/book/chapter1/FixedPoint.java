@@ -0,0 +1,117 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * 定点数运算:值是乘以10^scale后的long。
+ * 加减精确;乘除的结果按scale和舍入方式舍入,和BigDecimal先精确计算再setScale(scale, roundingMode)一致。
+ * 溢出时抛ArithmeticException,由调用方改用BigDecimal计算
+ */
+final class FixedPoint {
+
+    // long最多18位十进制数
+    static final int MAX_SCALE = 18;
+
+    private static final long[] POWERS = new long[MAX_SCALE + 1];
+
+    static {
+        POWERS[0] = 1;
+        for (int i = 1; i <= MAX_SCALE; i++) {
+            POWERS[i] = POWERS[i - 1] * 10;
+        }
+    }
+
+    private FixedPoint() {
+    }
+
+    /**
+     * @return 10^scale
+     */
+    static long factor(int scale) {
+        if (scale < 0 || scale > MAX_SCALE) {
+            throw new IllegalArgumentException("定点数的scale必须在0~" + MAX_SCALE + "之间:" + scale);
+        }
+        return POWERS[scale];
+    }
+
+    /**
+     * 转成定点数,多余的小数位按舍入方式舍入,超出long范围时抛ArithmeticException
+     */
+    static long toFixed(BigDecimal val, int scale, RoundingMode roundingMode) {
+        return val.setScale(scale, roundingMode).unscaledValue().longValueExact();
+    }
+
+    static BigDecimal toDecimal(long val, int scale) {
+        return BigDecimal.valueOf(val, scale);
+    }
+
+    static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    static long subtract(long a, long b) {
+        return Math.subtractExact(a, b);
+    }
+
+    static long multiply(long a, long b, long factor, RoundingMode roundingMode) {
+        return divide(Math.multiplyExact(a, b), factor, roundingMode);
+    }
+
+    static long divide(long a, long b, long factor, RoundingMode roundingMode) {
+        return divide(Math.multiplyExact(a, factor), b, roundingMode);
+    }
+
+    // 和BigDecimal一样用double计算,负数开方等结果不是有限的数时抛ArithmeticException
+    static long pow(long a, long b, long factor, int scale, RoundingMode roundingMode) {
+        double val = Math.pow((double) a / factor, (double) b / factor);
+        return toFixed(Evaluate.toDecimal(val), scale, roundingMode);
+    }
+
+    /**
+     * 整数除法,按舍入方式处理余数
+     */
+    static long divide(long p, long q, RoundingMode roundingMode) {
+        if (q == 0) {
+            throw new ArithmeticException("除数为0");
+        }
+        if (p == Long.MIN_VALUE || q == Long.MIN_VALUE) {
+            throw new ArithmeticException("long overflow");
+        }
+        long quotient = p / q;
+        long remainder = p % q;
+        if (remainder == 0) return quotient;
+        int sign = (p < 0) == (q < 0) ? 1 : -1;
+        boolean increment;
+        switch (roundingMode) {
+            case UNNECESSARY:
+                throw new ArithmeticException("Rounding necessary");
+            case UP:
+                increment = true;
+                break;
+            case DOWN:
+                increment = false;
+                break;
+            case CEILING:
+                increment = sign > 0;
+                break;
+            case FLOOR:
+                increment = sign < 0;
+                break;
+            default:
+                // 余数和除数的一半比较,不会溢出
+                long absRemainder = Math.abs(remainder);
+                int cmp = Long.compare(absRemainder, Math.abs(q) - absRemainder);
+                if (cmp != 0) {
+                    increment = cmp > 0;
+                } else if (roundingMode == RoundingMode.HALF_UP) {
+                    increment = true;
+                } else if (roundingMode == RoundingMode.HALF_DOWN) {
+                    increment = false;
+                } else {
+                    increment = (quotient & 1) != 0;
+                }
+        }
+        return increment ? quotient + sign : quotient;
+    }
+}
@@ -0,0 +1,444 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.Expr;
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.Node;
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate.NodeType;
+import lombok.Getter;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import static cn.zouyijiang.algorithems.book.chapter1.ExprBytecode.*;
+
+/**
+ * 公式集:多个公式合并成一个共享节点的DAG,一次计算得到所有公式的结果。
+ * 结构相同的子表达式(包括内联展开的函数体)合并成一个节点,公式中引用其它公式的名称时直接使用那个公式的节点,
+ * 所以每个不同的子表达式每行只计算一次。节点按拓扑顺序存放,子节点的下标总是小于父节点,按顺序计算即可;
+ * 只在&&、||、?:的分支里用到的节点按需计算,没有用到的分支不执行。
+ * 不支持赋值和递归函数,不是纯函数的Java函数每次调用都单独计算。不可变,可以多线程共享
+ */
+public class FormulaSet {
+
+    // 节点的操作码和ExprBytecode一致,另外加上条件选择:children是条件、真分支、假分支
+    private static final int COND = -1;
+
+    private static final class DagNode {
+        private final int opcode;
+        private final int[] children;
+        // PUSH_CONST的值
+        private final BigDecimal value;
+        private final NativeFunction function;
+        // 只在条件分支里用到,按需计算
+        private boolean lazy = true;
+
+        private DagNode(int opcode, int[] children, BigDecimal value, NativeFunction function) {
+            this.opcode = opcode;
+            this.children = children;
+            this.value = value;
+            this.function = function;
+        }
+    }
+
+    @Getter
+    private final List<String> names;
+    // 公式 -> 节点
+    private final int[] outputs;
+    @Getter
+    private final List<String> inputNames;
+    // 输入变量 -> 节点
+    private final int[] inputNodes;
+    private final DagNode[] nodes;
+    // 每行按顺序计算的节点,不包括常量和输入
+    private final int[] eagerNodes;
+    // 填好常量的节点值
+    private final BigDecimal[] template;
+    // 各公式单独展开成树时的节点总数
+    @Getter
+    private final int treeNodeCount;
+    private final int scale;
+    private final RoundingMode roundingMode;
+    // 可以修改的常量作为输入变量,没有传入时使用初始值
+    private final Map<String, BigDecimal> defaultInputs;
+
+    FormulaSet(ExprRegistry registry, Map<String, Expr> formulas) {
+        this.scale = registry.getScale();
+        this.roundingMode = registry.getRoundingMode();
+        this.defaultInputs = registry.getConstants();
+        Builder builder = new Builder(registry, formulas);
+        this.names = Collections.unmodifiableList(new ArrayList<>(formulas.keySet()));
+        this.outputs = new int[names.size()];
+        for (int i = 0; i < outputs.length; i++) {
+            String name = names.get(i);
+            if (!ExprTokenizer.isName(name)) {
+                throw new IllegalArgumentException("公式名不合法:" + name);
+            }
+            if (registry.getImmutableConstants().containsKey(name)) {
+                throw new IllegalArgumentException("常量不能修改:" + name);
+            }
+            outputs[i] = builder.formula(name);
+        }
+        this.nodes = builder.nodes.toArray(new DagNode[0]);
+        this.inputNames = Collections.unmodifiableList(builder.inputNames);
+        this.inputNodes = builder.inputNodes.stream().mapToInt(Integer::intValue).toArray();
+        this.treeNodeCount = builder.treeNodeCount;
+        markEager();
+        this.template = new BigDecimal[nodes.length];
+        int eagerNum = 0;
+        for (int id = 0; id < nodes.length; id++) {
+            DagNode node = nodes[id];
+            if (node.opcode == PUSH_CONST) {
+                template[id] = node.value;
+            } else if (node.opcode != LOAD_VAR && !node.lazy) {
+                eagerNum++;
+            }
+        }
+        this.eagerNodes = new int[eagerNum];
+        for (int id = 0, i = 0; id < nodes.length; id++) {
+            DagNode node = nodes[id];
+            if (node.opcode != PUSH_CONST && node.opcode != LOAD_VAR && !node.lazy) {
+                eagerNodes[i++] = id;
+            }
+        }
+    }
+
+    // 从公式的节点出发,不经过条件分支能到达的节点每行都要计算
+    private void markEager() {
+        int[] stack = new int[Math.max(8, outputs.length)];
+        int size = 0;
+        for (int output : outputs) {
+            stack = push(stack, size++, output);
+        }
+        while (size > 0) {
+            DagNode node = nodes[stack[--size]];
+            if (!node.lazy) continue;
+            node.lazy = false;
+            if (node.opcode == COND) {
+                stack = push(stack, size++, node.children[0]);
+            } else {
+                for (int child : node.children) {
+                    stack = push(stack, size++, child);
+                }
+            }
+        }
+    }
+
+    private static int[] push(int[] stack, int size, int id) {
+        if (size == stack.length) {
+            stack = Arrays.copyOf(stack, size * 2);
+        }
+        stack[size] = id;
+        return stack;
+    }
+
+    /**
+     * 合并后的节点数
+     */
+    public int getNodeCount() {
+        return nodes.length;
+    }
+
+    /**
+     * 用一行输入计算所有公式,结果按公式的定义顺序
+     */
+    public Map<String, BigDecimal> evaluate(Map<String, BigDecimal> inputs) {
+        BigDecimal[] values = template.clone();
+        for (int i = 0; i < inputNodes.length; i++) {
+            values[inputNodes[i]] = input(inputNames.get(i), inputs.get(inputNames.get(i)));
+        }
+        calculate(values);
+        Map<String, BigDecimal> result = new LinkedHashMap<>();
+        for (int i = 0; i < outputs.length; i++) {
+            result.put(names.get(i), values[outputs[i]]);
+        }
+        return result;
+    }
+
+    /**
+     * 批量计算:每个输入变量一列,返回每个公式一列,结果的第i行是第i行输入的计算结果
+     *
+     * @param rowNum 计算的行数,每一列至少有这么多行
+     */
+    public Map<String, BigDecimal[]> evaluateBatch(Map<String, BigDecimal[]> columns, int rowNum) {
+        BigDecimal[][] inputColumns = new BigDecimal[inputNodes.length][];
+        for (int i = 0; i < inputColumns.length; i++) {
+            String name = inputNames.get(i);
+            BigDecimal[] column = columns.get(name);
+            if (column == null) {
+                if (!defaultInputs.containsKey(name)) {
+                    throw new IllegalArgumentException("找不到变量:" + name);
+                }
+            } else if (column.length < rowNum) {
+                throw new IllegalArgumentException("列的行数不足:" + name + "," + column.length + "<" + rowNum);
+            }
+            inputColumns[i] = column;
+        }
+        BigDecimal[][] outColumns = new BigDecimal[outputs.length][rowNum];
+        BigDecimal[] values = new BigDecimal[nodes.length];
+        for (int row = 0; row < rowNum; row++) {
+            System.arraycopy(template, 0, values, 0, values.length);
+            for (int i = 0; i < inputNodes.length; i++) {
+                values[inputNodes[i]] = input(inputNames.get(i), inputColumns[i] == null ? null : inputColumns[i][row]);
+            }
+            calculate(values);
+            for (int i = 0; i < outputs.length; i++) {
+                outColumns[i][row] = values[outputs[i]];
+            }
+        }
+        Map<String, BigDecimal[]> result = new LinkedHashMap<>();
+        for (int i = 0; i < outputs.length; i++) {
+            result.put(names.get(i), outColumns[i]);
+        }
+        return result;
+    }
+
+    private BigDecimal input(String name, BigDecimal value) {
+        if (value == null) {
+            value = defaultInputs.get(name);
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("找不到变量:" + name);
+        }
+        return value;
+    }
+
+    private void calculate(BigDecimal[] values) {
+        for (int id : eagerNodes) {
+            // 可能已经被前面的条件分支按需算过
+            if (values[id] == null) values[id] = compute(nodes[id], values);
+        }
+    }
+
+    // 计算一个子节点都已有值的节点,条件节点只要求选中的分支有值
+    private BigDecimal compute(DagNode node, BigDecimal[] values) {
+        int[] children = node.children;
+        switch (node.opcode) {
+            case COND:
+                int branch = Evaluate.isTrue(values[children[0]]) ? children[1] : children[2];
+                BigDecimal value = values[branch];
+                return value != null ? value : demand(branch, values);
+            case CALL_NATIVE:
+                BigDecimal[] args = new BigDecimal[children.length];
+                for (int i = 0; i < args.length; i++) {
+                    args[i] = values[children[i]];
+                }
+                return node.function.invoke(args, 0);
+            case ADD:
+                return values[children[0]].add(values[children[1]]);
+            case SUB:
+                return values[children[0]].subtract(values[children[1]]);
+            case MUL:
+                return values[children[0]].multiply(values[children[1]]);
+            case DIV:
+                return values[children[0]].divide(values[children[1]], scale, roundingMode);
+            case POW:
+                return Evaluate.toDecimal(Math.pow(values[children[0]].doubleValue(), values[children[1]].doubleValue()));
+            default:
+                int cmp = values[children[0]].compareTo(values[children[1]]);
+                return ExprVM.compare(node.opcode, cmp) ? BigDecimal.ONE : BigDecimal.ZERO;
+        }
+    }
+
+    // 按需计算条件分支里的节点:子节点都有值后再计算,用显式的栈代替递归
+    private BigDecimal demand(int target, BigDecimal[] values) {
+        int[] stack = new int[8];
+        int size = 0;
+        stack[size++] = target;
+        while (size > 0) {
+            int id = stack[size - 1];
+            if (values[id] != null) {
+                size--;
+                continue;
+            }
+            DagNode node = nodes[id];
+            int[] children = node.children;
+            int pending = size;
+            if (node.opcode == COND) {
+                int test = children[0];
+                if (values[test] == null) {
+                    stack = push(stack, size++, test);
+                } else {
+                    int branch = Evaluate.isTrue(values[test]) ? children[1] : children[2];
+                    if (values[branch] == null) stack = push(stack, size++, branch);
+                }
+            } else {
+                for (int child : children) {
+                    if (values[child] == null) stack = push(stack, size++, child);
+                }
+            }
+            if (size == pending) {
+                values[id] = compute(node, values);
+                size--;
+            }
+        }
+        return values[target];
+    }
+
+    @Override
+    public String toString() {
+        return "FormulaSet" + names + "{nodes=" + nodes.length + ",treeNodes=" + treeNodeCount + "}";
+    }
+
+    // 把公式的解析树合并成DAG,节点按结构去重
+    private static class Builder {
+        private final ExprRegistry registry;
+        private final Map<String, Expr> formulas;
+        private final List<DagNode> nodes = new ArrayList<>();
+        // 节点的结构 -> 节点,子节点用下标表示,相同结构的子表达式共用一个节点
+        private final Map<String, Integer> keys = new HashMap<>();
+        private final Map<String, Integer> formulaNodes = new HashMap<>();
+        private final List<String> inputNames = new ArrayList<>();
+        private final List<Integer> inputNodes = new ArrayList<>();
+        // 正在展开的公式和函数,用于发现循环引用和递归调用
+        private final LinkedList<String> building = new LinkedList<>();
+        private final LinkedList<String> inlining = new LinkedList<>();
+        private int treeNodeCount;
+        private int impureCount;
+
+        private Builder(ExprRegistry registry, Map<String, Expr> formulas) {
+            this.registry = registry;
+            this.formulas = formulas;
+        }
+
+        private int formula(String name) {
+            Integer id = formulaNodes.get(name);
+            if (id != null) return id;
+            if (building.contains(name)) {
+                throw new IllegalArgumentException("公式循环引用:" + building + "->" + name);
+            }
+            building.push(name);
+            id = build(formulas.get(name).getBody(), Collections.emptyMap());
+            building.pop();
+            formulaNodes.put(name, id);
+            return id;
+        }
+
+        private int build(Node root, Map<String, Integer> args) {
+            return Evaluate.<Integer>transform(root,
+                    node -> node.getType() == NodeType.ASSIGN ? null : node.getChildren(),
+                    (node, ids) -> vertex(node, ids, args));
+        }
+
+        private int vertex(Node node, List<Integer> ids, Map<String, Integer> args) {
+            treeNodeCount++;
+            switch (node.getType()) {
+                case NUMBER:
+                    return constant(node.getNumber());
+                case VAR:
+                    return variable(node.getToken(), args);
+                case OPERATOR:
+                    if (ids.size() < 2) {
+                        throw new IllegalArgumentException("计算参数不足:" + node);
+                    }
+                    return operator(node, ids);
+                case FUNCTION:
+                    return function(node, ids);
+                case EXPR:
+                    if (ids.size() != 1) {
+                        throw new IllegalArgumentException("公式只能有一个表达式:" + node);
+                    }
+                    return ids.get(0);
+                case ASSIGN:
+                    throw new IllegalArgumentException("公式集不支持赋值:" + node);
+                default:
+                    throw new IllegalArgumentException("无效的token:" + node);
+            }
+        }
+
+        // 先查函数参数,再查常量和其它公式,都不是时作为输入变量
+        private int variable(String name, Map<String, Integer> args) {
+            Integer id = args.get(name);
+            if (id != null) return id;
+            BigDecimal constant = registry.getImmutableConstants().get(name);
+            if (constant != null) return constant(constant);
+            if (formulas.containsKey(name)) return formula(name);
+            id = keys.get("@" + name);
+            if (id != null) return id;
+            id = add("@" + name, LOAD_VAR, new int[0], null, null);
+            inputNames.add(name);
+            inputNodes.add(id);
+            return id;
+        }
+
+        private int constant(BigDecimal value) {
+            return add("#" + value, PUSH_CONST, new int[0], value, null);
+        }
+
+        // a&&b即a?(b?1:0):0,a||b即a?1:(b?1:0)
+        private int operator(Node node, List<Integer> ids) {
+            switch (node.getToken()) {
+                case "&&":
+                    return cond(ids.get(0), cond(ids.get(1), constant(BigDecimal.ONE), constant(BigDecimal.ZERO)), constant(BigDecimal.ZERO));
+                case "||":
+                    return cond(ids.get(0), constant(BigDecimal.ONE), cond(ids.get(1), constant(BigDecimal.ONE), constant(BigDecimal.ZERO)));
+                case "?":
+                    if (ids.size() < 3) {
+                        throw new IllegalArgumentException("计算参数不足:" + node);
+                    }
+                    return cond(ids.get(0), ids.get(1), ids.get(2));
+                default:
+                    int opcode = ExprBytecode.operator(node);
+                    int[] children = {ids.get(0), ids.get(1)};
+                    // 加法、乘法和相等比较与参数顺序无关,a*b和b*a是同一个节点
+                    if ((opcode == ADD || opcode == MUL || opcode == EQ || opcode == NE) && children[0] > children[1]) {
+                        children = new int[]{children[1], children[0]};
+                    }
+                    return add(node.getToken() + Arrays.toString(children), opcode, children, null, null);
+            }
+        }
+
+        private int cond(int test, int whenTrue, int whenFalse) {
+            int[] children = {test, whenTrue, whenFalse};
+            return add("?" + Arrays.toString(children), COND, children, null, null);
+        }
+
+        // Java函数直接调用,用户定义的函数把函数体展开,参数绑定到实参的节点
+        private int function(Node node, List<Integer> ids) {
+            String funcName = node.getToken();
+            NativeFunction function = node.getNativeFunction() != null ? node.getNativeFunction() : registry.getNativeFunction(funcName);
+            if (function != null) {
+                if (ids.size() != function.getArity()) {
+                    throw new IllegalArgumentException("函数参数不匹配:" + node + ",需要" + function.getArity() + "个参数");
+                }
+                int[] children = ids.stream().mapToInt(Integer::intValue).toArray();
+                // 不是纯函数时每次调用都要执行,不和其它调用合并
+                String key = funcName + (function.isPure() ? "" : "#" + impureCount++) + Arrays.toString(children);
+                return add(key, CALL_NATIVE, children, null, function);
+            }
+            Expr expr = registry.getExpr(funcName);
+            if (expr == null) {
+                throw new IllegalArgumentException("函数不存在:" + node);
+            }
+            List<String> argNames = expr.getArgNames();
+            if (ids.size() < argNames.size()) {
+                throw new IllegalArgumentException("函数参数不匹配:" + node + ",argNames:" + argNames);
+            }
+            if (inlining.contains(funcName)) {
+                throw new IllegalArgumentException("递归调用无法编译:" + inlining + "->" + funcName);
+            }
+            Map<String, Integer> funcArgs = new HashMap<>();
+            for (int i = 0; i < argNames.size(); i++) {
+                funcArgs.put(argNames.get(i), ids.get(i));
+            }
+            inlining.push(funcName);
+            int id = build(expr.getBody(), funcArgs);
+            inlining.pop();
+            return id;
+        }
+
+        private int add(String key, int opcode, int[] children, BigDecimal value, NativeFunction function) {
+            Integer id = keys.get(key);
+            if (id != null) return id;
+            nodes.add(new DagNode(opcode, children, value, function));
+            keys.put(key, nodes.size() - 1);
+            return nodes.size() - 1;
+        }
+    }
+}
@@ -21,6 +21,18 @@ public class GrammarAnalysis {
     private List<Word> words = new LinkedList<>();
 
     public void handle(List<Word> words) {
+        EngineMetrics metrics = EngineMetrics.getInstance();
+        long start = metrics.start();
+        try {
+            handleWords(words);
+        } catch (RuntimeException e) {
+            metrics.error(EngineMetrics.Stage.GRAMMAR);
+            throw e;
+        }
+        metrics.record(EngineMetrics.Stage.GRAMMAR, start);
+    }
+
+    private void handleWords(List<Word> words) {
         handleWorkds.addAll(words);
         List<Word> words2 = words.stream()
                 .map(it -> new Word(it.getTypeId(), it.getValue(), it.getStart(), it.getEnd()))
@@ -0,0 +1,105 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 耗时直方图,按2的幂分桶(纳秒),记录无锁。百分位取所在桶的上界,误差在2倍以内
+ */
+public class LatencyHistogram {
+
+    private static final int BUCKET_NUM = 48;
+
+    // 第i个桶:[2^(i-1), 2^i)纳秒,第0个桶是0
+    private final LongAdder[] buckets = new LongAdder[BUCKET_NUM];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (int i = 0; i < BUCKET_NUM; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        int index = Math.min(BUCKET_NUM - 1, 64 - Long.numberOfLeadingZeros(nanos));
+        buckets[index].increment();
+        count.increment();
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getTotalNanos() {
+        return totalNanos.sum();
+    }
+
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    public double getMeanNanos() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) totalNanos.sum() / n;
+    }
+
+    /**
+     * @param percentile 0~100
+     * @return 百分位所在桶的上界(纳秒)
+     */
+    public long getPercentileNanos(double percentile) {
+        long[] counts = new long[BUCKET_NUM];
+        long total = 0;
+        for (int i = 0; i < BUCKET_NUM; i++) {
+            total += counts[i] = buckets[i].sum();
+        }
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long cumulative = 0;
+        for (int i = 0; i < BUCKET_NUM; i++) {
+            cumulative += counts[i];
+            if (cumulative >= Math.max(1, rank)) {
+                return Math.min(upperBound(i), getMaxNanos());
+            }
+        }
+        return getMaxNanos();
+    }
+
+    private static long upperBound(int index) {
+        return index == 0 ? 0 : (1L << index) - 1;
+    }
+
+    /**
+     * 非空的桶:"<上界ns" -> 数量
+     */
+    public Map<String, Long> getBuckets() {
+        Map<String, Long> map = new LinkedHashMap<>();
+        for (int i = 0; i < BUCKET_NUM; i++) {
+            long n = buckets[i].sum();
+            if (n > 0) map.put("<=" + upperBound(i) + "ns", n);
+        }
+        return map;
+    }
+
+    public void reset() {
+        for (LongAdder bucket : buckets) {
+            bucket.reset();
+        }
+        count.reset();
+        totalNanos.reset();
+        maxNanos.reset();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ",mean=" + (long) getMeanNanos() + "ns,p50=" + getPercentileNanos(50)
+                + "ns,p99=" + getPercentileNanos(99) + "ns,max=" + getMaxNanos() + "ns";
+    }
+}
@@ -2,6 +2,7 @@ package cn.zouyijiang.algorithems.book.chapter1;
 
 
 import lombok.Getter;
+import lombok.Setter;
 
 import java.util.Arrays;
 import java.util.LinkedList;
@@ -79,12 +80,12 @@ public class LexicalAnalysis {
                 new LexicalPattern(TokenType.NEXT_LINE, "\r?\n"),
                 // 任意个空白字符，与 [ \f\n\r\t\v] 等效。
                 new LexicalPattern(TokenType.BLANK, "\\s+"),
-                // 字符串中，只能有\"或其他字符。可能多个字符串在一行，按最短匹配
-                new LexicalPattern(TokenType.STRING, "\"(\\\\\"|[^\"])*?\""),
-                // 单行注释，一直到行尾，按最长匹配。最后的回车换行符不匹配
-                new LexicalPattern(TokenType.NOTE_SINGLE, "//.*(?=\r?\n)"),
-                // 行内注释
-                new LexicalPattern(TokenType.NOTE_INLINE, "/\\*([^*]|\\*(?!/))*\\*/"),
+                // 字符串中，只能有\"或其他字符。字符串不能包含没有转义的引号，所以最长匹配也不会跨过多个字符串
+                new LexicalPattern(TokenType.STRING, "\"(\\\\\"|[^\"])*\""),
+                // 单行注释，一直到行尾。最后的回车换行符不匹配
+                new LexicalPattern(TokenType.NOTE_SINGLE, "//[^\r\n]*"),
+                // 行内注释，中间不能有*/
+                new LexicalPattern(TokenType.NOTE_INLINE, "/\\*([^*]|\\*+[^*/])*\\*+/"),
                 // 变量，函数名
                 new LexicalPattern(TokenType.VARIABLE, "[a-zA-Z_$][\\w$]*"),
                 // 预定义符号
@@ -104,8 +105,17 @@ public class LexicalAnalysis {
                 new LexicalPattern(TokenType.DECIMAL_RADIX10, "\\d+(\\.\\d+)?")
         );
         info("decimalPatterns:%s", decimalPatterns);
+        this.wordDfa = new LexicalDfa(wordPatterns);
+        info("wordDfa:%s", wordDfa);
     }
 
+    // 所有词素规则合并成的DFA,一次遍历字符按最长匹配切分
+    private final LexicalDfa wordDfa;
+    // 使用原来按顺序逐个正则匹配的方式,用于和DFA的结果对比
+    @Getter
+    @Setter
+    private boolean regexMatch = false;
+
     // 处理完的文本
     public List<String> handleTexts = new LinkedList<>();
     // 处理完成的支付数
@@ -137,11 +147,32 @@ public class LexicalAnalysis {
         throw new IllegalArgumentException(String.format("第%s行第%s个字符开始找不到有效的词素:%s", lineIndex, offset, text));
     }
 
+    private Word findWord(int lineIndex, String lineText, int offset) {
+        Word word = wordDfa.match(lineText, offset, lineText.length());
+        if (word == null) {
+            throw new IllegalArgumentException(String.format("第%s行第%s个字符开始找不到有效的词素:%s", lineIndex, offset, lineText.substring(offset)));
+        }
+        return word;
+    }
+
 //    /* /*private Stack*/ */
 //    String s = "// dfjk//";
 //    String s1 = "/*/ dfjk/*/";
 
     public void handle(String inputText) {
+        EngineMetrics metrics = EngineMetrics.getInstance();
+        long start = metrics.start();
+        int wordNum = words.size();
+        try {
+            handleText(inputText);
+        } catch (RuntimeException e) {
+            metrics.error(EngineMetrics.Stage.LEX);
+            throw e;
+        }
+        metrics.recordLex(start, words.size() - wordNum);
+    }
+
+    private void handleText(String inputText) {
         String text = remainText + inputText;
         // 切割成行
         Matcher lineMatcher = linePattern.getRegexPtn().matcher(text);
@@ -155,7 +186,8 @@ public class LexicalAnalysis {
             List<Word> lineWords = new LinkedList<>();
             int lineOffset = 0;
             while (lineOffset < lineText.length()) {
-                Word word = findWord(lineIndex, lineText, lineOffset, wordPatterns);
+                Word word = regexMatch ? findWord(lineIndex, lineText, lineOffset, wordPatterns)
+                        : findWord(lineIndex, lineText, lineOffset);
                 lineOffset = word.getEnd();
                 lineWords.add(word);
                 info("%s", word);
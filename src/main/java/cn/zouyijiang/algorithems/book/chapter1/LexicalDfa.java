@@ -0,0 +1,457 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import cn.zouyijiang.algorithems.book.chapter1.LexicalAnalysis.LexicalPattern;
+import lombok.Getter;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * 由LexicalPattern列表生成的词法DFA:每个规则的正则转成NFA,合并后用子集构造生成一个DFA,
+ * 字符先按所有规则里出现的字符集合分类,状态转移是以字符分类为列的表。
+ * 扫描时逐个字符查表并记住最后经过的接受状态,按最长匹配切分,长度相同时取列表中靠前的规则;
+ * 前面的规则不会比后面的规则匹配得更短时,结果和按顺序逐个正则匹配一致。
+ * 只支持正则的正规子集:字符、转义、字符类、.、分组、|、*、+、?,不支持环视、懒惰量词和回溯引用。
+ * 不可变,可以多线程共享
+ */
+public class LexicalDfa {
+
+    private static final int MAX_CHAR = Character.MAX_VALUE;
+    private static final int DEAD = -1;
+
+    // 字符分类:ASCII查表,其它字符在区间的起点里二分查找
+    private final int[] asciiClasses = new int[128];
+    private final int[] bounds;
+    private final int[] boundClasses;
+    @Getter
+    private final int classCount;
+    // 状态 * classCount + 字符分类 -> 下一个状态,0是开始状态
+    private final int[] transitions;
+    // 状态 -> 接受的词素类型,-1表示不是接受状态
+    private final int[] acceptTypes;
+
+    public LexicalDfa(List<LexicalPattern> patterns) {
+        Nfa nfa = new Nfa();
+        int[] starts = new int[patterns.size()];
+        for (int i = 0; i < starts.length; i++) {
+            String regex = LexicalAnalysis.toRegexString(patterns.get(i));
+            starts[i] = new RegexParser(regex, nfa).parse(i);
+        }
+        // 按所有边上的字符集合把字符切成区间,属于相同集合的区间是同一个分类
+        TreeSet<Integer> points = new TreeSet<>();
+        points.add(0);
+        for (CharSet set : nfa.sets) {
+            if (set == null) continue;
+            for (int i = 0; i < set.ranges.length; i += 2) {
+                points.add(set.ranges[i]);
+                if (set.ranges[i + 1] < MAX_CHAR) points.add(set.ranges[i + 1] + 1);
+            }
+        }
+        this.bounds = points.stream().mapToInt(Integer::intValue).toArray();
+        this.boundClasses = new int[bounds.length];
+        Map<BitSet, Integer> classes = new HashMap<>();
+        List<Integer> classChars = new ArrayList<>();
+        for (int k = 0; k < bounds.length; k++) {
+            BitSet signature = new BitSet();
+            for (int s = 0; s < nfa.sets.size(); s++) {
+                CharSet set = nfa.sets.get(s);
+                if (set != null && set.contains(bounds[k])) signature.set(s);
+            }
+            Integer id = classes.get(signature);
+            if (id == null) {
+                id = classes.size();
+                classes.put(signature, id);
+                classChars.add(bounds[k]);
+            }
+            boundClasses[k] = id;
+        }
+        this.classCount = classes.size();
+        for (int ch = 0; ch < asciiClasses.length; ch++) {
+            asciiClasses[ch] = rangeClass(ch);
+        }
+
+        // 子集构造:DFA的状态是NFA状态的ε闭包
+        BitSet startSet = new BitSet();
+        for (int start : starts) startSet.set(start);
+        List<BitSet> states = new ArrayList<>();
+        Map<BitSet, Integer> stateIds = new HashMap<>();
+        states.add(nfa.closure(startSet));
+        stateIds.put(states.get(0), 0);
+        List<int[]> rows = new ArrayList<>();
+        for (int id = 0; id < states.size(); id++) {
+            BitSet state = states.get(id);
+            int[] row = new int[classCount];
+            for (int c = 0; c < classCount; c++) {
+                int ch = classChars.get(c);
+                BitSet next = new BitSet();
+                for (int s = state.nextSetBit(0); s >= 0; s = state.nextSetBit(s + 1)) {
+                    CharSet set = nfa.sets.get(s);
+                    if (set != null && set.contains(ch)) next.set(nfa.nexts.get(s));
+                }
+                if (next.isEmpty()) {
+                    row[c] = DEAD;
+                    continue;
+                }
+                next = nfa.closure(next);
+                Integer nextId = stateIds.get(next);
+                if (nextId == null) {
+                    nextId = states.size();
+                    states.add(next);
+                    stateIds.put(next, nextId);
+                }
+                row[c] = nextId;
+            }
+            rows.add(row);
+        }
+        this.transitions = new int[states.size() * classCount];
+        this.acceptTypes = new int[states.size()];
+        for (int id = 0; id < states.size(); id++) {
+            System.arraycopy(rows.get(id), 0, transitions, id * classCount, classCount);
+            int pattern = Integer.MAX_VALUE;
+            BitSet state = states.get(id);
+            for (int s = state.nextSetBit(0); s >= 0; s = state.nextSetBit(s + 1)) {
+                if (nfa.accepts.get(s) >= 0) pattern = Math.min(pattern, nfa.accepts.get(s));
+            }
+            acceptTypes[id] = pattern == Integer.MAX_VALUE ? -1 : patterns.get(pattern).getTypeId();
+        }
+    }
+
+    public int getStateCount() {
+        return acceptTypes.length;
+    }
+
+    private int classOf(char ch) {
+        return ch < 128 ? asciiClasses[ch] : rangeClass(ch);
+    }
+
+    private int rangeClass(int ch) {
+        int k = Arrays.binarySearch(bounds, ch);
+        return boundClasses[k >= 0 ? k : -k - 2];
+    }
+
+    /**
+     * 从start开始按最长匹配找一个词素,位置相对于text,没有规则能匹配时返回null
+     */
+    public Word match(String text, int start, int end) {
+        int state = 0;
+        int matchEnd = -1;
+        int matchType = -1;
+        for (int i = start; ; i++) {
+            if (acceptTypes[state] >= 0) {
+                matchEnd = i;
+                matchType = acceptTypes[state];
+            }
+            if (i == end) break;
+            state = transitions[state * classCount + classOf(text.charAt(i))];
+            if (state == DEAD) break;
+        }
+        return matchEnd < 0 ? null : new Word(matchType, text.substring(start, matchEnd), start, matchEnd);
+    }
+
+    @Override
+    public String toString() {
+        return "LexicalDfa{states=" + acceptTypes.length + ",classes=" + classCount + "}";
+    }
+
+    // 字符集合,按[lo,hi]区间有序存放,区间不重叠也不相邻
+    private static final class CharSet {
+        private final int[] ranges;
+
+        private CharSet(int[] ranges) {
+            this.ranges = ranges;
+        }
+
+        private static CharSet of(int lo, int hi) {
+            return new CharSet(new int[]{lo, hi});
+        }
+
+        private static CharSet ofChars(String chars) {
+            CharSet set = new CharSet(new int[0]);
+            for (char ch : chars.toCharArray()) set = set.union(of(ch, ch));
+            return set;
+        }
+
+        private CharSet union(CharSet other) {
+            int[][] all = new int[(ranges.length + other.ranges.length) / 2][];
+            int n = 0;
+            for (int i = 0; i < ranges.length; i += 2) all[n++] = new int[]{ranges[i], ranges[i + 1]};
+            for (int i = 0; i < other.ranges.length; i += 2) all[n++] = new int[]{other.ranges[i], other.ranges[i + 1]};
+            Arrays.sort(all, (a, b) -> Integer.compare(a[0], b[0]));
+            int[] merged = new int[all.length * 2];
+            int size = 0;
+            for (int[] range : all) {
+                if (size > 0 && range[0] <= merged[size - 1] + 1) {
+                    merged[size - 1] = Math.max(merged[size - 1], range[1]);
+                } else {
+                    merged[size++] = range[0];
+                    merged[size++] = range[1];
+                }
+            }
+            return new CharSet(Arrays.copyOf(merged, size));
+        }
+
+        private CharSet negate() {
+            int[] result = new int[ranges.length + 2];
+            int size = 0;
+            int lo = 0;
+            for (int i = 0; i < ranges.length; i += 2) {
+                if (ranges[i] > lo) {
+                    result[size++] = lo;
+                    result[size++] = ranges[i] - 1;
+                }
+                lo = ranges[i + 1] + 1;
+            }
+            if (lo <= MAX_CHAR) {
+                result[size++] = lo;
+                result[size++] = MAX_CHAR;
+            }
+            return new CharSet(Arrays.copyOf(result, size));
+        }
+
+        private boolean contains(int ch) {
+            for (int i = 0; i < ranges.length && ranges[i] <= ch; i += 2) {
+                if (ch <= ranges[i + 1]) return true;
+            }
+            return false;
+        }
+    }
+
+    // Thompson构造的NFA:每个状态最多一条字符边和两条ε边
+    private static final class Nfa {
+        private final List<CharSet> sets = new ArrayList<>();
+        private final List<Integer> nexts = new ArrayList<>();
+        private final List<Integer> eps1 = new ArrayList<>();
+        private final List<Integer> eps2 = new ArrayList<>();
+        private final List<Integer> accepts = new ArrayList<>();
+
+        private int newState() {
+            sets.add(null);
+            nexts.add(-1);
+            eps1.add(-1);
+            eps2.add(-1);
+            accepts.add(-1);
+            return sets.size() - 1;
+        }
+
+        private void epsilon(int from, int to) {
+            if (eps1.get(from) < 0) {
+                eps1.set(from, to);
+            } else {
+                eps2.set(from, to);
+            }
+        }
+
+        private BitSet closure(BitSet seeds) {
+            BitSet result = (BitSet) seeds.clone();
+            Deque<Integer> stack = new ArrayDeque<>();
+            for (int s = seeds.nextSetBit(0); s >= 0; s = seeds.nextSetBit(s + 1)) stack.push(s);
+            while (!stack.isEmpty()) {
+                int s = stack.pop();
+                for (int next : new int[]{eps1.get(s), eps2.get(s)}) {
+                    if (next >= 0 && !result.get(next)) {
+                        result.set(next);
+                        stack.push(next);
+                    }
+                }
+            }
+            return result;
+        }
+    }
+
+    // NFA片段,end还没有出边
+    private static final class Fragment {
+        private final int start;
+        private final int end;
+
+        private Fragment(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // 正则的递归下降解析,直接生成NFA片段
+    private static final class RegexParser {
+        private static final CharSet DIGIT = CharSet.of('0', '9');
+        private static final CharSet WORD = DIGIT.union(CharSet.of('a', 'z')).union(CharSet.of('A', 'Z')).union(CharSet.of('_', '_'));
+        private static final CharSet SPACE = CharSet.ofChars(" \t\n\u000B\f\r");
+        // 和java.util.regex一致,.不匹配行结束符
+        private static final CharSet DOT = CharSet.ofChars("\n\r\u0085").union(CharSet.of(0x2028, 0x2029)).negate();
+
+        private final String regex;
+        private final Nfa nfa;
+        private int pos;
+
+        private RegexParser(String regex, Nfa nfa) {
+            this.regex = regex;
+            this.nfa = nfa;
+        }
+
+        private IllegalArgumentException unsupported() {
+            return new IllegalArgumentException("不支持的正则:" + regex + ",位置:" + pos);
+        }
+
+        /**
+         * @return 片段的开始状态
+         */
+        private int parse(int pattern) {
+            Fragment fragment = alternation();
+            if (pos < regex.length()) throw unsupported();
+            nfa.accepts.set(fragment.end, pattern);
+            return fragment.start;
+        }
+
+        private boolean peek(char ch) {
+            return pos < regex.length() && regex.charAt(pos) == ch;
+        }
+
+        private Fragment alternation() {
+            Fragment fragment = sequence();
+            while (peek('|')) {
+                pos++;
+                Fragment other = sequence();
+                int start = nfa.newState();
+                int end = nfa.newState();
+                nfa.epsilon(start, fragment.start);
+                nfa.epsilon(start, other.start);
+                nfa.epsilon(fragment.end, end);
+                nfa.epsilon(other.end, end);
+                fragment = new Fragment(start, end);
+            }
+            return fragment;
+        }
+
+        private Fragment sequence() {
+            int start = nfa.newState();
+            Fragment fragment = new Fragment(start, start);
+            while (pos < regex.length() && !peek('|') && !peek(')')) {
+                Fragment next = repeat();
+                nfa.epsilon(fragment.end, next.start);
+                fragment = new Fragment(fragment.start, next.end);
+            }
+            return fragment;
+        }
+
+        private Fragment repeat() {
+            Fragment fragment = atom();
+            while (peek('*') || peek('+') || peek('?')) {
+                char op = regex.charAt(pos++);
+                if (peek('?') || peek('+')) throw unsupported();
+                int start = nfa.newState();
+                int end = nfa.newState();
+                nfa.epsilon(start, fragment.start);
+                if (op != '+') nfa.epsilon(start, end);
+                if (op != '?') nfa.epsilon(fragment.end, fragment.start);
+                nfa.epsilon(fragment.end, end);
+                fragment = new Fragment(start, end);
+            }
+            if (peek('{')) throw unsupported();
+            return fragment;
+        }
+
+        private Fragment atom() {
+            char ch = regex.charAt(pos++);
+            switch (ch) {
+                case '(':
+                    if (peek('?')) {
+                        if (!regex.startsWith("?:", pos)) throw unsupported();
+                        pos += 2;
+                    }
+                    Fragment fragment = alternation();
+                    if (!peek(')')) throw unsupported();
+                    pos++;
+                    return fragment;
+                case '[':
+                    return chars(charClass());
+                case '.':
+                    return chars(DOT);
+                case '\\':
+                    return chars(escape());
+                case '*':
+                case '+':
+                case '?':
+                case '{':
+                case ')':
+                case '^':
+                case '$':
+                    pos--;
+                    throw unsupported();
+                default:
+                    return chars(CharSet.of(ch, ch));
+            }
+        }
+
+        private Fragment chars(CharSet set) {
+            int start = nfa.newState();
+            int end = nfa.newState();
+            nfa.sets.set(start, set);
+            nfa.nexts.set(start, end);
+            return new Fragment(start, end);
+        }
+
+        private CharSet charClass() {
+            boolean negate = peek('^');
+            if (negate) pos++;
+            CharSet set = new CharSet(new int[0]);
+            boolean first = true;
+            while (first || !peek(']')) {
+                if (pos >= regex.length() || peek('[') || regex.startsWith("&&", pos)) throw unsupported();
+                first = false;
+                char ch = regex.charAt(pos++);
+                CharSet item;
+                if (ch == '\\') {
+                    item = escape();
+                } else if (peek('-') && pos + 1 < regex.length() && regex.charAt(pos + 1) != ']') {
+                    pos++;
+                    char hi = regex.charAt(pos++);
+                    if (hi == '\\' || hi < ch) throw unsupported();
+                    item = CharSet.of(ch, hi);
+                } else {
+                    item = CharSet.of(ch, ch);
+                }
+                set = set.union(item);
+            }
+            pos++;
+            return negate ? set.negate() : set;
+        }
+
+        private CharSet escape() {
+            if (pos >= regex.length()) throw unsupported();
+            char ch = regex.charAt(pos++);
+            switch (ch) {
+                case 'd':
+                    return DIGIT;
+                case 'D':
+                    return DIGIT.negate();
+                case 'w':
+                    return WORD;
+                case 'W':
+                    return WORD.negate();
+                case 's':
+                    return SPACE;
+                case 'S':
+                    return SPACE.negate();
+                case 't':
+                    return CharSet.of('\t', '\t');
+                case 'n':
+                    return CharSet.of('\n', '\n');
+                case 'r':
+                    return CharSet.of('\r', '\r');
+                case 'f':
+                    return CharSet.of('\f', '\f');
+                default:
+                    if (Character.isLetterOrDigit(ch)) {
+                        pos--;
+                        throw unsupported();
+                    }
+                    return CharSet.of(ch, ch);
+            }
+        }
+    }
+}
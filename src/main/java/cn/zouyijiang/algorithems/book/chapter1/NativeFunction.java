@@ -0,0 +1,177 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import lombok.Getter;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Java实现的函数,参数个数固定,不可变,注册到ExprRegistry后不能重新定义。
+ * 实现是(BigDecimal...)BigDecimal的MethodHandle,调用时直接传参数,不创建参数List;
+ * 可以另外提供double实现,DOUBLE模式下不装箱,没有时转成BigDecimal调用。
+ * pure表示结果只由参数决定,参数都是常量时优化阶段直接算出结果
+ */
+public final class NativeFunction {
+
+    @FunctionalInterface
+    public interface Unary {
+        BigDecimal apply(BigDecimal a);
+    }
+
+    @FunctionalInterface
+    public interface Binary {
+        BigDecimal apply(BigDecimal a, BigDecimal b);
+    }
+
+    private static final MethodHandles.Lookup lookup = MethodHandles.lookup();
+    private static final MethodHandle mh_unary;
+    private static final MethodHandle mh_binary;
+    private static final MethodHandle mh_doubleUnary;
+    private static final MethodHandle mh_doubleBinary;
+    private static final MethodHandle mh_valueOf;
+    private static final MethodHandle mh_doubleValue;
+
+    static {
+        try {
+            mh_unary = lookup.findVirtual(Unary.class, "apply",
+                    MethodType.methodType(BigDecimal.class, BigDecimal.class));
+            mh_binary = lookup.findVirtual(Binary.class, "apply",
+                    MethodType.methodType(BigDecimal.class, BigDecimal.class, BigDecimal.class));
+            mh_doubleUnary = lookup.findVirtual(DoubleUnaryOperator.class, "applyAsDouble",
+                    MethodType.methodType(double.class, double.class));
+            mh_doubleBinary = lookup.findVirtual(DoubleBinaryOperator.class, "applyAsDouble",
+                    MethodType.methodType(double.class, double.class, double.class));
+            mh_valueOf = lookup.findStatic(BigDecimal.class, "valueOf", MethodType.methodType(BigDecimal.class, double.class));
+            mh_doubleValue = lookup.findVirtual(BigDecimal.class, "doubleValue", MethodType.methodType(double.class));
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    @Getter
+    private final String name;
+    @Getter
+    private final int arity;
+    @Getter
+    private final boolean pure;
+    // (BigDecimal...)BigDecimal,参数个数是arity
+    @Getter
+    private final MethodHandle handle;
+    // (double...)double,没有double实现时由handle转换
+    @Getter
+    private final MethodHandle doubleHandle;
+    // 超过3个参数时用数组调用
+    private final MethodHandle spreader;
+
+    private NativeFunction(String name, boolean pure, MethodHandle handle, MethodHandle doubleHandle) {
+        if (name == null || !ExprTokenizer.isName(name)) {
+            throw new IllegalArgumentException("函数名不合法:" + name);
+        }
+        int arity = handle.type().parameterCount();
+        this.name = name;
+        this.arity = arity;
+        this.pure = pure;
+        this.handle = handle.asType(decimalType(arity));
+        this.doubleHandle = doubleHandle != null ? doubleHandle.asType(doubleType(arity)) : toDouble(this.handle, arity);
+        this.spreader = this.handle.asSpreader(BigDecimal[].class, arity);
+    }
+
+    public static NativeFunction of(String name, boolean pure, Unary func) {
+        return new NativeFunction(name, pure, mh_unary.bindTo(func), null);
+    }
+
+    public static NativeFunction of(String name, boolean pure, Binary func) {
+        return new NativeFunction(name, pure, mh_binary.bindTo(func), null);
+    }
+
+    /**
+     * @param handle 参数和返回值都是BigDecimal,参数个数就是函数的参数个数
+     */
+    public static NativeFunction of(String name, boolean pure, MethodHandle handle) {
+        return new NativeFunction(name, pure, checkType(handle, BigDecimal.class), null);
+    }
+
+    /**
+     * 增加double实现,参数个数必须一致
+     */
+    public NativeFunction withDouble(MethodHandle doubleHandle) {
+        checkType(doubleHandle, double.class);
+        if (doubleHandle.type().parameterCount() != arity) {
+            throw new IllegalArgumentException("double实现的参数个数不一致:" + name + "," + doubleHandle.type());
+        }
+        return new NativeFunction(name, pure, handle, doubleHandle);
+    }
+
+    public NativeFunction withDouble(DoubleUnaryOperator func) {
+        return withDouble(mh_doubleUnary.bindTo(func));
+    }
+
+    public NativeFunction withDouble(DoubleBinaryOperator func) {
+        return withDouble(mh_doubleBinary.bindTo(func));
+    }
+
+    private static MethodHandle checkType(MethodHandle handle, Class<?> valueType) {
+        MethodType type = handle.type();
+        if (type.returnType() != valueType || type.parameterList().stream().anyMatch(it -> it != valueType)) {
+            throw new IllegalArgumentException("函数的参数和返回值必须是" + valueType.getSimpleName() + ":" + type);
+        }
+        return handle;
+    }
+
+    private static MethodType decimalType(int arity) {
+        return MethodType.methodType(BigDecimal.class, Collections.nCopies(arity, BigDecimal.class));
+    }
+
+    private static MethodType doubleType(int arity) {
+        return MethodType.methodType(double.class, Collections.nCopies(arity, double.class));
+    }
+
+    private static MethodHandle toDouble(MethodHandle handle, int arity) {
+        MethodHandle[] filters = new MethodHandle[arity];
+        Arrays.fill(filters, mh_valueOf);
+        return MethodHandles.filterReturnValue(MethodHandles.filterArguments(handle, 0, filters), mh_doubleValue);
+    }
+
+    /**
+     * 用args[from, from+arity)作为参数调用,3个参数以内不创建数组
+     */
+    public BigDecimal invoke(BigDecimal[] args, int from) {
+        try {
+            switch (arity) {
+                case 0:
+                    return (BigDecimal) handle.invokeExact();
+                case 1:
+                    return (BigDecimal) handle.invokeExact(args[from]);
+                case 2:
+                    return (BigDecimal) handle.invokeExact(args[from], args[from + 1]);
+                case 3:
+                    return (BigDecimal) handle.invokeExact(args[from], args[from + 1], args[from + 2]);
+                default:
+                    BigDecimal[] array = from == 0 && args.length == arity ? args : Arrays.copyOfRange(args, from, from + arity);
+                    return (BigDecimal) spreader.invokeExact(array);
+            }
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException("函数调用出错:" + name, e);
+        }
+    }
+
+    public BigDecimal invoke(BigDecimal... args) {
+        if (args.length != arity) {
+            throw new IllegalArgumentException("函数参数不匹配:" + name + ",需要" + arity + "个参数,实际" + args.length + "个");
+        }
+        return invoke(args, 0);
+    }
+
+    @Override
+    public String toString() {
+        return name + "/" + arity + (pure ? "" : "(impure)");
+    }
+}
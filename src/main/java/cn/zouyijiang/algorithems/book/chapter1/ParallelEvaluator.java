@@ -0,0 +1,102 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import lombok.Getter;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * 并行批量计算:把行区间拆分到ForkJoinPool执行。
+ * 每个分片使用自己的槽位数组,赋值不会互相影响,也不写回变量表;
+ * 结果按行号写入输出数组,和串行计算完全一致
+ */
+public class ParallelEvaluator implements AutoCloseable {
+
+    public static final int DEFAULT_CHUNK_SIZE = 4096;
+
+    private final Evaluate evaluate;
+    private final ForkJoinPool pool;
+    // 是否由本对象创建,close时关闭
+    private final boolean ownPool;
+    @Getter
+    private final int chunkSize;
+
+    public ParallelEvaluator(Evaluate evaluate, ForkJoinPool pool, int chunkSize) {
+        this(evaluate, pool, chunkSize, false);
+    }
+
+    public ParallelEvaluator(Evaluate evaluate, int parallelism, int chunkSize) {
+        this(evaluate, new ForkJoinPool(parallelism), chunkSize, true);
+    }
+
+    public ParallelEvaluator(Evaluate evaluate) {
+        this(evaluate, Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+    }
+
+    private ParallelEvaluator(Evaluate evaluate, ForkJoinPool pool, int chunkSize, boolean ownPool) {
+        if (chunkSize <= 0) {
+            throw new IllegalArgumentException("分片大小必须大于0:" + chunkSize);
+        }
+        this.evaluate = evaluate;
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+        this.ownPool = ownPool;
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * 同Evaluate.evaluateBatch,行区间并行计算
+     */
+    public void evaluateBatch(CompiledExpr compiled, Map<String, BigDecimal[]> columns, BigDecimal[] out) {
+        evaluate.bindBatch(compiled, columns, out.length, (template, slots, columnArray) ->
+                pool.invoke(new RowsTask(0, out.length, (from, to) -> compiled.evalRows(template, slots, columnArray, out, from, to))));
+    }
+
+    /**
+     * 同Evaluate.evaluateBatchDouble,行区间并行计算
+     */
+    public void evaluateBatchDouble(CompiledExpr compiled, Map<String, double[]> columns, double[] out) {
+        evaluate.bindBatchDouble(compiled, columns, out.length, (template, slots, columnArray) ->
+                pool.invoke(new RowsTask(0, out.length, (from, to) -> compiled.evalDoubleRows(template, slots, columnArray, out, from, to))));
+    }
+
+    @FunctionalInterface
+    private interface RowsAction {
+        void run(int from, int to);
+    }
+
+    // 二分拆分,直到不超过chunkSize行
+    private class RowsTask extends RecursiveAction {
+        private final int from;
+        private final int to;
+        private final RowsAction action;
+
+        private RowsTask(int from, int to, RowsAction action) {
+            this.from = from;
+            this.to = to;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= chunkSize) {
+                action.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RowsTask(from, mid, action), new RowsTask(mid, to, action));
+        }
+    }
+
+    @Override
+    public void close() {
+        if (ownPool) {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package cn.zouyijiang.algorithems.book.chapter1;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 流式执行公式脚本:边读边按括号外的;或,切分语句,每条语句单独解析计算,变量在语句之间保留。
+ * 语句出错时记录行列号后继续执行下一条。
+ * 语句不经过解析缓存,避免大量只执行一次的语句挤掉缓存;name=...也不定义成函数,只写入变量,
+ * 所以除了变量本身,内存只和最长的语句有关,和文件大小无关
+ */
+@Slf4j
+public class ScriptRunner {
+
+    public static final int DEFAULT_BUFFER_SIZE = 8192;
+    public static final int DEFAULT_MAX_STATEMENT_LENGTH = 1 << 20;
+    public static final int DEFAULT_MAX_ERRORS = 100;
+    // 错误里保留的语句长度
+    private static final int ERROR_TEXT_LENGTH = 200;
+    // 异常信息里节点的格式:类型[开始,结束):token
+    private static final Pattern NODE_POSITION = Pattern.compile("\\[(\\d+),(\\d+)\\):");
+
+    /**
+     * 一条语句,行列号从1开始,是语句第一个非空白字符的位置
+     */
+    @Data
+    @AllArgsConstructor
+    public static class Statement {
+        private long index;
+        private long line;
+        private long column;
+        private String text;
+    }
+
+    /**
+     * 出错的位置,能从异常信息里找到出错的节点时是节点所在的行列,否则是语句开始的位置
+     */
+    @Data
+    @AllArgsConstructor
+    public static class StatementError {
+        private Statement statement;
+        private long line;
+        private long column;
+        private String message;
+
+        @Override
+        public String toString() {
+            return "第" + line + "行第" + column + "列:" + message + ",语句:" + statement.getText();
+        }
+    }
+
+    @Data
+    public static class Summary {
+        private long statementCount;
+        private long errorCount;
+        // 最后一条成功语句的结果
+        private BigDecimal lastResult;
+        // 最多保留maxErrors条
+        private final List<StatementError> errors = new ArrayList<>();
+    }
+
+    @Getter
+    private final Evaluate evaluate;
+    @Getter
+    @Setter
+    private int maxStatementLength = DEFAULT_MAX_STATEMENT_LENGTH;
+    @Getter
+    @Setter
+    private int maxErrors = DEFAULT_MAX_ERRORS;
+    // 每条语句计算成功后回调
+    @Setter
+    private BiConsumer<Statement, BigDecimal> resultListener;
+
+    public ScriptRunner(Evaluate evaluate) {
+        this.evaluate = evaluate;
+    }
+
+    /**
+     * 通过FileChannel读取文件执行
+     */
+    public Summary run(Path path, Charset charset) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+             Reader reader = Channels.newReader(channel, charset.newDecoder(), DEFAULT_BUFFER_SIZE)) {
+            return run(reader);
+        }
+    }
+
+    public Summary run(Path path) throws IOException {
+        return run(path, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 读到结尾为止,不关闭reader
+     */
+    public Summary run(Reader reader) throws IOException {
+        Summary summary = new Summary();
+        char[] buffer = new char[DEFAULT_BUFFER_SIZE];
+        StringBuilder text = new StringBuilder();
+        // 当前位置和当前语句开始的位置
+        long line = 1, column = 1;
+        long startLine = 0, startColumn = 0;
+        int depth = 0;
+        boolean tooLong = false;
+        for (int n; (n = reader.read(buffer)) != -1; ) {
+            for (int i = 0; i < n; i++) {
+                char ch = buffer[i];
+                if (depth == 0 && (ch == ';' || ch == ',')) {
+                    execute(summary, text, startLine, startColumn, tooLong);
+                    text.setLength(0);
+                    startLine = 0;
+                    tooLong = false;
+                } else {
+                    if (ch == '(') {
+                        depth++;
+                    } else if (ch == ')' && depth > 0) {
+                        depth--;
+                    }
+                    if (startLine == 0 && !Character.isWhitespace(ch)) {
+                        startLine = line;
+                        startColumn = column;
+                    }
+                    if (startLine != 0) {
+                        if (text.length() < maxStatementLength) {
+                            text.append(ch);
+                        } else {
+                            // 一般是括号不成对,丢弃剩余部分,从下一个分隔符重新开始
+                            tooLong = true;
+                            depth = 0;
+                        }
+                    }
+                }
+                if (ch == '\n') {
+                    line++;
+                    column = 1;
+                } else {
+                    column++;
+                }
+            }
+        }
+        execute(summary, text, startLine, startColumn, tooLong);
+        log.info("脚本执行完成,语句数:{},出错:{}", summary.getStatementCount(), summary.getErrorCount());
+        return summary;
+    }
+
+    private void execute(Summary summary, StringBuilder text, long line, long column, boolean tooLong) {
+        if (line == 0) return;
+        Statement statement = new Statement(summary.getStatementCount(), line, column, text.toString().trim());
+        summary.setStatementCount(summary.getStatementCount() + 1);
+        try {
+            if (tooLong) {
+                throw new IllegalArgumentException("语句超过最大长度:" + maxStatementLength);
+            }
+            BigDecimal result = evaluate.evaluate(evaluate.parseExpr(statement.getText(), false));
+            summary.setLastResult(result);
+            if (resultListener != null) {
+                resultListener.accept(statement, result);
+            }
+        } catch (RuntimeException e) {
+            String message = e.getMessage() != null ? e.getMessage() : e.toString();
+            String statementText = statement.getText();
+            if (statementText.length() > ERROR_TEXT_LENGTH) {
+                statement.setText(statementText.substring(0, ERROR_TEXT_LENGTH) + "...");
+            }
+            // 出错位置在语句中的偏移换算成行列
+            long errorLine = line, errorColumn = column;
+            int offset = errorOffset(statementText, message);
+            for (int i = 0; i < offset; i++) {
+                if (statementText.charAt(i) == '\n') {
+                    errorLine++;
+                    errorColumn = 1;
+                } else {
+                    errorColumn++;
+                }
+            }
+            StatementError error = new StatementError(statement, errorLine, errorColumn, message);
+            log.warn("语句执行出错:{}", error);
+            summary.setErrorCount(summary.getErrorCount() + 1);
+            if (summary.getErrors().size() < maxErrors) {
+                summary.getErrors().add(error);
+            }
+        }
+    }
+
+    /**
+     * 从异常信息里找出错节点在语句中的偏移,找不到返回0。
+     * 函数体里抛出的异常,节点位置是相对函数体的,和语句中对应位置的文本对不上时不使用
+     */
+    private static int errorOffset(String text, String message) {
+        Matcher matcher = NODE_POSITION.matcher(message);
+        while (matcher.find()) {
+            int begin = Integer.parseInt(matcher.group(1));
+            int end = Integer.parseInt(matcher.group(2));
+            // 函数节点的范围包括参数,token只是函数名
+            int tokenEnd = message.indexOf(',', matcher.end());
+            String token = message.substring(matcher.end(), tokenEnd < 0 ? message.length() : tokenEnd);
+            if (begin < end && end <= text.length() && !token.isEmpty() && text.startsWith(token, begin)) {
+                return begin;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,165 @@
+package cn.zouyijiang.algorithems.server;
+
+import cn.zouyijiang.algorithems.book.chapter1.LatencyHistogram;
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 计算服务的压测客户端:多个连接并发,每个连接保持pipelineDepth个未响应的请求,
+ * 统计吞吐量和延迟百分位。延迟从请求写出到读到响应,包含排队时间。
+ * 用法:EvalLoadClient 端口 [连接数] [每连接请求数] [流水线深度] [表达式...]
+ */
+@Slf4j
+public class EvalLoadClient {
+
+    public static final String[] DEFAULT_EXPRS = {
+            "1+2*3", "(1.5+2.5)*(3-1)/4", "2^10-1", "x=3;y=4;x*x+y*y", "area(3,4)*2"};
+
+    @Data
+    public static class Result {
+        private long requestCount;
+        private long errorCount;
+        private long elapsedNanos;
+        private double throughput; // 每秒请求数
+        private long p50Nanos;
+        private long p99Nanos;
+        private long maxNanos;
+        // 第一个错误响应的内容
+        private String firstError;
+
+        @Override
+        public String toString() {
+            return String.format("请求数:%d,出错:%d,耗时:%.1fms,吞吐量:%.0f/s,p50:%.1fus,p99:%.1fus,max:%.1fus",
+                    requestCount, errorCount, elapsedNanos / 1e6, throughput, p50Nanos / 1e3, p99Nanos / 1e3, maxNanos / 1e3);
+        }
+    }
+
+    private final int port;
+    private final int connections;
+    private final int requestsPerConnection;
+    private final int pipelineDepth;
+    private final String[] exprs;
+
+    public EvalLoadClient(int port, int connections, int requestsPerConnection, int pipelineDepth, String... exprs) {
+        if (connections <= 0 || requestsPerConnection <= 0 || pipelineDepth <= 0) {
+            throw new IllegalArgumentException("连接数、请求数和流水线深度必须大于0");
+        }
+        this.port = port;
+        this.connections = connections;
+        this.requestsPerConnection = requestsPerConnection;
+        this.pipelineDepth = pipelineDepth;
+        this.exprs = exprs.length == 0 ? DEFAULT_EXPRS : exprs;
+    }
+
+    public Result run() throws IOException, InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        LongAdder errorCount = new LongAdder();
+        String[] firstError = new String[1];
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < connections; i++) {
+                int offset = i;
+                futures.add(executor.submit(() -> {
+                    runConnection(offset, histogram, errorCount, firstError);
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IllegalStateException("压测连接出错", cause);
+        } finally {
+            executor.shutdownNow();
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+        Result result = new Result();
+        result.setElapsedNanos(System.nanoTime() - start);
+        result.setRequestCount(histogram.getCount());
+        result.setErrorCount(errorCount.sum());
+        result.setThroughput(result.getRequestCount() * 1e9 / Math.max(1, result.getElapsedNanos()));
+        result.setP50Nanos(histogram.getPercentileNanos(50));
+        result.setP99Nanos(histogram.getPercentileNanos(99));
+        result.setMaxNanos(histogram.getMaxNanos());
+        result.setFirstError(firstError[0]);
+        return result;
+    }
+
+    // 阻塞模式的连接,请求写出后不等响应,未响应的请求达到流水线深度时才读
+    private void runConnection(int offset, LatencyHistogram histogram, LongAdder errorCount, String[] firstError) throws IOException {
+        try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), port))) {
+            channel.socket().setTcpNoDelay(true);
+            // 请求id就是序号,对应的发送时间
+            long[] sendTimes = new long[requestsPerConnection];
+            ByteBuffer readBuffer = ByteBuffer.allocate(16 * 1024);
+            int sent = 0, received = 0;
+            while (received < requestsPerConnection) {
+                while (sent < requestsPerConnection && sent - received < pipelineDepth) {
+                    ByteBuffer request = EvalProtocol.encodeRequest(sent, exprs[(offset + sent) % exprs.length]);
+                    sendTimes[sent] = System.nanoTime();
+                    while (request.hasRemaining()) channel.write(request);
+                    sent++;
+                }
+                if (channel.read(readBuffer) < 0) {
+                    throw new IOException("连接被服务端关闭,已收到响应:" + received);
+                }
+                readBuffer.flip();
+                for (int length; (length = EvalProtocol.frameLength(readBuffer)) >= 0; ) {
+                    readBuffer.getInt();
+                    long id = readBuffer.getLong();
+                    byte status = readBuffer.get();
+                    String text = EvalProtocol.readText(readBuffer, length - 9);
+                    if (id != received) {
+                        throw new IllegalStateException("响应顺序错误,期望:" + received + ",实际:" + id);
+                    }
+                    histogram.record(System.nanoTime() - sendTimes[received]);
+                    received++;
+                    if (status != EvalProtocol.STATUS_OK) {
+                        errorCount.increment();
+                        synchronized (firstError) {
+                            if (firstError[0] == null) firstError[0] = text;
+                        }
+                    }
+                }
+                if (readBuffer.remaining() >= 4 && 4 + readBuffer.getInt(readBuffer.position()) > readBuffer.capacity()) {
+                    readBuffer = ByteBuffer.allocate(4 + readBuffer.getInt(readBuffer.position())).put(readBuffer);
+                } else {
+                    readBuffer.compact();
+                }
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("用法:EvalLoadClient 端口 [连接数] [每连接请求数] [流水线深度] [表达式...]");
+            return;
+        }
+        int port = Integer.parseInt(args[0]);
+        int connections = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        int requests = args.length > 2 ? Integer.parseInt(args[2]) : 100_000;
+        int depth = args.length > 3 ? Integer.parseInt(args[3]) : 64;
+        String[] exprs = args.length > 4 ? Arrays.copyOfRange(args, 4, args.length) : DEFAULT_EXPRS;
+        Result result = new EvalLoadClient(port, connections, requests, depth, exprs).run();
+        log.info("压测完成:{}", result);
+    }
+}
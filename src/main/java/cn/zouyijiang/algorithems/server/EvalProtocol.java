@@ -0,0 +1,61 @@
+package cn.zouyijiang.algorithems.server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 计算服务的协议,每帧是4字节长度加内容,整数都是大端:
+ * 请求:8字节请求id + UTF-8表达式;
+ * 响应:8字节请求id + 1字节状态 + UTF-8结果或错误信息。
+ * 同一个连接可以连续发送多个请求不等响应,响应按请求的顺序返回
+ */
+public final class EvalProtocol {
+
+    public static final byte STATUS_OK = 0;
+    public static final byte STATUS_ERROR = 1;
+    // 单帧最大长度,超过时关闭连接
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+
+    private EvalProtocol() {
+    }
+
+    public static ByteBuffer encodeRequest(long id, String exprText) {
+        byte[] text = exprText.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 8 + text.length);
+        buffer.putInt(8 + text.length).putLong(id).put(text);
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * 响应追加到buffer,空间不足时返回扩大后的新buffer
+     */
+    public static ByteBuffer appendResponse(ByteBuffer buffer, long id, byte status, String text) {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        int length = 4 + 8 + 1 + bytes.length;
+        if (buffer.remaining() < length) {
+            ByteBuffer newBuffer = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+            buffer.flip();
+            buffer = newBuffer.put(buffer);
+        }
+        return buffer.putInt(8 + 1 + bytes.length).putLong(id).put(status).put(bytes);
+    }
+
+    /**
+     * buffer中完整一帧的内容长度,不完整返回-1,position不变
+     */
+    public static int frameLength(ByteBuffer buffer) {
+        if (buffer.remaining() < 4) return -1;
+        int length = buffer.getInt(buffer.position());
+        if (length < 8 || length > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException("帧长度不合法:" + length);
+        }
+        return buffer.remaining() - 4 >= length ? length : -1;
+    }
+
+    static String readText(ByteBuffer buffer, int length) {
+        String text = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return text;
+    }
+}
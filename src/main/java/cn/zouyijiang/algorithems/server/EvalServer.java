@@ -0,0 +1,320 @@
+package cn.zouyijiang.algorithems.server;
+
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate;
+import cn.zouyijiang.algorithems.book.chapter1.ExprRegistry;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 本机的表达式计算服务,协议见EvalProtocol。
+ * 一个选择器线程负责所有连接的读写,读到的请求放进连接的队列,由工作线程整批取出计算,
+ * 同一批中相同的表达式只计算一次,表达式的解析和字节码都走共享注册表的缓存。
+ * 每个连接同时只有一个工作线程在处理,所以响应的顺序和请求一致。
+ * 每个请求用独立的变量表,请求之间不共享变量,函数定义写入共享的注册表
+ */
+@Slf4j
+public class EvalServer implements Closeable {
+
+    public static final int DEFAULT_WORKER_THREADS = Runtime.getRuntime().availableProcessors();
+    // 连接中排队的请求超过这个数时暂停读取,等工作线程处理完再继续
+    public static final int MAX_PENDING_REQUESTS = 4096;
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+    @Getter
+    private final ExprRegistry registry;
+    private final int bindPort;
+    private final int workerThreads;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService workers;
+    private Thread selectorThread;
+    // 工作线程写好响应或处理完一批后,等待选择器线程更新读写状态的连接
+    private final Queue<Connection> readyQueue = new ConcurrentLinkedQueue<>();
+    private volatile boolean running;
+
+    @Getter
+    private final LongAdder requestCount = new LongAdder();
+    @Getter
+    private final LongAdder errorCount = new LongAdder();
+    @Getter
+    private final LongAdder batchCount = new LongAdder();
+
+    public EvalServer(ExprRegistry registry, int port, int workerThreads) {
+        if (workerThreads <= 0) {
+            throw new IllegalArgumentException("工作线程数必须大于0:" + workerThreads);
+        }
+        this.registry = registry;
+        this.bindPort = port;
+        this.workerThreads = workerThreads;
+    }
+
+    public EvalServer(ExprRegistry registry, int port) {
+        this(registry, port, DEFAULT_WORKER_THREADS);
+    }
+
+    /**
+     * 只监听本机回环地址,port为0时随机分配,用getPort获取
+     */
+    public synchronized void start() throws IOException {
+        if (running) return;
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), bindPort), 1024);
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        AtomicInteger threadIndex = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread thread = new Thread(r, "eval-worker-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        running = true;
+        selectorThread = new Thread(this::selectLoop, "eval-selector");
+        selectorThread.start();
+        log.info("计算服务已启动,端口:{},工作线程:{}", getPort(), workerThreads);
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (!running) return;
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdownNow();
+        for (SelectionKey key : selector.keys()) {
+            key.channel().close();
+        }
+        selector.close();
+        log.info("计算服务已关闭,请求数:{},出错:{},批次:{}", requestCount.sum(), errorCount.sum(), batchCount.sum());
+    }
+
+    private void selectLoop() {
+        try {
+            while (running) {
+                selector.select();
+                for (Connection connection; (connection = readyQueue.poll()) != null; ) {
+                    connection.updateInterest();
+                }
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) connection.read();
+                            if (key.isValid() && key.isWritable()) connection.write();
+                        }
+                    } catch (IOException | RuntimeException e) {
+                        log.warn("连接出错,关闭连接:{}", e.toString());
+                        closeQuietly(key);
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (running) log.error("选择器线程异常退出", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    private static void closeQuietly(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            log.debug("关闭连接出错", e);
+        }
+    }
+
+    private static final class Request {
+        private final long id;
+        private final String exprText;
+
+        private Request(long id, String exprText) {
+            this.id = id;
+            this.exprText = exprText;
+        }
+    }
+
+    private final class Connection {
+        private final SocketChannel channel;
+        private SelectionKey key;
+        // 只在选择器线程使用
+        private ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private ByteBuffer writing;
+        private boolean readPaused;
+        // 以下由工作线程和选择器线程共用,访问时锁住连接
+        private ArrayDeque<Request> pending = new ArrayDeque<>();
+        private boolean processing;
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        private void read() throws IOException {
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                closeQuietly(key);
+                return;
+            }
+            readBuffer.flip();
+            List<Request> requests = new ArrayList<>();
+            for (int length; (length = EvalProtocol.frameLength(readBuffer)) >= 0; ) {
+                readBuffer.getInt();
+                long id = readBuffer.getLong();
+                requests.add(new Request(id, EvalProtocol.readText(readBuffer, length - 8)));
+            }
+            if (readBuffer.remaining() >= 4) {
+                // 不完整的大帧,扩大缓冲区
+                int frameSize = 4 + readBuffer.getInt(readBuffer.position());
+                if (frameSize > readBuffer.capacity()) {
+                    readBuffer = ByteBuffer.allocate(frameSize).put(readBuffer);
+                } else {
+                    readBuffer.compact();
+                }
+            } else {
+                readBuffer.compact();
+            }
+            if (requests.isEmpty()) return;
+            boolean submit;
+            synchronized (this) {
+                pending.addAll(requests);
+                submit = !processing;
+                processing = true;
+                if (pending.size() >= MAX_PENDING_REQUESTS) {
+                    readPaused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+            }
+            if (submit) {
+                workers.execute(this::process);
+            }
+        }
+
+        // 工作线程:一次取出所有排队的请求作为一批,直到队列为空
+        private void process() {
+            while (true) {
+                ArrayDeque<Request> batch;
+                synchronized (this) {
+                    if (pending.isEmpty()) {
+                        processing = false;
+                        return;
+                    }
+                    batch = pending;
+                    pending = new ArrayDeque<>();
+                }
+                outbound.add(evaluateBatch(batch));
+                readyQueue.add(this);
+                selector.wakeup();
+            }
+        }
+
+        private void write() throws IOException {
+            while (true) {
+                if (writing == null && (writing = outbound.poll()) == null) break;
+                channel.write(writing);
+                if (writing.hasRemaining()) break;
+                writing = null;
+            }
+            updateInterest();
+        }
+
+        // 选择器线程:有待写的响应时关注可写,队列处理完后恢复读取
+        private void updateInterest() {
+            if (!key.isValid()) return;
+            int ops = SelectionKey.OP_READ;
+            if (writing != null || !outbound.isEmpty()) {
+                ops |= SelectionKey.OP_WRITE;
+            }
+            if (readPaused) {
+                synchronized (this) {
+                    if (pending.size() < MAX_PENDING_REQUESTS / 2) {
+                        readPaused = false;
+                    } else {
+                        ops &= ~SelectionKey.OP_READ;
+                    }
+                }
+            }
+            key.interestOps(ops);
+        }
+    }
+
+    private ByteBuffer evaluateBatch(ArrayDeque<Request> batch) {
+        batchCount.increment();
+        requestCount.add(batch.size());
+        // 同一批中相同的表达式只计算一次
+        Map<String, Object> results = new HashMap<>();
+        ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE);
+        for (Request request : batch) {
+            Object result = results.computeIfAbsent(request.exprText, this::evaluate);
+            if (result instanceof BigDecimal) {
+                buffer = EvalProtocol.appendResponse(buffer, request.id, EvalProtocol.STATUS_OK,
+                        ((BigDecimal) result).toPlainString());
+            } else {
+                errorCount.increment();
+                buffer = EvalProtocol.appendResponse(buffer, request.id, EvalProtocol.STATUS_ERROR, (String) result);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // 返回结果或错误信息
+    private Object evaluate(String exprText) {
+        try {
+            Evaluate evaluate = registry.newEvaluate();
+            return evaluate.evaluateBytecode(exprText);
+        } catch (RuntimeException e) {
+            return e.getMessage() != null ? e.getMessage() : e.toString();
+        } catch (StackOverflowError e) {
+            return "递归层数过多";
+        }
+    }
+}
@@ -1,13 +1,23 @@
 package cn.zouyijiang.algorithems;
 
+import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
-@SpringBootTest
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+
+@SpringBootTest(properties = "spring.jmx.enabled=true")
 class AlgorithemsApplicationTests {
 
 	@Test
 	void contextLoads() {
 	}
 
+	@Test
+	void engineMetricsExported() throws Exception {
+		ObjectName name = new ObjectName("*:type=EngineMetrics,*");
+		Assertions.assertFalse(ManagementFactory.getPlatformMBeanServer().queryNames(name, null).isEmpty());
+	}
+
 }
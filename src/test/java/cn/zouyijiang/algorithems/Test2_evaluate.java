@@ -1,12 +1,36 @@
 package cn.zouyijiang.algorithems;
 
+import cn.zouyijiang.algorithems.book.chapter1.CompiledExpr;
+import cn.zouyijiang.algorithems.book.chapter1.EngineMetrics;
 import cn.zouyijiang.algorithems.book.chapter1.Evaluate;
+import cn.zouyijiang.algorithems.book.chapter1.ExprCache;
+import cn.zouyijiang.algorithems.book.chapter1.ExprRegistry;
+import cn.zouyijiang.algorithems.book.chapter1.ExprSerializer;
+import cn.zouyijiang.algorithems.book.chapter1.ExprTokenizer;
+import cn.zouyijiang.algorithems.book.chapter1.ScriptRunner;
 import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
 import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 @Slf4j
 @RunWith(JUnit4.class)
@@ -111,4 +135,529 @@ public class Test2_evaluate {
         log.info("vars={}", evaluate.getVars());
         log.info("" + evaluate.evaluate("abc(10)"));
     }
+
+    @Test
+    public void test_cache() {
+        Evaluate evaluate = new Evaluate(48, RoundingMode.HALF_UP, 8);
+        evaluate.putVar("a", new BigDecimal(3));
+        Assert.assertEquals(0, new BigDecimal(15).compareTo(evaluate.evaluate("area(a,5)")));
+        Assert.assertEquals(0, new BigDecimal(15).compareTo(evaluate.evaluate(" area( a , 5 ) ")));
+        ExprCache<Evaluate.Expr> cache = evaluate.getExprCache();
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals("area(a,5)", Evaluate.normalizeExpr(" area( a , 5 ) "));
+        Assert.assertEquals("1 2+x", Evaluate.normalizeExpr("1  2 + x"));
+
+        // 重新定义函数,调用它的缓存失效
+        evaluate.evaluate("f=a*2");
+        Evaluate.Expr expr = evaluate.parseExprCached("1+f(a,a)");
+        Assert.assertSame(expr, evaluate.parseExprCached("1 + f(a, a)"));
+        evaluate.evaluate("f=a*3");
+        Assert.assertEquals(1, cache.getInvalidationCount());
+        Assert.assertNotSame(expr, evaluate.parseExprCached("1+f(a,a)"));
+
+        // 超出容量时淘汰
+        for (int i = 0; i < 20; i++) {
+            evaluate.evaluate(i + "+a");
+        }
+        Assert.assertTrue(cache.size() <= cache.getMaxSize());
+        Assert.assertTrue(cache.getEvictionCount() > 0);
+        log.info("cache:{}", cache);
+    }
+
+    @Test
+    public void test_number() {
+        Evaluate evaluate = new Evaluate();
+        evaluate.putVar("a", new BigDecimal("1.50"));
+        // 数值不经过字符串转换,scale保持不变
+        Assert.assertEquals(new BigDecimal("2.40"), evaluate.evaluate("1.20*2"));
+        Assert.assertEquals(new BigDecimal("3.00"), evaluate.evaluate("a*2"));
+        Assert.assertEquals(new BigDecimal("-1.50"), evaluate.evaluate("-a"));
+        Evaluate.Expr expr = evaluate.parseExprCached("b=1.5+a");
+        Assert.assertEquals(new BigDecimal("3.00"), evaluate.calculate(expr, evaluate.getVars()));
+        Assert.assertEquals(new BigDecimal("3.00"), evaluate.getVar("b"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_numberFormat() {
+        new Evaluate().parseExpr("1.2.3+1");
+    }
+
+    // 两种解析方式结果一致
+    @Test
+    public void test_parser() {
+        List<String> exprTexts = Arrays.asList(
+                "11*3+2-3*(9-12*2)",
+                "(2-1)*3+(4*(6-1)*7-(9)+8)",
+                "1.2 * (44.5 - a)*b",
+                "2*-11--9",
+                "-11^a+2^3^2",
+                "5*-11^a",
+                "-a*b+(-a)*b",
+                "x=(1+1),y=(2+a)",
+                "i=(1+2),j=(i*3),k=((j-1)*2)",
+                "y=x=a-1/2",
+                "y=1+(x=z=a-6)",
+                "x=1+1,y=-2+a,z=-3+a-(k2=3-1)",
+                "abc=a+-area(2,4+(2-1))-3^2",
+                "area(a,b)*pi-area(2,area(3,b)+1)",
+                "abc(b)+abc(area(a,b))"
+        );
+        Evaluate evaluate1 = new Evaluate();
+        Evaluate evaluate2 = new Evaluate();
+        evaluate2.setLegacyParser(true);
+        for (Evaluate evaluate : Arrays.asList(evaluate1, evaluate2)) {
+            evaluate.putVar("a", new BigDecimal("2"));
+            evaluate.putVar("b", new BigDecimal("12.34"));
+        }
+        for (String exprText : exprTexts) {
+            String str1 = evaluate1.exprToStr(evaluate1.parseExpr(exprText));
+            String str2 = evaluate2.exprToStr(evaluate2.parseExpr(exprText));
+            Assert.assertEquals(exprText, str2, str1);
+            Assert.assertEquals(exprText, evaluate2.evaluate(exprText), evaluate1.evaluate(exprText));
+        }
+        Assert.assertEquals(evaluate2.getVars(), evaluate1.getVars());
+    }
+
+    @Test
+    public void test_parser_precedence() {
+        Evaluate evaluate = new Evaluate();
+        evaluate.putVar("x", new BigDecimal(2));
+        // 赋值只作用于紧挨着的变量
+        Assert.assertEquals(new BigDecimal(16), evaluate.evaluate("q=(1+5*s=(1+x))"));
+        Assert.assertEquals(new BigDecimal(3), evaluate.getVar("s"));
+        // 分号分隔语句
+        Assert.assertEquals(new BigDecimal(-2), evaluate.evaluate("m=1;-2"));
+        Assert.assertEquals(new BigDecimal(1), evaluate.getVar("m"));
+        Assert.assertEquals(Arrays.asList("x"), evaluate.parseExpr("w=x*x").getArgNames());
+    }
+
+    @Test
+    public void test_sharedRegistry() throws Exception {
+        ExprRegistry registry = new ExprRegistry();
+        Evaluate.Expr area = registry.getExpr("area");
+        int threadNum = 8, n = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(threadNum);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < threadNum; t++) {
+                int base = t * n;
+                futures.add(executor.submit(() -> {
+                    for (int i = base; i < base + n; i++) {
+                        // 每次调用一个轻量的上下文,变量互不影响
+                        Evaluate evaluate = registry.newEvaluate();
+                        evaluate.putVar("a", new BigDecimal(i));
+                        evaluate.putVar("b", new BigDecimal(2));
+                        Assert.assertEquals(new BigDecimal(i * 2 + 1), evaluate.evaluate("s=area(a,b)+1"));
+                        Assert.assertEquals(new BigDecimal(i * 2 + 1), evaluate.getVar("s"));
+                        Assert.assertEquals(new BigDecimal(i * 3), evaluate.evaluate(evaluate.compile("a*3")));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertSame(area, registry.getExpr("area"));
+        Assert.assertEquals(2, registry.getExprCache().size());
+        Assert.assertEquals(1, registry.getCompiledCache().size());
+        log.info("exprCache:{},compiledCache:{}", registry.getExprCache(), registry.getCompiledCache());
+    }
+
+    @Test
+    public void test_functionFrame() {
+        Evaluate evaluate = new Evaluate();
+        // 变量很多时函数调用也不复制变量表
+        for (int i = 0; i < 5000; i++) {
+            evaluate.putVar("v" + i, new BigDecimal(i));
+        }
+        evaluate.parseExpr("sq=x*x");
+        evaluate.parseExpr("dist=sq(u)+sq(v)");
+        Evaluate.Expr expr = evaluate.parseExpr("dist(v3,v4)+area(v10,dist(1,2))");
+        Assert.assertEquals(new BigDecimal(75), evaluate.calculate(expr, evaluate.getVars()));
+        Assert.assertEquals(new BigDecimal(75), evaluate.evaluate(evaluate.compile("dist(v3,v4)+area(v10,dist(1,2))")));
+        // 参数按解析好的槽位读取
+        Assert.assertEquals(0, expr.getChildren().get(0).getChildren().get(0).getChildren().get(0).getSlot());
+    }
+
+    @Test
+    public void test_reactive() {
+        Evaluate evaluate = new Evaluate();
+        evaluate.setReactive(true);
+        evaluate.putVar("x", new BigDecimal(1));
+        evaluate.evaluate("i=(1+x),j=(i*3),k=((j-1)*2)");
+        evaluate.evaluate("m=x*10");
+        evaluate.evaluate(evaluate.compile("y=(z=i+1)*2"));
+        Assert.assertEquals(new BigDecimal(10), evaluate.getVar("k"));
+        // 只重新计算下游变量,被依赖的在前
+        Assert.assertEquals(Arrays.asList("z", "y", "j", "k"), evaluate.getRecalculateOrder("i"));
+        Assert.assertEquals(Arrays.asList("y"), evaluate.getRecalculateOrder("z"));
+
+        evaluate.putVar("x", new BigDecimal(2));
+        Assert.assertEquals(new BigDecimal(3), evaluate.getVar("i"));
+        Assert.assertEquals(new BigDecimal(9), evaluate.getVar("j"));
+        Assert.assertEquals(new BigDecimal(16), evaluate.getVar("k"));
+        Assert.assertEquals(new BigDecimal(20), evaluate.getVar("m"));
+        Assert.assertEquals(new BigDecimal(8), evaluate.getVar("y"));
+
+        // 手动赋值覆盖公式
+        evaluate.putVar("j", new BigDecimal(0));
+        evaluate.putVar("x", new BigDecimal(3));
+        Assert.assertEquals(new BigDecimal(0), evaluate.getVar("j"));
+        Assert.assertEquals(new BigDecimal(-2), evaluate.getVar("k"));
+
+        // 同一次计算中赋值的变量在另一个赋值变量的下游时也要重新计算
+        Evaluate evaluate2 = new Evaluate();
+        evaluate2.setReactive(true);
+        evaluate2.evaluate("a=1");
+        evaluate2.evaluate("b=a+1");
+        evaluate2.evaluate("c=b*2, a=5");
+        Assert.assertEquals(new BigDecimal(5), evaluate2.getVar("a"));
+        Assert.assertEquals(new BigDecimal(6), evaluate2.getVar("b"));
+        Assert.assertEquals(new BigDecimal(12), evaluate2.getVar("c"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_reactive_cycle() {
+        Evaluate evaluate = new Evaluate();
+        evaluate.setReactive(true);
+        evaluate.putVar("b", new BigDecimal(1));
+        evaluate.evaluate("a=b+1");
+        evaluate.evaluate("c=a*2");
+        evaluate.evaluate("b=c-1");
+    }
+
+    @Test
+    public void test_memoize() {
+        ExprRegistry registry = new ExprRegistry();
+        Evaluate evaluate = registry.newEvaluate();
+        evaluate.parseExpr("poly=x*x*x+2*x*x-x+1");
+        evaluate.parseExpr("twice=poly(y)+poly(y)*2+1");
+        evaluate.parseExpr("counter=(n=n+1)+x*x*x+2*x*x");
+        Assert.assertTrue(registry.isPure("poly"));
+        Assert.assertTrue(registry.isPure("twice"));
+        Assert.assertFalse(registry.isPure("counter"));
+        // area太简单,不缓存
+        Assert.assertNull(registry.getMemoCache("area"));
+
+        Assert.assertEquals(new BigDecimal(46), evaluate.evaluate("twice(2)"));
+        Assert.assertEquals(new BigDecimal(76), evaluate.evaluate("poly(2)+twice(2)+poly(2)"));
+        ExprCache<BigDecimal> cache = registry.getMemoCache("poly");
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(3, cache.getHitCount());
+        Assert.assertEquals(1, registry.getMemoCache("twice").getHitCount());
+        log.info("memo:{}", registry.getMemoCaches());
+        Assert.assertNull(evaluate.getVar("poly"));
+
+        // 有副作用的函数每次都计算
+        evaluate.putVar("n", new BigDecimal(0));
+        evaluate.evaluate("counter(n,1)+counter(n,1)");
+        Assert.assertEquals(new BigDecimal(2), evaluate.getVar("n"));
+        Assert.assertTrue(registry.getMemoCaches().containsKey("poly"));
+        Assert.assertFalse(registry.getMemoCaches().containsKey("counter"));
+
+        // 重新定义后缓存失效
+        evaluate.parseExpr("poly=x*x*x+2*x*x-x+2");
+        Assert.assertEquals(new BigDecimal(49), evaluate.evaluate("twice(2)"));
+    }
+
+    @Test
+    public void test_metrics() {
+        EngineMetrics metrics = EngineMetrics.getInstance();
+        metrics.reset();
+        Evaluate evaluate = new Evaluate();
+        evaluate.putVar("a", new BigDecimal(2));
+        // 关闭时不记录
+        evaluate.evaluate("area(a,3)+1");
+        evaluate.evaluateBytecode("area(a,3)+1");
+        Assert.assertEquals(0, metrics.getEvalCount());
+        metrics.setEnabled(true);
+        try {
+            evaluate.evaluate("area(a,4)+1");
+            evaluate.evaluate(evaluate.compile("a*a"));
+            try {
+                evaluate.evaluate("a+nothing");
+            } catch (IllegalArgumentException e) {
+                log.info("{}", e.getMessage());
+            }
+            // 出错的计算只计入出错次数
+            Assert.assertEquals(2, metrics.getEvalCount());
+            Assert.assertEquals(3, metrics.getParseCount());
+            Assert.assertEquals(1, metrics.getLatency(EngineMetrics.Stage.COMPILE).getCount());
+            Assert.assertEquals(1, metrics.getErrorCount(EngineMetrics.Stage.EVAL));
+            Assert.assertEquals(1, metrics.getFunctionCalls());
+            // area(a,4)+1:(),+,area,a,4,1,函数体(a*b):(),*,a,b;编译的a*a:*,a,a
+            Assert.assertEquals(13, metrics.getNodesEvaluated());
+            Assert.assertEquals(5, metrics.getVarLookups());
+            Assert.assertTrue(metrics.getEvalP99Micros() >= metrics.getEvalP50Micros());
+            // 字节码按执行的指令计数:LOAD_VAR a,LOAD_VAR a,MUL
+            long nodes = metrics.getNodesEvaluated();
+            long lookups = metrics.getVarLookups();
+            evaluate.evaluateBytecode("a*a");
+            Assert.assertEquals(nodes + 3, metrics.getNodesEvaluated());
+            Assert.assertEquals(lookups + 2, metrics.getVarLookups());
+            log.info("{}", metrics);
+        } finally {
+            metrics.setEnabled(false);
+            metrics.reset();
+        }
+    }
+
+    @Test
+    public void test_tokenizer() {
+        Evaluate evaluate = new Evaluate();
+        evaluate.putVar("单价", new BigDecimal("2.5"));
+        evaluate.putVar("数量", new BigDecimal("4"));
+        Assert.assertEquals(new BigDecimal("10.0"), evaluate.evaluate("单价*数量"));
+        // 非ASCII的无效字符和空白一样跳过
+        Assert.assertEquals(new BigDecimal("3"), evaluate.evaluate("1　+ 2😀"));
+
+        StringBuilder sb = new StringBuilder();
+        while (sb.length() < 10 * 1024) {
+            sb.append("total=price*qty+fee/3-(a1+b_2)^2.5;\n");
+        }
+        String script = sb.toString();
+        ExprTokenizer tokenizer = new ExprTokenizer();
+        int size = tokenizer.tokenize(script);
+        Assert.assertEquals("total", tokenizer.text(0));
+        Assert.assertSame("=", tokenizer.text(1));
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(size, tokenizer.tokenize(script));
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+        log.info("token数:{},10次分配字节数:{}", size, allocated);
+        Assert.assertTrue("allocated=" + allocated, allocated < 4096);
+    }
+
+    @Test
+    public void test_scriptRunner() throws IOException {
+        Path path = Files.createTempFile("script", ".txt");
+        try {
+            Files.write(path, ("a=2; b=a*3,\n" +
+                    "  c=area(a,\n b)+1;\n" +
+                    "d=c/0; e=1+;\n" +
+                    "f=c-a").getBytes(StandardCharsets.UTF_8));
+            Evaluate evaluate = new Evaluate();
+            ScriptRunner.Summary summary = new ScriptRunner(evaluate).run(path);
+            log.info("summary:{}", summary);
+            Assert.assertEquals(6, summary.getStatementCount());
+            Assert.assertEquals(2, summary.getErrorCount());
+            Assert.assertEquals(new BigDecimal("11"), evaluate.getVar("f"));
+            Assert.assertEquals(new BigDecimal("11"), summary.getLastResult());
+            ScriptRunner.StatementError error = summary.getErrors().get(0);
+            Assert.assertEquals(4, error.getStatement().getLine());
+            Assert.assertEquals(1, error.getStatement().getColumn());
+            Assert.assertEquals(4, summary.getErrors().get(1).getStatement().getLine());
+            Assert.assertEquals(8, summary.getErrors().get(1).getStatement().getColumn());
+            // 出错位置是语句里不完整的+
+            Assert.assertEquals(4, summary.getErrors().get(1).getLine());
+            Assert.assertEquals(11, summary.getErrors().get(1).getColumn());
+        } finally {
+            Files.delete(path);
+        }
+
+        // 多行语句在第二行出错
+        Evaluate multiLine = new Evaluate();
+        ScriptRunner.Summary multiSummary = new ScriptRunner(multiLine).run(new StringReader("a=1;\n  b=a+\n    2*foo(a)+1;\nc=b"));
+        Assert.assertEquals(2, multiSummary.getErrorCount());
+        ScriptRunner.StatementError multiError = multiSummary.getErrors().get(0);
+        log.info("error:{}", multiError);
+        Assert.assertEquals(2, multiError.getStatement().getLine());
+        Assert.assertEquals(3, multiError.getStatement().getColumn());
+        Assert.assertEquals(3, multiError.getLine());
+        Assert.assertEquals(7, multiError.getColumn());
+
+        // 边生成边读的脚本,不会整体放进内存
+        int count = 2000;
+        Reader reader = new Reader() {
+            private final StringBuilder chunk = new StringBuilder();
+            private int index = 0;
+            private int offset = 0;
+
+            @Override
+            public int read(char[] buf, int off, int len) {
+                if (offset == chunk.length()) {
+                    if (index == count) return -1;
+                    chunk.setLength(0);
+                    chunk.append("s").append(index % 10).append("=s").append(index % 10).append("+").append(index).append(";\n");
+                    index++;
+                    offset = 0;
+                }
+                int n = Math.min(len, chunk.length() - offset);
+                chunk.getChars(offset, offset + n, buf, off);
+                offset += n;
+                return n;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        ExprRegistry registry = new ExprRegistry();
+        int exprCount = registry.getExprs().size();
+        Evaluate evaluate = registry.newEvaluate();
+        for (int i = 0; i < 10; i++) {
+            evaluate.putVar("s" + i, BigDecimal.ZERO);
+        }
+        ScriptRunner.Summary summary = new ScriptRunner(evaluate).run(reader);
+        Assert.assertEquals(count, summary.getStatementCount());
+        Assert.assertEquals(0, summary.getErrorCount());
+        // s0=0+10+20+...+1990
+        Assert.assertEquals(new BigDecimal("199000"), evaluate.getVar("s0"));
+
+        // 大量不同变量的赋值只写入变量,不在registry里定义函数
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            script.append("v").append(i).append("=").append(i).append("+1;");
+        }
+        summary = new ScriptRunner(evaluate).run(new StringReader(script.toString()));
+        Assert.assertEquals(0, summary.getErrorCount());
+        Assert.assertEquals(new BigDecimal(count), evaluate.getVar("v" + (count - 1)));
+        Assert.assertEquals(exprCount, registry.getExprs().size());
+    }
+
+    @Test
+    public void test_deep() throws Exception {
+        // 在很小的线程栈上运行,递归实现会栈溢出
+        Throwable[] error = new Throwable[1];
+        Thread thread = new Thread(null, () -> {
+            try {
+                checkDeep(20000);
+            } catch (Throwable e) {
+                error[0] = e;
+            }
+        }, "deep", 256 * 1024);
+        thread.start();
+        thread.join();
+        if (error[0] != null) {
+            throw new AssertionError("深层表达式计算出错", error[0]);
+        }
+    }
+
+    private void checkDeep(int n) throws IOException {
+        // a0+a1+...,左结合的树深度是n
+        StringBuilder chain = new StringBuilder("a0");
+        for (int i = 1; i < n; i++) {
+            chain.append("+a").append(i % 10);
+        }
+        // ((a0+1)*1+1)*1...,括号嵌套n层
+        StringBuilder nested = new StringBuilder();
+        for (int i = 0; i < n; i++) nested.append('(');
+        nested.append("a0");
+        for (int i = 0; i < n; i++) nested.append(i % 2 == 0 ? "+1)" : "*1)");
+        Evaluate evaluate1 = new Evaluate();
+        Evaluate evaluate2 = new Evaluate();
+        evaluate2.setLegacyParser(true);
+        for (Evaluate evaluate : Arrays.asList(evaluate1, evaluate2)) {
+            for (int i = 0; i < 10; i++) {
+                evaluate.putVar("a" + i, BigDecimal.ONE);
+            }
+        }
+        BigDecimal chainResult = new BigDecimal(n);
+        BigDecimal nestedResult = new BigDecimal(1 + n / 2);
+        for (Evaluate evaluate : Arrays.asList(evaluate1, evaluate2)) {
+            Assert.assertEquals(chainResult, evaluate.evaluate(chain.toString()));
+            Assert.assertEquals(nestedResult, evaluate.evaluate(nested.toString()));
+        }
+        Assert.assertEquals(chainResult, evaluate1.evaluateBytecode(chain.toString()));
+        Assert.assertEquals(nestedResult, evaluate1.evaluateBytecode(nested.toString()));
+        Assert.assertEquals(evaluate1.exprToStr(evaluate1.parseExpr(chain.toString())),
+                evaluate2.exprToStr(evaluate2.parseExpr(chain.toString())));
+
+        Evaluate.Expr expr = evaluate1.parseExpr(nested.toString());
+        Evaluate.Expr loaded = ExprSerializer.fromBytes(ExprSerializer.toBytes(expr));
+        Assert.assertEquals(evaluate1.exprToStr(expr), evaluate1.exprToStr(loaded));
+        Assert.assertEquals(nestedResult, evaluate1.evaluate(loaded));
+
+        // 递归函数的调用层数也不受线程栈限制
+        evaluate1.parseExpr("sumTo=k<=0 ? 0 : k+sumTo(k-1)");
+        Assert.assertEquals(new BigDecimal((long) n * (n + 1) / 2), evaluate1.evaluate("sumTo(" + n + ")"));
+        Assert.assertEquals(new BigDecimal((long) n * (n + 1) / 2), evaluate1.evaluateBytecode("sumTo(" + (n - 1) + ")+" + n));
+
+        // 编译成MethodHandle的各种模式:编译、公共子表达式消除和计算都不受线程栈限制
+        StringBuilder inlined = new StringBuilder();
+        for (int i = 0; i < n; i++) inlined.append("inc(");
+        inlined.append("a0");
+        for (int i = 0; i < n; i++) inlined.append(')');
+        Evaluate evaluate3 = new Evaluate(evaluate1.getRegistry(), Evaluate.NumberMode.DOUBLE);
+        Evaluate evaluate4 = new ExprRegistry(2, RoundingMode.HALF_UP).newEvaluate(Evaluate.NumberMode.FIXED);
+        for (Evaluate evaluate : Arrays.asList(evaluate3, evaluate4)) {
+            for (int i = 0; i < 10; i++) {
+                evaluate.putVar("a" + i, BigDecimal.ONE);
+            }
+        }
+        evaluate1.parseExpr("inc=x+1");
+        evaluate4.parseExpr("inc=x+1");
+        String deepCse = "(" + nested + ")*(a1+a2)+(" + nested + ")*(a1+a2)";
+        BigDecimal deepCseResult = nestedResult.multiply(new BigDecimal(4));
+        for (Evaluate evaluate : Arrays.asList(evaluate1, evaluate3, evaluate4)) {
+            String mode = evaluate.getNumberMode().name();
+            CompiledExpr compiled = evaluate.compile(chain.toString());
+            Assert.assertEquals(mode, 0, chainResult.compareTo(evaluate.evaluate(compiled)));
+            Assert.assertEquals(mode, 0, nestedResult.compareTo(evaluate.evaluate(evaluate.compile(nested.toString()))));
+            Assert.assertEquals(mode, 0, deepCseResult.compareTo(evaluate.evaluate(evaluate.compile(deepCse))));
+            Assert.assertEquals(mode, 0, new BigDecimal(n + 1).compareTo(evaluate.evaluate(evaluate.compile(inlined.toString()))));
+            Assert.assertEquals(mode, 2 * n - 1, compiled.getNodeCount());
+            Assert.assertTrue(mode, compiled.toString().endsWith("+a9@9)"));
+        }
+        Assert.assertTrue(evaluate1.compile(deepCse).getRemovedNodes() > n);
+
+        // 响应式的赋值链:检查循环依赖和重新计算的顺序都不受线程栈限制
+        Evaluate reactive = new Evaluate();
+        reactive.setReactive(true);
+        reactive.putVar("r0", BigDecimal.ZERO);
+        int m = n / 4;
+        for (int i = 1; i <= m; i++) {
+            reactive.evaluate(reactive.parseExpr("r" + i + "=r" + (i - 1) + "+1", false));
+        }
+        Assert.assertEquals(m, reactive.getRecalculateOrder("r0").size());
+        reactive.putVar("r0", BigDecimal.ONE);
+        Assert.assertEquals(new BigDecimal(m + 1), reactive.getVar("r" + m));
+        try {
+            reactive.evaluate(reactive.parseExpr("r0=r" + m + "*2", false));
+            Assert.fail("没有检查出循环依赖");
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage().startsWith("循环依赖:r0->r" + m + "->"));
+        }
+    }
+
+    @Test
+    public void test_serialize() throws IOException {
+        ExprRegistry registry = new ExprRegistry();
+        Evaluate evaluate = registry.newEvaluate();
+        evaluate.parseExpr("tax=price*0.13-0.005");
+        evaluate.parseExpr("total=(price+tax(price))*qty");
+        for (String exprText : Arrays.asList("total(12.5,3)/pi", "x=2*pi*r+-(-a)*1+0", "y=1;z=y^2-01.50")) {
+            for (Evaluate.Expr expr : Arrays.asList(evaluate.parseExpr(exprText), evaluate.parseExprCached(exprText))) {
+                Evaluate.Expr loaded = ExprSerializer.fromBytes(ExprSerializer.toBytes(expr));
+                Assert.assertEquals(expr, loaded);
+                Assert.assertEquals(expr.getChildren(), loaded.getChildren());
+                Assert.assertEquals(Evaluate.printNodes(expr, exprText), Evaluate.printNodes(loaded, exprText));
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        registry.exportExprs(out);
+        log.info("函数库:{},字节数:{}", registry.getExprs().keySet(), out.size());
+        ExprRegistry registry2 = new ExprRegistry();
+        Assert.assertEquals(registry.getExprs().size(), registry2.importExprs(new ByteArrayInputStream(out.toByteArray())));
+        Assert.assertEquals(registry.getExprs().keySet(), registry2.getExprs().keySet());
+        Evaluate evaluate2 = registry2.newEvaluate();
+        Assert.assertEquals(evaluate.evaluate("total(12.5,3)"), evaluate2.evaluate("total(12.5,3)"));
+        Assert.assertEquals(evaluate.evaluate("tax(100)"), evaluate2.evaluate("tax(100)"));
+
+        byte[] bytes = ExprSerializer.toBytes(evaluate.parseExpr("1+2"));
+        bytes[4] = 9;
+        try {
+            ExprSerializer.fromBytes(bytes);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            log.info("{}", e.getMessage());
+        }
+    }
 }
@@ -2,6 +2,7 @@ package cn.zouyijiang.algorithems;
 
 import cn.zouyijiang.algorithems.book.chapter1.GrammarAnalysis;
 import cn.zouyijiang.algorithems.book.chapter1.LexicalAnalysis;
+import cn.zouyijiang.algorithems.book.chapter1.LexicalDfa;
 import cn.zouyijiang.algorithems.book.chapter1.TokenType;
 import cn.zouyijiang.algorithems.book.chapter1.Word;
 import lombok.extern.slf4j.Slf4j;
@@ -12,14 +13,24 @@ import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
 import java.util.Arrays;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 @Slf4j
 @RunWith(JUnit4.class)
 public class Test3_LexicalAnalysis {
 
+    private static final String TEXT = "max  (0712+ max (1.1, d),Math.abs(b))+ pow(x,0xABc)+0+0b1_01*0x3Ffa+01234567+1-1.2/0.1+\"+a+\";\n" +
+            " a+\"k\"+c;\n" +
+            " \"kk\"-k /* kdfdk /* kdfdk */ +8888 +9999;\n" +
+            " \"k1\"+\"k2\\\"k3\\\"\";\n" +
+            " max(a,b)+ /*min(c,d);*/ min(c2,d2);\n" +
+            " \t  \t a+2-4; // max(a,b)+ /*min(c,d);*/ min(c2,d2);\n";
+
     private LexicalAnalysis lexicalAnalysis;
 
     @Before
@@ -30,12 +41,7 @@ public class Test3_LexicalAnalysis {
 
     @Test
     public void test() {
-        String text = "max  (0712+ max (1.1, d),Math.abs(b))+ pow(x,0xABc)+0+0b1_01*0x3Ffa+01234567+1-1.2/0.1+\"+a+\";\n" +
-                " a+\"k\"+c;\n" +
-                " \"kk\"-k /* kdfdk /* kdfdk */ +8888 +9999;\n" +
-                " \"k1\"+\"k2\\\"k3\\\"\";\n" +
-                " max(a,b)+ /*min(c,d);*/ min(c2,d2);\n" +
-                " \t  \t a+2-4; // max(a,b)+ /*min(c,d);*/ min(c2,d2);\n";
+        String text = TEXT;
 
         lexicalAnalysis.handle(text);
         List<Word> words = lexicalAnalysis.getWords();
@@ -53,4 +59,100 @@ public class Test3_LexicalAnalysis {
         log.info("");
     }
 
+    @Test
+    public void test_dfa() {
+        // DFA按最长匹配切分,和按顺序逐个正则匹配的结果一致
+        String text = TEXT + " 0_17+0b1__x+.5/*/ a **/ /***/ \"a\\\"b\\\\\" / * 0x_1 $v_2 // end */\n";
+        lexicalAnalysis.handle(text);
+        LexicalAnalysis regexAnalysis = new LexicalAnalysis();
+        regexAnalysis.setRegexMatch(true);
+        regexAnalysis.handle(text);
+        Assert.assertEquals(regexAnalysis.getWords(), lexicalAnalysis.getWords());
+        Assert.assertEquals(text, Word.joinWords(lexicalAnalysis.getWords()));
+
+        LexicalDfa dfa = new LexicalDfa(Arrays.asList(
+                new LexicalAnalysis.LexicalPattern(TokenType.VARIABLE, "[a-z]+"),
+                new LexicalAnalysis.LexicalPattern(TokenType.SIGN, "[a-z]+|=")));
+        Assert.assertEquals(new Word(TokenType.VARIABLE.getCode(), "ab", 1, 3), dfa.match("=ab=", 1, 4));
+        Assert.assertNull(dfa.match("=ab=", 1, 1));
+        try {
+            new LexicalDfa(Arrays.asList(new LexicalAnalysis.LexicalPattern(TokenType.NOTE_SINGLE, "//.*(?=\r?\n)")));
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().startsWith("不支持的正则:"));
+        }
+    }
+
+    // 改写成DFA之前的词素规则,带非贪婪量词和环视
+    private static final List<LexicalAnalysis.LexicalPattern> ORIGINAL_PATTERNS = Arrays.asList(
+            new LexicalAnalysis.LexicalPattern(TokenType.NEXT_LINE, "\r?\n"),
+            new LexicalAnalysis.LexicalPattern(TokenType.BLANK, "\\s+"),
+            new LexicalAnalysis.LexicalPattern(TokenType.STRING, "\"(\\\\\"|[^\"])*?\""),
+            new LexicalAnalysis.LexicalPattern(TokenType.NOTE_SINGLE, "//.*(?=\r?\n)"),
+            new LexicalAnalysis.LexicalPattern(TokenType.NOTE_INLINE, "/\\*([^*]|\\*(?!/))*\\*/"),
+            new LexicalAnalysis.LexicalPattern(TokenType.VARIABLE, "[a-zA-Z_$][\\w$]*"),
+            new LexicalAnalysis.LexicalPattern(TokenType.SIGN, "[,;\\.\\(\\)<>\\+\\-\\*/\\^%=!\\?:]"),
+            new LexicalAnalysis.LexicalPattern(TokenType.DECIMAL_RADIX2, "0[bB][01](_*[01])*"),
+            new LexicalAnalysis.LexicalPattern(TokenType.DECIMAL_RADIX16, "0[xX][0-9a-fA-F](_*[0-9a-fA-F])*"),
+            new LexicalAnalysis.LexicalPattern(TokenType.DECIMAL_RADIX8, "0(_[0-7])+"),
+            new LexicalAnalysis.LexicalPattern(TokenType.DECIMAL_RADIX10, "\\d+(\\.\\d+)?"));
+
+    /**
+     * 按原来的方式切分:每行从当前位置开始按顺序逐个正则查找,第一个从当前位置匹配上的就是词素
+     *
+     * @return 切分出的词素,找不到有效的词素时返回null
+     */
+    private static List<Word> originalWords(String text) {
+        List<Word> words = new LinkedList<>();
+        Matcher lineMatcher = Pattern.compile(".*\n").matcher(text);
+        while (lineMatcher.find()) {
+            String lineText = lineMatcher.group();
+            int offset = 0;
+            while (offset < lineText.length()) {
+                String rest = lineText.substring(offset);
+                Word word = null;
+                for (LexicalAnalysis.LexicalPattern ptn : ORIGINAL_PATTERNS) {
+                    Matcher m = ptn.getRegexPtn().matcher(rest);
+                    if (m.find() && m.start() == 0) {
+                        word = new Word(ptn.getTypeId(), m.group(), offset, m.end() + offset);
+                        break;
+                    }
+                }
+                if (word == null) return null;
+                words.add(word);
+                offset = word.getEnd();
+            }
+        }
+        return words;
+    }
+
+    @Test
+    public void test_dfaOriginal() {
+        // DFA和改写前的非贪婪、环视正则切分结果一致,包括找不到词素的情况
+        List<String> texts = Arrays.asList(
+                TEXT,
+                "\"a\\\"b\"+\"\\\"\"+\"\\\"\\\"\";\n",
+                "\"a\\\\\";\n",
+                "\"a\\\\\" + \"b\";\n",
+                "\"abc\\\"\n",
+                "\"abc\\\" + x\n",
+                "\"abc\n",
+                "/***/ /**/ /* a **/ /*/ b */ /* * / */a;\n",
+                "/*** c ***/+/* d *\n",
+                "a//b /* c */\n x // \"d\"\r\n y;\n",
+                "0b1__0+0x_1+0_17+00+1.2.3+.5;\n");
+        for (String text : texts) {
+            List<Word> expected = originalWords(text);
+            LexicalAnalysis analysis = new LexicalAnalysis();
+            List<Word> words;
+            try {
+                analysis.handle(text);
+                words = analysis.getWords();
+            } catch (IllegalArgumentException e) {
+                words = null;
+            }
+            Assert.assertEquals(text, expected, words);
+        }
+    }
+
 }
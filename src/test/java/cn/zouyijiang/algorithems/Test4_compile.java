@@ -0,0 +1,643 @@
+package cn.zouyijiang.algorithems;
+
+import cn.zouyijiang.algorithems.book.chapter1.CompiledExpr;
+import cn.zouyijiang.algorithems.book.chapter1.Evaluate;
+import cn.zouyijiang.algorithems.book.chapter1.ExprBytecode;
+import cn.zouyijiang.algorithems.book.chapter1.ExprRegistry;
+import cn.zouyijiang.algorithems.book.chapter1.FormulaSet;
+import cn.zouyijiang.algorithems.book.chapter1.NativeFunction;
+import cn.zouyijiang.algorithems.book.chapter1.ParallelEvaluator;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+@Slf4j
+@RunWith(JUnit4.class)
+public class Test4_compile {
+
+    private static final List<String> exprTexts = Arrays.asList(
+            "(2-1)*3+(4*(6-1)*7-(9)+8)",
+            "1.2 * (44.5 - a)*b",
+            "6*pi*pi",
+            "2*-11--9",
+            "2*-a--9",
+            "-11^a",
+            "5*-11^a",
+            "1/3+b/7",
+            "y=x=a-1/2",
+            "area(a,b)*pi-area(2,4+(2-1))"
+    );
+
+    private Evaluate newEvaluate() {
+        Evaluate evaluate = new Evaluate();
+        evaluate.putVar("a", new BigDecimal("2"));
+        evaluate.putVar("b", new BigDecimal("12.34"));
+        return evaluate;
+    }
+
+    @Test
+    public void test() {
+        Evaluate evaluate1 = newEvaluate();
+        Evaluate evaluate2 = newEvaluate();
+        for (String exprText : exprTexts) {
+            BigDecimal expected = evaluate1.evaluate(exprText);
+            CompiledExpr compiled = evaluate2.compile(exprText);
+            BigDecimal result = evaluate2.evaluate(compiled);
+            log.info("{}={},{}", exprText, expected, result);
+            Assert.assertEquals(exprText, expected, result);
+        }
+        Assert.assertEquals(evaluate1.getVars(), evaluate2.getVars());
+        Assert.assertSame(evaluate2.compile("6*pi*pi"), evaluate2.compile("6 * pi * pi"));
+    }
+
+    @Test
+    public void test_frame() {
+        Evaluate evaluate = newEvaluate();
+        CompiledExpr compiled = evaluate.compile("z=area(a,b)+c");
+        BigDecimal[] frame = compiled.newFrame();
+        frame[compiled.slotOf("a")] = new BigDecimal(3);
+        frame[compiled.slotOf("b")] = new BigDecimal(4);
+        frame[compiled.slotOf("c")] = new BigDecimal(5);
+        Assert.assertEquals(new BigDecimal(17), compiled.eval(frame));
+        Assert.assertEquals(new BigDecimal(17), frame[compiled.slotOf("z")]);
+        Assert.assertEquals(Arrays.asList("z", "a", "b", "c"), compiled.getVarNames());
+        Assert.assertTrue(compiled.getFuncNames().contains("area"));
+    }
+
+    @Test
+    public void test_double() {
+        Evaluate evaluate1 = newEvaluate();
+        Evaluate evaluate2 = new Evaluate(Evaluate.NumberMode.DOUBLE);
+        evaluate2.putVar("a", new BigDecimal("2"));
+        evaluate2.putVar("b", new BigDecimal("12.34"));
+        for (String exprText : exprTexts) {
+            double expected = evaluate1.evaluate(exprText).doubleValue();
+            double result = evaluate2.evaluateDouble(exprText);
+            log.info("{}={},{}", exprText, expected, result);
+            Assert.assertEquals(exprText, expected, result, Math.abs(expected) * 1e-12);
+            Assert.assertEquals(result, evaluate2.evaluate(exprText).doubleValue(), 0);
+        }
+        Assert.assertEquals(1.5, evaluate2.getVar("y").doubleValue(), 0);
+
+        CompiledExpr compiled = evaluate1.compile("area(a,b)/c");
+        double[] frame = compiled.newDoubleFrame();
+        frame[compiled.slotOf("a")] = 3;
+        frame[compiled.slotOf("b")] = 4;
+        frame[compiled.slotOf("c")] = 0;
+        Assert.assertEquals(Double.POSITIVE_INFINITY, compiled.evalDouble(frame), 0);
+        frame[compiled.slotOf("c")] = 8;
+        Assert.assertEquals(1.5, compiled.evalDouble(frame), 0);
+
+        // 除以0和溢出:evaluateDouble返回Infinity/NaN,转成BigDecimal时抛出ArithmeticException
+        Assert.assertEquals(Double.POSITIVE_INFINITY, evaluate2.evaluateDouble("1/0"), 0);
+        Assert.assertTrue(Double.isNaN(evaluate2.evaluateDouble("0/0")));
+        Assert.assertEquals(Double.POSITIVE_INFINITY, evaluate2.evaluateDouble("2^1024"), 0);
+        for (String exprText : Arrays.asList("1/0", "0/0", "2^1024", "b*10^308*10", "z=1/0")) {
+            try {
+                evaluate2.evaluate(exprText);
+                Assert.fail(exprText);
+            } catch (ArithmeticException e) {
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("不是有限的数"));
+            }
+        }
+        Assert.assertNull(evaluate2.getVar("z"));
+    }
+
+    @Test
+    public void test_batch() {
+        Evaluate evaluate = newEvaluate();
+        CompiledExpr compiled = evaluate.compile("t=area(a,b)*pi-c,t/2+b");
+        int n = 1000;
+        double[] a = new double[n], c = new double[n];
+        BigDecimal[] a2 = new BigDecimal[n], c2 = new BigDecimal[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = i * 0.5;
+            c[i] = n - i;
+            a2[i] = BigDecimal.valueOf(a[i]);
+            c2[i] = BigDecimal.valueOf(c[i]);
+        }
+        Map<String, double[]> columns = new HashMap<>();
+        columns.put("a", a);
+        columns.put("c", c);
+        columns.put("unused", new double[0]);
+        double[] out = new double[n];
+        evaluate.evaluateBatchDouble(compiled, columns, out);
+
+        Map<String, BigDecimal[]> columns2 = new HashMap<>();
+        columns2.put("a", a2);
+        columns2.put("c", c2);
+        BigDecimal[] out2 = new BigDecimal[n];
+        evaluate.evaluateBatch(compiled, columns2, out2);
+
+        Evaluate evaluate2 = newEvaluate();
+        for (int i = 0; i < n; i += 97) {
+            evaluate2.putVar("a", a2[i]);
+            evaluate2.putVar("c", c2[i]);
+            BigDecimal expected = evaluate2.evaluate("t=area(a,b)*pi-c,t/2+b");
+            Assert.assertEquals(expected, out2[i]);
+            Assert.assertEquals(expected.doubleValue(), out[i], 1e-9);
+        }
+        // 赋值不写回变量表
+        Assert.assertNull(evaluate.getVar("t"));
+    }
+
+    @Test
+    public void test_parallel() {
+        Evaluate evaluate = newEvaluate();
+        CompiledExpr compiled = evaluate.compile("t=area(a,b)*pi-c,t/2+b^2");
+        int n = 1 << 20;
+        double[] a = new double[n], c = new double[n];
+        for (int i = 0; i < n; i++) {
+            a[i] = i * 0.5;
+            c[i] = n - i;
+        }
+        Map<String, double[]> columns = new HashMap<>();
+        columns.put("a", a);
+        columns.put("c", c);
+        double[] expected = new double[n];
+        long t0 = System.nanoTime();
+        evaluate.evaluateBatchDouble(compiled, columns, expected);
+        long t1 = System.nanoTime();
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        try (ParallelEvaluator parallelEvaluator = new ParallelEvaluator(evaluate, parallelism, 8192)) {
+            double[] out = new double[n];
+            parallelEvaluator.evaluateBatchDouble(compiled, columns, out);
+            long t2 = System.nanoTime();
+            log.info("rows:{},serial:{}ms,parallel({}):{}ms", n, (t1 - t0) / 1000000, parallelism, (t2 - t1) / 1000000);
+            Assert.assertArrayEquals(expected, out, 0);
+
+            int n2 = 5000;
+            BigDecimal[] a2 = new BigDecimal[n2], c2 = new BigDecimal[n2];
+            for (int i = 0; i < n2; i++) {
+                a2[i] = BigDecimal.valueOf(a[i]);
+                c2[i] = BigDecimal.valueOf(c[i]);
+            }
+            Map<String, BigDecimal[]> columns2 = new HashMap<>();
+            columns2.put("a", a2);
+            columns2.put("c", c2);
+            BigDecimal[] expected2 = new BigDecimal[n2], out2 = new BigDecimal[n2];
+            evaluate.evaluateBatch(compiled, columns2, expected2);
+            parallelEvaluator.evaluateBatch(compiled, columns2, out2);
+            Assert.assertArrayEquals(expected2, out2);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_batch_missingColumn() {
+        Evaluate evaluate = newEvaluate();
+        evaluate.evaluateBatchDouble(evaluate.compile("a+c"), new HashMap<>(), new double[10]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void test_missingVar() {
+        Evaluate evaluate = newEvaluate();
+        CompiledExpr compiled = evaluate.compile("a+c");
+        compiled.eval(compiled.newFrame());
+    }
+
+    // 粗略对比,准确的数据见jmh
+    @Test
+    public void test_speed() {
+        Evaluate evaluate = newEvaluate();
+        String exprText = "area(a,b)*pi-(a-b)*(a+b)/3+a^2";
+        Evaluate.Expr expr = evaluate.parseExprCached(exprText);
+        CompiledExpr compiled = evaluate.compile(exprText);
+        Map<String, BigDecimal> vars = evaluate.getVars();
+        BigDecimal[] frame = compiled.newFrame(vars);
+        int n = 20000;
+        BigDecimal r1 = null, r2 = null;
+        long t0 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            r1 = evaluate.calculate(expr, vars);
+        }
+        long t1 = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            r2 = compiled.eval(frame);
+        }
+        long t2 = System.nanoTime();
+        log.info("calculate:{}ns/op,compiled:{}ns/op", (t1 - t0) / n, (t2 - t1) / n);
+        Assert.assertEquals(r1, r2);
+    }
+
+    @Test
+    public void test_optimize() {
+        Evaluate evaluate = newEvaluate();
+        evaluate.getRegistry().setImmutableConstants(true);
+        Evaluate.Expr expr = evaluate.parseExprCached("2*pi*r+-(-a)*1+0");
+        // 2*pi折叠成一个数字,-(-a)、*1、+0化简掉
+        Assert.assertEquals(10, expr.getRemovedNodes());
+        Assert.assertEquals(Arrays.asList("r", "a"), expr.getArgNames());
+
+        CompiledExpr compiled = evaluate.compile("(a-b)*(a-b)+(a-b)*(a-b)");
+        // (a-b)*(a-b)只算一次,里面的(a-b)也只算一次
+        Assert.assertEquals(8, compiled.getRemovedNodes());
+        Evaluate evaluate2 = newEvaluate();
+        evaluate2.getRegistry().setOptimize(false);
+        for (String exprText : exprTexts) {
+            Assert.assertEquals(exprText, evaluate2.evaluate(exprText), evaluate.evaluate(exprText));
+            Assert.assertEquals(exprText, evaluate2.evaluate(exprText), evaluate.evaluate(evaluate.compile(exprText)));
+        }
+        for (String exprText : Arrays.asList("(a-b)*(a-b)+(a-b)*(a-b)", "x=(a-b),(a-b)*(x=a)-(a-b)", "area(a-b,a-b)*(a-b)")) {
+            Assert.assertEquals(exprText, evaluate2.evaluate(exprText), evaluate.evaluate(evaluate.compile(exprText)));
+        }
+        // 常量不是函数参数
+        evaluate.parseExpr("circle=r*r*pi");
+        Assert.assertEquals(new BigDecimal(Math.PI).multiply(new BigDecimal(4)), evaluate.evaluate("circle(2)"));
+
+        // DOUBLE模式下折叠和不折叠的结果一样,0.1+0.2按double计算不是0.3
+        Evaluate optimized = new ExprRegistry().newEvaluate(Evaluate.NumberMode.DOUBLE);
+        ExprRegistry plainRegistry = new ExprRegistry();
+        plainRegistry.setOptimize(false);
+        Evaluate plain = plainRegistry.newEvaluate(Evaluate.NumberMode.DOUBLE);
+        for (String exprText : Arrays.asList("0.1+0.2", "x=0.1,x+0.2", "0.1+0.2==0.3 ? 1 : 2", "sqrt(2)*sqrt(2)", "1/3*3", "0.1*3-0.3")) {
+            Assert.assertEquals(exprText, plain.evaluate(exprText), optimized.evaluate(exprText));
+        }
+        Assert.assertEquals(optimized.evaluate("x=0.1,x+0.2"), optimized.evaluate("0.1+0.2"));
+        Assert.assertEquals(0, optimized.parseExprCached("0.1+0.2").getRemovedNodes());
+        Assert.assertEquals(2, optimized.parseExprCached("0.5+0.25").getRemovedNodes());
+    }
+
+    @Test
+    public void test_constant() {
+        // 默认和普通变量一样可以修改,也是函数参数
+        Evaluate evaluate = newEvaluate();
+        Assert.assertEquals(new BigDecimal("3"), evaluate.evaluate("e=2,e+1"));
+        evaluate.putVar("pi", new BigDecimal("3"));
+        Assert.assertEquals(new BigDecimal("12"), evaluate.evaluate(evaluate.compile("r=2,r*r*pi")));
+        Assert.assertEquals(Arrays.asList("r", "pi"), evaluate.parseExpr("circle=r*r*pi").getArgNames());
+        Assert.assertEquals(0, evaluate.parseExprCached("2*pi").getRemovedNodes());
+
+        // 设置为不可修改后赋值报错,优化时替换成数字
+        evaluate.getRegistry().setImmutableConstants(true);
+        assertThrows(() -> evaluate.evaluate("pi=3"), "常量不能修改");
+        assertThrows(() -> evaluate.putVar("e", BigDecimal.ONE), "常量不能修改");
+        Assert.assertEquals(2, evaluate.parseExprCached("2*pi").getRemovedNodes());
+    }
+
+    @Test
+    public void test_fixed() {
+        List<String> fixedExprTexts = Arrays.asList(
+                "price*qty-discount/3",
+                "-(price*qty)/7+fee",
+                "total=price*qty+fee*2",
+                "(fee-price)/qty/3",
+                "area(price,qty)/-discount");
+        for (RoundingMode roundingMode : RoundingMode.values()) {
+            if (roundingMode == RoundingMode.UNNECESSARY) continue;
+            ExprRegistry registry = new ExprRegistry(4, roundingMode);
+            Evaluate decimal = registry.newEvaluate();
+            Evaluate fixed = registry.newEvaluate(Evaluate.NumberMode.FIXED);
+            for (Evaluate evaluate : Arrays.asList(decimal, fixed)) {
+                evaluate.putVar("price", new BigDecimal("19.99"));
+                evaluate.putVar("qty", new BigDecimal("-7"));
+                evaluate.putVar("discount", new BigDecimal("2.5"));
+                evaluate.putVar("fee", new BigDecimal("0.0101"));
+            }
+            for (String exprText : fixedExprTexts) {
+                BigDecimal expected = decimal.evaluate(exprText).setScale(4, roundingMode);
+                Assert.assertEquals(roundingMode + ":" + exprText, expected, fixed.evaluate(exprText));
+            }
+            Assert.assertEquals(decimal.getVar("total").setScale(4, roundingMode), fixed.getVar("total"));
+        }
+    }
+
+    @Test
+    public void test_fixedOverflow() {
+        ExprRegistry registry = new ExprRegistry(2, RoundingMode.HALF_UP);
+        Evaluate evaluate = registry.newEvaluate(Evaluate.NumberMode.FIXED);
+        evaluate.putVar("a", new BigDecimal("1000000000000"));
+        evaluate.putVar("b", new BigDecimal("1000000"));
+        Assert.assertEquals(new BigDecimal("1000000000000000001.00"), evaluate.evaluate("c=a*b+1"));
+        Assert.assertEquals(new BigDecimal("1000000000000000001.00"), evaluate.getVar("c"));
+        // 乘法结果按scale舍入,溢出后用BigDecimal计算的结果不变
+        evaluate.putVar("x", new BigDecimal("0.15"));
+        evaluate.putVar("y", new BigDecimal("0.5"));
+        evaluate.putVar("z", new BigDecimal("10"));
+        evaluate.putVar("big", new BigDecimal("1e17"));
+        Assert.assertEquals(new BigDecimal("0.80"), evaluate.evaluate("x*y*z"));
+        Assert.assertEquals(new BigDecimal("0.80"), evaluate.evaluate("x*y*z+big-big"));
+        Assert.assertEquals(new BigDecimal("0.750"), registry.newEvaluate().evaluate("0.15*0.5*10"));
+
+        // 负数开方不是溢出,改用BigDecimal计算后同样报错
+        Evaluate fixed4 = new ExprRegistry(4, RoundingMode.HALF_UP).newEvaluate(Evaluate.NumberMode.FIXED);
+        try {
+            fixed4.evaluate("x=0-1,x^0.5");
+            Assert.fail("负数开方没有抛出异常");
+        } catch (ArithmeticException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("计算结果不是有限的数"));
+        }
+        // 只指定FIXED模式时使用默认的scale
+        Evaluate defaultFixed = new Evaluate(Evaluate.NumberMode.FIXED);
+        Assert.assertEquals(Evaluate.DEFAULT_FIXED_SCALE, defaultFixed.getRegistry().getScale());
+        Assert.assertEquals(new BigDecimal("0.333333"), defaultFixed.evaluate("1/3"));
+    }
+
+    @Test
+    public void test_fixedOptimize() {
+        List<String> fixedExprTexts = Arrays.asList(
+                "0.15*0.15*100",
+                "0.125+x",
+                "1/3*3",
+                "2^0.5*100",
+                "0.001>0?1:2",
+                "abs(0.005)*100",
+                "pi*100");
+        ExprRegistry registry = new ExprRegistry(2, RoundingMode.HALF_UP);
+        ExprRegistry registry2 = new ExprRegistry(2, RoundingMode.HALF_UP);
+        registry2.setOptimize(false);
+        Evaluate fixed = registry.newEvaluate(Evaluate.NumberMode.FIXED);
+        Evaluate fixed2 = registry2.newEvaluate(Evaluate.NumberMode.FIXED);
+        for (Evaluate evaluate : Arrays.asList(fixed, fixed2)) {
+            evaluate.putVar("x", new BigDecimal("0.15"));
+        }
+        // 常量折叠不能改变定点数的结果:0.15*0.15按scale舍入是0.02
+        Assert.assertEquals(new BigDecimal("2.00"), fixed.evaluate("x*x*100"));
+        for (String exprText : fixedExprTexts) {
+            Assert.assertEquals(exprText, fixed2.evaluate(exprText), fixed.evaluate(exprText));
+            Assert.assertEquals(exprText, fixed2.evaluate(exprText), fixed.evaluateFixed(fixed.compile(exprText)));
+        }
+        Assert.assertEquals(new BigDecimal("2.00"), fixed.evaluate("0.15*0.15*100"));
+        // 不需要舍入的运算照样折叠
+        Assert.assertEquals(2, fixed.parseExprCached("0.5*4+x").getRemovedNodes());
+    }
+
+    @Test
+    public void test_bytecode() {
+        Evaluate evaluate1 = newEvaluate();
+        Evaluate evaluate2 = newEvaluate();
+        for (String exprText : exprTexts) {
+            BigDecimal expected = evaluate1.evaluate(exprText);
+            BigDecimal result = evaluate2.evaluateBytecode(exprText);
+            Assert.assertEquals(exprText, expected, result);
+        }
+        Assert.assertEquals(evaluate1.getVars(), evaluate2.getVars());
+        ExprBytecode code = evaluate2.compileBytecode("area(a,b)*pi-area(2,4+(2-1))");
+        log.info("字节码:\n{}", code);
+        Assert.assertSame(code, evaluate2.compileBytecode("area(a, b) * pi - area(2, 4 + (2 - 1))"));
+
+        // 函数调用不内联,重新定义后不用重新生成字节码
+        Evaluate evaluate = newEvaluate();
+        evaluate.parseExpr("sq=x*x");
+        evaluate.parseExpr("sumsq=n-n+sq(n)+(n-1)*0+(n-1)^0*0");
+        ExprBytecode sumCode = evaluate.compileBytecode("sumsq(3)+sq(a)");
+        Assert.assertEquals(new BigDecimal("13.0"), evaluate.evaluate(sumCode).setScale(1));
+        evaluate.parseExpr("sq=x*x*x");
+        Assert.assertEquals(new BigDecimal("35.0"), evaluate.evaluate(sumCode).setScale(1));
+        Assert.assertEquals(evaluate.evaluate("sumsq(3)+sq(a)"), evaluate.evaluate(sumCode));
+    }
+
+    @Test
+    public void test_native() throws Exception {
+        List<String> nativeTexts = Arrays.asList(
+                "max(a,b)-abs(-3)",
+                "sqrt(b)*2+min(a,area(a,b))",
+                "floor(b)+ceil(b)-floor(-b)",
+                "log(exp(a))+clamp(b,0,10)",
+                "sum4(a,b,1,2)*sqrt(a)-sqrt(a)");
+        Evaluate evaluate1 = newEvaluate();
+        Evaluate evaluate2 = newEvaluate();
+        for (Evaluate evaluate : Arrays.asList(evaluate1, evaluate2)) {
+            ExprRegistry registry = evaluate.getRegistry();
+            registry.defineNative(NativeFunction.of("clamp", true, MethodHandles.lookup().findStatic(Test4_compile.class, "clamp",
+                    MethodType.methodType(BigDecimal.class, BigDecimal.class, BigDecimal.class, BigDecimal.class))));
+            registry.defineNative(NativeFunction.of("sum4", true, MethodHandles.lookup().findStatic(Test4_compile.class, "sum4",
+                    MethodType.methodType(BigDecimal.class, BigDecimal.class, BigDecimal.class, BigDecimal.class, BigDecimal.class))));
+        }
+        Evaluate evaluate3 = new Evaluate(evaluate2.getRegistry(), Evaluate.NumberMode.DOUBLE);
+        evaluate3.putVar("a", new BigDecimal("2"));
+        evaluate3.putVar("b", new BigDecimal("12.34"));
+        for (String exprText : nativeTexts) {
+            BigDecimal expected = evaluate1.evaluate(exprText);
+            BigDecimal compiled = evaluate2.evaluate(evaluate2.compile(exprText));
+            BigDecimal bytecode = evaluate2.evaluateBytecode(exprText);
+            BigDecimal doubleResult = evaluate3.evaluate(exprText);
+            log.info("{}={},{},{},{}", exprText, expected, compiled, bytecode, doubleResult);
+            Assert.assertEquals(exprText, expected, compiled);
+            Assert.assertEquals(exprText, expected, bytecode);
+            Assert.assertEquals(exprText, expected.doubleValue(), doubleResult.doubleValue(), 1e-9);
+        }
+        Assert.assertEquals(0, new BigDecimal("10").compareTo(evaluate1.evaluate("clamp(b,0,10)")));
+        Evaluate fixed = new ExprRegistry(4, RoundingMode.HALF_UP).newEvaluate(Evaluate.NumberMode.FIXED);
+        fixed.putVar("b", new BigDecimal("12.34"));
+        Assert.assertEquals(new BigDecimal("3.5128"), fixed.evaluate("sqrt(b)+min(b,0)"));
+
+        // 参数都是常量的纯函数在优化时算出结果,重复的纯函数调用只算一次
+        Assert.assertTrue(evaluate1.parseExprCached("sqrt(4)+max(1,2)").getChildren().get(0).getType() == Evaluate.NodeType.NUMBER);
+        Assert.assertTrue(evaluate1.compile("sqrt(a)*sqrt(a)").getRemovedNodes() > 0);
+        // 参数个数在解析时检查,Java函数不能重新定义
+        assertThrows(() -> evaluate1.parseExpr("max(a)"), "函数参数不匹配");
+        assertThrows(() -> evaluate1.parseExpr("abs=a+1"), "内置函数不能重新定义");
+        assertThrows(() -> evaluate1.getRegistry().defineNative(NativeFunction.of("area", true, (BigDecimal x) -> x)), "函数已经定义为表达式");
+        // 负数开方、0的对数和溢出的指数不折叠,计算时报错
+        for (String exprText : Arrays.asList("sqrt(0-1)", "log(0)", "exp(1000)", "sqrt(a-b)")) {
+            assertArithmetic(() -> evaluate1.evaluate(exprText), exprText);
+            assertArithmetic(() -> evaluate2.evaluate(evaluate2.compile(exprText)), exprText);
+            assertArithmetic(() -> evaluate2.evaluateBytecode(exprText), exprText);
+            assertArithmetic(() -> evaluate3.evaluate(exprText), exprText);
+        }
+
+        // 不是纯函数的不折叠,每次调用都执行
+        int[] counter = new int[1];
+        evaluate1.getRegistry().defineNative(NativeFunction.of("next", false, (BigDecimal x) -> x.add(BigDecimal.valueOf(++counter[0]))));
+        evaluate1.parseExpr("g=next(x)*2");
+        evaluate1.parseExpr("h=max(x,y)*2");
+        Assert.assertFalse(evaluate1.getRegistry().isPure("g"));
+        Assert.assertTrue(evaluate1.getRegistry().isPure("h"));
+        Assert.assertEquals(new BigDecimal("2"), evaluate1.evaluate("next(1)+next(0)-next(0)+1"));
+        Assert.assertEquals(3, counter[0]);
+        log.info("字节码:\n{}", evaluate2.compileBytecode("max(a,b)-abs(-3)"));
+    }
+
+    @Test
+    public void test_conditional() {
+        List<String> conditionTexts = Arrays.asList(
+                "a>1 ? b*2 : b/2",
+                "a<=1 ? b*2 : b/2",
+                "a>=2 && b<13",
+                "a==2 && b>13",
+                "!(a==2) || b!=0",
+                "a!=2 || b<0",
+                "a<0 ? -1 : a==0 ? 0 : 1",
+                "(a>b)+(a<b)*2+(a==a)*4",
+                "x=a>1?a:b; x*3",
+                "max(a,b)>10 && !(b<a)");
+        Evaluate evaluate1 = newEvaluate();
+        Evaluate evaluate2 = newEvaluate();
+        Evaluate evaluate3 = new Evaluate(evaluate2.getRegistry(), Evaluate.NumberMode.DOUBLE);
+        evaluate3.putVar("a", new BigDecimal("2"));
+        evaluate3.putVar("b", new BigDecimal("12.34"));
+        for (String exprText : conditionTexts) {
+            BigDecimal expected = evaluate1.evaluate(exprText);
+            BigDecimal compiled = evaluate2.evaluate(evaluate2.compile(exprText));
+            BigDecimal bytecode = evaluate2.evaluateBytecode(exprText);
+            BigDecimal doubleResult = evaluate3.evaluate(exprText);
+            log.info("{}={},{},{},{}", exprText, expected, compiled, bytecode, doubleResult);
+            Assert.assertEquals(exprText, 0, expected.compareTo(compiled));
+            Assert.assertEquals(exprText, 0, expected.compareTo(bytecode));
+            Assert.assertEquals(exprText, expected.doubleValue(), doubleResult.doubleValue(), 1e-9);
+        }
+        Assert.assertEquals(BigDecimal.ONE, evaluate1.evaluate("a>=2 && b<13"));
+        Assert.assertEquals(BigDecimal.ZERO, evaluate1.evaluate("a!=2 || b<0"));
+
+        // 没有用到的分支不计算
+        int[] counter = new int[1];
+        evaluate1.getRegistry().defineNative(NativeFunction.of("next", false, (BigDecimal x) -> x.add(BigDecimal.valueOf(++counter[0]))));
+        Map<String, BigDecimal> lazyTexts = new HashMap<>();
+        lazyTexts.put("a<0 ? 1/0 : 5", new BigDecimal("5"));
+        lazyTexts.put("a>0 ? 5 : next(a)", new BigDecimal("5"));
+        lazyTexts.put("a>0 || next(a)>0", BigDecimal.ONE);
+        lazyTexts.put("a<0 && next(a)>0", BigDecimal.ZERO);
+        for (Map.Entry<String, BigDecimal> entry : lazyTexts.entrySet()) {
+            String exprText = entry.getKey();
+            Assert.assertEquals(exprText, 0, entry.getValue().compareTo(evaluate1.evaluate(exprText)));
+            Assert.assertEquals(exprText, 0, entry.getValue().compareTo(evaluate1.evaluate(evaluate1.compile(exprText))));
+            Assert.assertEquals(exprText, 0, entry.getValue().compareTo(evaluate1.evaluateBytecode(exprText)));
+        }
+        Assert.assertEquals(0, counter[0]);
+        Assert.assertEquals(new BigDecimal("5"), evaluate1.evaluate("a>0 ? next(3)+1 : next(a)"));
+        Assert.assertEquals(1, counter[0]);
+
+        // 递归函数靠条件结束,解释执行和字节码支持,编译成MethodHandle时不支持递归
+        evaluate1.parseExpr("fact=n<=1 ? 1 : n*fact(n-1)");
+        Assert.assertEquals(new BigDecimal("120"), evaluate1.evaluate("fact(5)"));
+        Assert.assertEquals(new BigDecimal("3628800"), evaluate1.evaluateBytecode("fact(10)"));
+        assertThrows(() -> evaluate1.compile("fact(3)"), "递归调用无法编译");
+
+        // 常量条件在优化时只保留用到的分支
+        Assert.assertEquals(Evaluate.NodeType.VAR, evaluate1.parseExprCached("2>1 ? a : b").getChildren().get(0).getType());
+        Assert.assertEquals(BigDecimal.ZERO, evaluate1.parseExprCached("1==2 && a").getChildren().get(0).getNumber());
+        Assert.assertEquals(Evaluate.normalizeExpr("a==b"), Evaluate.normalizeExpr("a == b"));
+        Assert.assertNotEquals(Evaluate.normalizeExpr("a==b"), Evaluate.normalizeExpr("a = = b"));
+        assertThrows(() -> evaluate1.parseExpr("a>1 ? 2"), "条件运算符缺少:");
+        assertThrows(() -> evaluate1.parseExpr("a & b"), "无效的操作符");
+
+        Evaluate fixed = new ExprRegistry(4, RoundingMode.HALF_UP).newEvaluate(Evaluate.NumberMode.FIXED);
+        fixed.putVar("a", new BigDecimal("2"));
+        fixed.putVar("b", new BigDecimal("12.34"));
+        Assert.assertEquals(new BigDecimal("6.1700"), fixed.evaluate("a>1 && b>=12.34 ? b/a : 0"));
+        Assert.assertEquals(new BigDecimal("1.0000"), fixed.evaluate("a<b"));
+        log.info("字节码:\n{}", evaluate2.compileBytecode("a>=2 && b<13 ? a : b"));
+    }
+
+    @Test
+    public void test_formulaSet() {
+        Evaluate evaluate = newEvaluate();
+        int[] counter = new int[1];
+        evaluate.getRegistry().defineNative(NativeFunction.of("spread", true, (BigDecimal x, BigDecimal y) -> {
+            counter[0]++;
+            return x.subtract(y);
+        }));
+        evaluate.parseExpr("fee=x*0.01+1");
+        Map<String, String> formulas = new LinkedHashMap<>();
+        formulas.put("margin", "spread(price,cost)*rate");
+        formulas.put("tax", "spread(price,cost)*rate*0.13");
+        formulas.put("total", "margin+tax+fee(price)");
+        formulas.put("discount", "qty>=10 && margin>0 ? margin*0.1 : 0");
+        formulas.put("ratio", "cost==0 ? 0 : price/cost");
+        formulas.put("area", "pi*rate*rate+fee(qty)*fee(price)");
+        FormulaSet formulaSet = evaluate.compileFormulas(formulas);
+        log.info("{}", formulaSet);
+        Assert.assertEquals(formulas.keySet(), new LinkedHashSet<>(formulaSet.getNames()));
+        // 可以修改的常量也是输入,没有传入时使用初始值
+        Assert.assertEquals(new HashSet<>(Arrays.asList("price", "cost", "rate", "qty", "pi")), new HashSet<>(formulaSet.getInputNames()));
+        Assert.assertTrue(formulaSet.getNodeCount() < formulaSet.getTreeNodeCount());
+
+        // 结果和逐个公式计算一致,重复的子表达式每行只算一次,cost为0时不计算除法的分支
+        BigDecimal[][] rows = {
+                {new BigDecimal("12.5"), new BigDecimal("8"), new BigDecimal("0.3"), new BigDecimal("12")},
+                {new BigDecimal("7"), BigDecimal.ZERO, new BigDecimal("1.5"), new BigDecimal("3")},
+                {new BigDecimal("2"), new BigDecimal("9"), new BigDecimal("0.8"), new BigDecimal("20")}};
+        Map<String, BigDecimal[]> columns = new HashMap<>();
+        List<String> inputNames = Arrays.asList("price", "cost", "rate", "qty");
+        for (int i = 0; i < inputNames.size(); i++) {
+            BigDecimal[] column = new BigDecimal[rows.length];
+            for (int row = 0; row < rows.length; row++) column[row] = rows[row][i];
+            columns.put(inputNames.get(i), column);
+        }
+        Map<String, BigDecimal[]> batch = formulaSet.evaluateBatch(columns, rows.length);
+        Assert.assertEquals(rows.length, counter[0]);
+        for (int row = 0; row < rows.length; row++) {
+            Map<String, BigDecimal> inputs = new HashMap<>();
+            for (int i = 0; i < inputNames.size(); i++) {
+                inputs.put(inputNames.get(i), rows[row][i]);
+                evaluate.putVar(inputNames.get(i), rows[row][i]);
+            }
+            counter[0] = 0;
+            Map<String, BigDecimal> result = formulaSet.evaluate(inputs);
+            Assert.assertEquals(1, counter[0]);
+            for (String name : formulas.keySet()) {
+                evaluate.putVar(name, evaluate.evaluate(formulas.get(name)));
+                Assert.assertEquals(name, 0, evaluate.getVar(name).compareTo(result.get(name)));
+                Assert.assertEquals(name, 0, result.get(name).compareTo(batch.get(name)[row]));
+            }
+        }
+
+        Map<String, BigDecimal> piInputs = new HashMap<>();
+        for (String name : inputNames) piInputs.put(name, BigDecimal.ONE);
+        BigDecimal defaultArea = formulaSet.evaluate(piInputs).get("area");
+        piInputs.put("pi", new BigDecimal("3"));
+        Assert.assertEquals(0, defaultArea.subtract(new BigDecimal(Math.PI).subtract(new BigDecimal("3")))
+                .compareTo(formulaSet.evaluate(piInputs).get("area")));
+        assertThrows(() -> formulaSet.evaluate(new HashMap<>()), "找不到变量:");
+        assertThrows(() -> formulaSet.evaluateBatch(columns, rows.length + 1), "列的行数不足:");
+        Map<String, String> cycle = new LinkedHashMap<>();
+        cycle.put("a1", "b1+1");
+        cycle.put("b1", "a1*2");
+        assertThrows(() -> evaluate.compileFormulas(cycle), "公式循环引用:");
+        evaluate.parseExpr("fact=n<=1 ? 1 : n*fact(n-1)");
+        assertThrows(() -> evaluate.compileFormulas(Collections.singletonMap("f", "fact(price)")), "递归调用无法编译");
+        assertThrows(() -> evaluate.compileFormulas(Collections.singletonMap("f", "x=price+1")), "公式集不支持赋值:");
+        // 被拒绝的公式集不修改注册表
+        Evaluate.Expr area = evaluate.getRegistry().getExpr("area");
+        Map<String, String> rejected = new LinkedHashMap<>();
+        rejected.put("f", "price+1");
+        rejected.put("g", "area=price*2");
+        assertThrows(() -> evaluate.compileFormulas(rejected), "公式集不支持赋值:");
+        Assert.assertNull(evaluate.getRegistry().getExpr("x"));
+        Assert.assertSame(area, evaluate.getRegistry().getExpr("area"));
+        // 缓存的解析结果单独使用时照常定义函数
+        evaluate.parseExprCached("x=price+1");
+        Assert.assertNotNull(evaluate.getRegistry().getExpr("x"));
+    }
+
+    private static BigDecimal clamp(BigDecimal x, BigDecimal min, BigDecimal max) {
+        return x.max(min).min(max);
+    }
+
+    private static BigDecimal sum4(BigDecimal a, BigDecimal b, BigDecimal c, BigDecimal d) {
+        return a.add(b).add(c).add(d);
+    }
+
+    private static void assertArithmetic(Runnable runnable, String exprText) {
+        try {
+            runnable.run();
+            Assert.fail("没有抛出异常:" + exprText);
+        } catch (ArithmeticException e) {
+            Assert.assertTrue(exprText + ":" + e.getMessage(), e.getMessage().contains("计算结果不是有限的数"));
+        }
+    }
+
+    private static void assertThrows(Runnable runnable, String message) {
+        try {
+            runnable.run();
+            Assert.fail("没有抛出异常:" + message);
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
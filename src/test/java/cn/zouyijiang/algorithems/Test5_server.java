@@ -0,0 +1,76 @@
+package cn.zouyijiang.algorithems;
+
+import cn.zouyijiang.algorithems.book.chapter1.ExprRegistry;
+import cn.zouyijiang.algorithems.server.EvalLoadClient;
+import cn.zouyijiang.algorithems.server.EvalProtocol;
+import cn.zouyijiang.algorithems.server.EvalServer;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+@Slf4j
+@RunWith(JUnit4.class)
+public class Test5_server {
+
+    @Test
+    public void test_pipeline() throws Exception {
+        List<String> exprTexts = Arrays.asList("1+2*3", "x=2;x^10", "1/0", "area(3,4)", "(1+");
+        try (EvalServer server = new EvalServer(new ExprRegistry(), 0, 2)) {
+            server.start();
+            try (SocketChannel channel = SocketChannel.open(new InetSocketAddress(InetAddress.getLoopbackAddress(), server.getPort()))) {
+                // 一次写出所有请求,不等响应
+                for (int i = 0; i < exprTexts.size(); i++) {
+                    ByteBuffer request = EvalProtocol.encodeRequest(100 + i, exprTexts.get(i));
+                    while (request.hasRemaining()) channel.write(request);
+                }
+                List<String> results = new ArrayList<>();
+                ByteBuffer buffer = ByteBuffer.allocate(4096);
+                while (results.size() < exprTexts.size()) {
+                    channel.read(buffer);
+                    buffer.flip();
+                    for (int length; (length = EvalProtocol.frameLength(buffer)) >= 0; ) {
+                        buffer.getInt();
+                        Assert.assertEquals(100 + results.size(), buffer.getLong());
+                        byte status = buffer.get();
+                        byte[] text = new byte[length - 9];
+                        buffer.get(text);
+                        results.add(status + ":" + new String(text, StandardCharsets.UTF_8));
+                    }
+                    buffer.compact();
+                }
+                log.info("results:{}", results);
+                Assert.assertEquals("0:7", results.get(0));
+                Assert.assertEquals("0:1024", results.get(1).replaceAll("\\.0+$", ""));
+                Assert.assertTrue(results.get(2).startsWith("1:"));
+                Assert.assertEquals("0:12", results.get(3));
+                Assert.assertTrue(results.get(4).startsWith("1:"));
+            }
+        }
+    }
+
+    @Test
+    public void test_load() throws Exception {
+        try (EvalServer server = new EvalServer(new ExprRegistry(), 0, 2)) {
+            server.start();
+            EvalLoadClient.Result result = new EvalLoadClient(server.getPort(), 4, 5000, 32).run();
+            log.info("压测结果:{}", result);
+            Assert.assertEquals(20000, result.getRequestCount());
+            Assert.assertEquals(result.getFirstError(), 0, result.getErrorCount());
+            Assert.assertEquals(20000, server.getRequestCount().sum());
+            // 流水线的请求会合并成批
+            Assert.assertTrue(server.getBatchCount().sum() < 20000);
+            Assert.assertTrue(result.getP99Nanos() >= result.getP50Nanos());
+        }
+    }
+}